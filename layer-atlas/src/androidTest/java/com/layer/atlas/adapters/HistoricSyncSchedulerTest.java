@@ -0,0 +1,201 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.mock.MockLayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.query.Query;
+import com.layer.sdk.query.Queryable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+// Lives in the adapters package because HistoricSyncScheduler is package-private.  Ranges run on a
+// single thread in order, so scheduling a range at BARRIER_POSITION and waiting for it to be
+// reached waits for all ranges scheduled before it.
+@RunWith(AndroidJUnit4.class)
+public class HistoricSyncSchedulerTest {
+    private static final int CONVERSATION_COUNT = 6;
+    private static final int BLOCKING_POSITION = 100;
+    private static final int BARRIER_POSITION = 101;
+    private static final long DESIRED_HISTORY = 10;
+    private static final long LONG_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private TestAdapter mAdapter;
+    private HistoricSyncScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mAdapter = new TestAdapter();
+    }
+
+    @After
+    public void tearDown() {
+        mAdapter.mRelease.countDown();
+        if (mScheduler != null) mScheduler.cancel();
+    }
+
+    @Test
+    public void testPendingRangesAreNotQueuedAgain() throws Exception {
+        mScheduler = new HistoricSyncScheduler(new CountingLayerClient(), mAdapter, 1, LONG_TTL_MILLIS);
+        mScheduler.schedule(BLOCKING_POSITION, 1, DESIRED_HISTORY);
+        assertThat(mAdapter.mBlocked.await(5, TimeUnit.SECONDS), is(true));
+
+        // The only thread is blocked, so these stay pending
+        mScheduler.schedule(0, 4, DESIRED_HISTORY);
+        mScheduler.schedule(0, 4, DESIRED_HISTORY);
+        mScheduler.schedule(1, 2, DESIRED_HISTORY);
+        mScheduler.schedule(2, 4, DESIRED_HISTORY);
+        mAdapter.mRelease.countDown();
+        awaitIdle();
+
+        assertThat(mScheduler.getRangesSkipped(), is(2));
+        // The blocking range, [0, 4), [2, 6), and the barrier
+        assertThat(mScheduler.getRangesScheduled(), is(4));
+        // Positions 2 and 3 were counted by the first range and reused by the second
+        assertThat(mScheduler.getCountQueries(), is(CONVERSATION_COUNT));
+        assertThat(mScheduler.getSyncsRequested(), is(CONVERSATION_COUNT));
+    }
+
+    @Test
+    public void testCountsAreReusedUntilExpired() throws Exception {
+        mScheduler = new HistoricSyncScheduler(new CountingLayerClient(), mAdapter, 1, LONG_TTL_MILLIS);
+        mScheduler.schedule(0, 1, DESIRED_HISTORY);
+        awaitIdle();
+        mScheduler.schedule(0, 1, DESIRED_HISTORY);
+        awaitIdle();
+
+        assertThat(mScheduler.getCountQueries(), is(1));
+        // The sync requested from the first count is not requested again
+        assertThat(mScheduler.getSyncsRequested(), is(1));
+        assertThat(mAdapter.mSyncRequests.get(), is(1));
+    }
+
+    @Test
+    public void testExpiredCountsAreMeasuredAgain() throws Exception {
+        mScheduler = new HistoricSyncScheduler(new CountingLayerClient(), mAdapter, 1, 0);
+        mScheduler.schedule(0, 1, DESIRED_HISTORY);
+        awaitIdle();
+        SystemClock.sleep(5);
+        mScheduler.schedule(0, 1, DESIRED_HISTORY);
+        awaitIdle();
+
+        assertThat(mScheduler.getCountQueries(), is(2));
+        // The sync is retried since history is still missing
+        assertThat(mScheduler.getSyncsRequested(), is(2));
+        assertThat(mAdapter.mSyncRequests.get(), is(2));
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        mAdapter.mBarrier = new CountDownLatch(1);
+        mScheduler.schedule(BARRIER_POSITION, 1, DESIRED_HISTORY);
+        assertThat(mAdapter.mBarrier.await(5, TimeUnit.SECONDS), is(true));
+    }
+
+    private static class CountingLayerClient extends MockLayerClient {
+        @Override
+        public Long executeQueryForCount(Query<? extends Queryable> query) {
+            return 0L;
+        }
+    }
+
+    private static class TestAdapter implements AtlasBaseAdapter<Conversation> {
+        final List<Conversation> mConversations = new ArrayList<>();
+        final AtomicInteger mSyncRequests = new AtomicInteger();
+        final CountDownLatch mBlocked = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile CountDownLatch mBarrier;
+
+        TestAdapter() {
+            for (int i = 0; i < CONVERSATION_COUNT; i++) {
+                mConversations.add(newConversation(Uri.parse("layer:///conversations/" + i)));
+            }
+        }
+
+        @Override
+        public Integer getPosition(Conversation item) {
+            return mConversations.indexOf(item);
+        }
+
+        @Override
+        public Integer getPosition(Conversation item, int lastPosition) {
+            return getPosition(item);
+        }
+
+        @Override
+        public Conversation getItem(int position) {
+            if (position == BLOCKING_POSITION) {
+                mBlocked.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return null;
+            }
+            if (position == BARRIER_POSITION) {
+                mBarrier.countDown();
+                return null;
+            }
+            return position < mConversations.size() ? mConversations.get(position) : null;
+        }
+
+        @Override
+        public Conversation getItem(RecyclerView.ViewHolder viewHolder) {
+            return null;
+        }
+
+        /**
+         * Returns a Conversation with more history available which counts sync requests.
+         */
+        private Conversation newConversation(final Uri id) {
+            return (Conversation) Proxy.newProxyInstance(Conversation.class.getClassLoader(),
+                    new Class[]{Conversation.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            switch (method.getName()) {
+                                case "getId":
+                                    return id;
+                                case "getHistoricSyncStatus":
+                                    return Conversation.HistoricSyncStatus.MORE_AVAILABLE;
+                                case "syncMoreHistoricMessages":
+                                    mSyncRequests.incrementAndGet();
+                                    return defaultValue(method.getReturnType());
+                                case "equals":
+                                    return proxy == args[0];
+                                case "hashCode":
+                                    return System.identityHashCode(proxy);
+                                case "toString":
+                                    return id.toString();
+                                default:
+                                    return defaultValue(method.getReturnType());
+                            }
+                        }
+                    });
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == boolean.class) return false;
+            if (type == int.class) return 0;
+            if (type == long.class) return 0L;
+            return null;
+        }
+    }
+}
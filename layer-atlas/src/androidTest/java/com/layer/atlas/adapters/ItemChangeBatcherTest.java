@@ -0,0 +1,185 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v7.widget.RecyclerView;
+import android.view.ViewGroup;
+
+import com.layer.atlas.mock.MockMessageImpl;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+// Lives in the adapters package because ItemChangeBatcher is package-private.  Batchers must be
+// used from the main thread, so each test requests and flushes inside runOnMainSync().
+@RunWith(AndroidJUnit4.class)
+public class ItemChangeBatcherTest {
+    private static final String PAYLOAD = "payload";
+    private static final String OTHER_PAYLOAD = "other";
+
+    private TestAdapter mAdapter;
+    private List<String> mNotifications;
+    private ItemChangeBatcher<Message> mBatcher;
+
+    @Before
+    public void setUp() {
+        mAdapter = new TestAdapter(10);
+        mNotifications = new ArrayList<>();
+        mAdapter.registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeChanged(int positionStart, int itemCount, Object payload) {
+                mNotifications.add(positionStart + "+" + itemCount + ":" + payload);
+            }
+        });
+        mBatcher = new ItemChangeBatcher<>(mAdapter, mAdapter);
+    }
+
+    @Test
+    public void testAdjacentRequestsMerge() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                request(4);
+                request(2);
+                request(3);
+                request(7);
+                mBatcher.run();
+            }
+        });
+
+        assertThat(mNotifications, is(Arrays.asList("2+3:" + PAYLOAD, "7+1:" + PAYLOAD)));
+        assertThat(mBatcher.getRequestedCount(), is(4L));
+        assertThat(mBatcher.getDispatchedCount(), is(2L));
+        assertThat(mBatcher.getCoalescedCount(), is(2L));
+    }
+
+    @Test
+    public void testDuplicateRequestsCoalesce() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                request(5);
+                request(5);
+                mBatcher.run();
+            }
+        });
+
+        assertThat(mNotifications, is(Collections.singletonList("5+1:" + PAYLOAD)));
+        assertThat(mBatcher.getCoalescedCount(), is(1L));
+    }
+
+    @Test
+    public void testPayloadsNotifiedSeparately() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                request(1);
+                mBatcher.requestUpdate(mAdapter.getItem(2), 2, OTHER_PAYLOAD);
+                mBatcher.run();
+            }
+        });
+
+        assertThat(mNotifications.size(), is(2));
+        assertThat(mNotifications.contains("1+1:" + PAYLOAD), is(true));
+        assertThat(mNotifications.contains("2+1:" + OTHER_PAYLOAD), is(true));
+    }
+
+    @Test
+    public void testPositionsResolvedAtFlush() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                request(3);
+                request(8);
+                // An insert before both items, and a removal of the second, before the flush
+                mAdapter.mItems.add(0, newMessage(-1));
+                mAdapter.mItems.remove(9);
+                mBatcher.run();
+            }
+        });
+
+        assertThat(mNotifications, is(Collections.singletonList("4+1:" + PAYLOAD)));
+    }
+
+    @Test
+    public void testCancelDropsPendingRequests() {
+        runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                request(1);
+                mBatcher.cancel();
+                mBatcher.run();
+            }
+        });
+
+        assertThat(mNotifications.isEmpty(), is(true));
+    }
+
+    private void request(int position) {
+        mBatcher.requestUpdate(mAdapter.getItem(position), position, PAYLOAD);
+    }
+
+    private static void runOnMainSync(Runnable runnable) {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(runnable);
+    }
+
+    private static Message newMessage(int index) {
+        return new MockMessageImpl(Uri.parse("layer:///messages/" + index), new ArrayList<MessagePart>());
+    }
+
+    private static class TestAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> implements AtlasBaseAdapter<Message> {
+        final List<Message> mItems = new ArrayList<>();
+
+        TestAdapter(int itemCount) {
+            for (int i = 0; i < itemCount; i++) {
+                mItems.add(newMessage(i));
+            }
+        }
+
+        @Override
+        public int getItemCount() {
+            return mItems.size();
+        }
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            return null;
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+        }
+
+        @Override
+        public Integer getPosition(Message item) {
+            return mItems.indexOf(item);
+        }
+
+        @Override
+        public Integer getPosition(Message item, int lastPosition) {
+            return getPosition(item);
+        }
+
+        @Override
+        public Message getItem(int position) {
+            return mItems.get(position);
+        }
+
+        @Override
+        public Message getItem(RecyclerView.ViewHolder viewHolder) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.layer.atlas.mock.MockMessageImpl;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+// Lives in the adapters package because MessageClusterer is package-private.  Messages are bound at
+// even positions only, so no two are adjacent and no sender comparisons are made.
+@RunWith(AndroidJUnit4.class)
+public class MessageClustererTest {
+    private static final int WINDOW_RADIUS = 8;
+
+    private Map<Integer, Message> mMessages;
+    private List<Integer> mChangedPositions;
+    private MessageClusterer mClusterer;
+
+    @Before
+    public void setUp() {
+        mMessages = new HashMap<>();
+        mChangedPositions = new ArrayList<>();
+        mClusterer = new MessageClusterer(new MessageClusterer.Callback() {
+            @Override
+            public Message getMessage(int position) {
+                return mMessages.get(position);
+            }
+
+            @Override
+            public void onClusterChanged(Message message, int position) {
+                mChangedPositions.add(position);
+            }
+        }, WINDOW_RADIUS);
+    }
+
+    @Test
+    public void testWindowDropsDistantClusters() {
+        for (int position = 0; position <= 40; position += 2) {
+            mMessages.put(position, newMessage(position));
+        }
+        MessageClusterer.Cluster first = mClusterer.getCluster(mMessages.get(0), 0);
+        for (int position = 2; position <= 40; position += 2) {
+            mClusterer.getCluster(mMessages.get(position), position);
+        }
+
+        // The window last slid to 36, keeping positions 28 through 40
+        assertThat(mClusterer.size(), is(7));
+        assertThat(mClusterer.getCluster(mMessages.get(0), 0), not(sameInstance(first)));
+        assertThat(mChangedPositions.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testFirstBindKeepsCluster() {
+        mMessages.put(0, newMessage(0));
+        MessageClusterer.Cluster cluster = mClusterer.getCluster(mMessages.get(0), 0);
+
+        assertThat(mClusterer.getCluster(mMessages.get(0), 0), sameInstance(cluster));
+        assertThat(mClusterer.size(), is(1));
+    }
+
+    @Test
+    public void testMoveUpdatesPositionsAndInvalidatesNeighbours() {
+        Message a = newMessage(0);
+        Message b = newMessage(2);
+        Message c = newMessage(4);
+        Message d = newMessage(6);
+        mMessages.put(0, a);
+        mMessages.put(2, b);
+        mMessages.put(4, c);
+        mMessages.put(6, d);
+        MessageClusterer.Cluster clusterA = mClusterer.getCluster(a, 0);
+        MessageClusterer.Cluster clusterB = mClusterer.getCluster(b, 2);
+        mClusterer.getCluster(c, 4);
+        mClusterer.getCluster(d, 6);
+
+        // Moving 2 to 6 shifts positions 3 through 6 down by one
+        mMessages.clear();
+        mMessages.put(0, a);
+        mMessages.put(3, c);
+        mMessages.put(5, d);
+        mMessages.put(6, b);
+        mClusterer.onItemMoved(2, 6);
+
+        assertThat(clusterA.mPosition, is(0));
+        assertThat(clusterB.mPosition, is(6));
+        // c and d sat next to the old or new position, so they are invalidated and dropped
+        assertThat(mChangedPositions, is(Arrays.asList(3, 5)));
+        assertThat(mClusterer.size(), is(2));
+    }
+
+    @Test
+    public void testRemoveShiftsLaterClusters() {
+        Message a = newMessage(0);
+        Message b = newMessage(2);
+        Message c = newMessage(4);
+        mMessages.put(0, a);
+        mMessages.put(2, b);
+        mMessages.put(4, c);
+        mClusterer.getCluster(a, 0);
+        mClusterer.getCluster(b, 2);
+        MessageClusterer.Cluster clusterC = mClusterer.getCluster(c, 4);
+
+        mMessages.clear();
+        mMessages.put(0, a);
+        mMessages.put(3, c);
+        mClusterer.onItemRangeRemoved(2, 1);
+
+        assertThat(clusterC.mPosition, is(3));
+        assertThat(mClusterer.size(), is(2));
+        assertThat(mChangedPositions.isEmpty(), is(true));
+    }
+
+    private static Message newMessage(int position) {
+        return new MockMessageImpl(Uri.parse("layer:///messages/" + position), new ArrayList<MessagePart>());
+    }
+}
@@ -18,11 +18,17 @@ import java.util.Map;
 public class MockMessageImpl implements Message {
 
     private List<MessagePart> mMessageParts = new ArrayList<>();
+    private Uri mId;
 
     public MockMessageImpl(List<MessagePart> messageParts) {
         mMessageParts = messageParts;
     }
 
+    public MockMessageImpl(Uri id, List<MessagePart> messageParts) {
+        mId = id;
+        mMessageParts = messageParts;
+    }
+
     @Override
     public void delete(LayerClient.DeletionMode deletionMode) {
 
@@ -35,7 +41,7 @@ public class MockMessageImpl implements Message {
 
     @Override
     public Uri getId() {
-        return null;
+        return mId;
     }
 
     @Override
@@ -0,0 +1,69 @@
+package com.layer.atlas.test;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.layer.atlas.participant.BatchingChatParticipantProvider;
+import com.layer.atlas.participant.Participant;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.reactivex.observers.TestObserver;
+
+import static com.layer.atlas.test.MockParticipantProvider.FAILING_ID;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class BatchingChatParticipantProviderTest {
+    private MockParticipantProvider mDelegate;
+    private BatchingChatParticipantProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mDelegate = new MockParticipantProvider();
+        mProvider = new BatchingChatParticipantProvider(mDelegate, 2, 16);
+    }
+
+    @Test
+    public void testBatchesRequests() {
+        TestObserver<List<Participant>> first = mProvider.getParticipants(Collections.singletonList("a")).test();
+        TestObserver<List<Participant>> second = mProvider.getParticipants(Collections.singletonList("b")).test();
+
+        first.awaitTerminalEvent();
+        second.awaitTerminalEvent();
+        first.assertValueCount(1);
+        second.assertValueCount(1);
+        assertThat(mDelegate.mRequests, is(1));
+    }
+
+    @Test
+    public void testFailedChunkFailsOnlyDependentRequests() {
+        // With a batch size of 2, "a" and "b" load in one chunk and FAILING_ID in another
+        TestObserver<List<Participant>> loaded = mProvider.getParticipants(Collections.singletonList("a")).test();
+        TestObserver<List<Participant>> failed = mProvider.getParticipants(Arrays.asList("b", FAILING_ID)).test();
+
+        loaded.awaitTerminalEvent();
+        failed.awaitTerminalEvent();
+        loaded.assertNoErrors();
+        assertThat(loaded.values().get(0).get(0).getId(), is("a"));
+        failed.assertError(IllegalStateException.class);
+        assertThat(mDelegate.mRequests, is(2));
+    }
+
+    @Test
+    public void testDisposedRequestIsNotLoaded() {
+        TestObserver<List<Participant>> disposed = mProvider.getParticipants(Collections.singletonList("a")).test();
+        disposed.dispose();
+        List<Participant> participants = mProvider.getParticipants(Collections.singletonList("b")).blockingGet();
+
+        assertThat(participants.get(0).getId(), is("b"));
+        assertThat(mDelegate.mRequestedIds, is(Collections.singletonList("b")));
+        disposed.assertNoValues();
+    }
+}
@@ -0,0 +1,77 @@
+package com.layer.atlas.test;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.layer.atlas.participant.CachingChatParticipantProvider;
+import com.layer.atlas.participant.Participant;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+import io.reactivex.Single;
+import io.reactivex.subjects.SingleSubject;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class CachingChatParticipantProviderTest {
+    private MockParticipantProvider mDelegate;
+    private CachingChatParticipantProvider mProvider;
+
+    @Before
+    public void setUp() {
+        mDelegate = new MockParticipantProvider();
+        mProvider = new CachingChatParticipantProvider(mDelegate);
+    }
+
+    @Test
+    public void testPeekMissesBeforeLoad() {
+        assertThat(mProvider.peek("a"), is(nullValue()));
+    }
+
+    @Test
+    public void testCachesLoadedParticipant() {
+        assertThat(mProvider.getParticipant("a").blockingGet().getId(), is("a"));
+        assertThat(mProvider.getParticipant("a").blockingGet().getId(), is("a"));
+
+        assertThat(mDelegate.mRequests, is(1));
+        assertThat(mProvider.peek("a").getId(), is("a"));
+    }
+
+    @Test
+    public void testDeduplicatesInFlightRequests() {
+        mDelegate.mPending = SingleSubject.create();
+        Single<Participant> first = mProvider.getParticipant("a");
+        Single<Participant> second = mProvider.getParticipant("a");
+        first.subscribe();
+        second.subscribe();
+        mDelegate.mPending.onSuccess(new MockParticipantProvider.MockParticipant("a"));
+
+        assertThat(mDelegate.mRequests, is(1));
+        assertThat(second.blockingGet().getId(), is("a"));
+    }
+
+    @Test
+    public void testLoadsOnlyMissingParticipants() {
+        mProvider.getParticipant("a").blockingGet();
+        List<Participant> participants = mProvider.getParticipants(Arrays.asList("a", "b", "c")).blockingGet();
+
+        assertThat(participants.size(), is(3));
+        assertThat(participants.get(1).getId(), is("b"));
+        assertThat(mDelegate.mRequestedIds, is(Arrays.asList("a", "b", "c")));
+    }
+
+    @Test
+    public void testInvalidate() {
+        mProvider.getParticipant("a").blockingGet();
+        mProvider.invalidate("a");
+
+        assertThat(mProvider.peek("a"), is(nullValue()));
+    }
+}
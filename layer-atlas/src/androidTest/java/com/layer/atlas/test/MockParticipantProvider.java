@@ -0,0 +1,108 @@
+package com.layer.atlas.test;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.layer.atlas.participant.ChatParticipantProvider;
+import com.layer.atlas.participant.Participant;
+import com.layer.sdk.messaging.Presence;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.reactivex.Single;
+import io.reactivex.subjects.SingleSubject;
+
+/**
+ * A ChatParticipantProvider which records the IDs it is asked for.  Lookups including
+ * {@link #FAILING_ID} fail, and single lookups return {@link #mPending} when set.
+ */
+public class MockParticipantProvider implements ChatParticipantProvider {
+    public static final String FAILING_ID = "bad";
+
+    int mRequests;
+    final List<String> mRequestedIds = new ArrayList<>();
+    SingleSubject<Participant> mPending;
+
+    @Override
+    public synchronized Single<List<Participant>> getParticipants(List<String> participantsIds) {
+        mRequests++;
+        mRequestedIds.addAll(participantsIds);
+        if (participantsIds.contains(FAILING_ID)) {
+            return Single.error(new IllegalStateException("Lookup failed"));
+        }
+        List<Participant> participants = new ArrayList<>();
+        for (String id : participantsIds) {
+            participants.add(new MockParticipant(id));
+        }
+        return Single.just(participants);
+    }
+
+    @Override
+    public synchronized Single<Participant> getParticipant(String id) {
+        mRequests++;
+        mRequestedIds.add(id);
+        if (mPending != null) return mPending;
+        return Single.<Participant>just(new MockParticipant(id));
+    }
+
+    @Override
+    public Single<Map<String, Participant>> getMatchingParticipants(@NonNull String filter) {
+        return Single.<Map<String, Participant>>just(new HashMap<String, Participant>());
+    }
+
+    @Override
+    public Single<List<Participant>> findParticipantsFromSameCompany(List<String> participantsIds) {
+        return getParticipants(participantsIds);
+    }
+
+    public static class MockParticipant implements Participant {
+        private final String mId;
+
+        public MockParticipant(String id) {
+            mId = id;
+        }
+
+        @Override
+        public String getId() {
+            return mId;
+        }
+
+        @Override
+        public String getName() {
+            return mId;
+        }
+
+        @Override
+        public String getJobDesc() {
+            return null;
+        }
+
+        @Override
+        public String getFirstName() {
+            return mId;
+        }
+
+        @Override
+        public String getAvatarImageUrl() {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public Presence.PresenceStatus getPresenceStatus() {
+            return null;
+        }
+
+        @Override
+        public void setPresenceStatus(Presence.PresenceStatus presenceStatus) {
+        }
+
+        @Override
+        public int compareTo(@NonNull Participant another) {
+            return mId.compareTo(another.getId());
+        }
+    }
+}
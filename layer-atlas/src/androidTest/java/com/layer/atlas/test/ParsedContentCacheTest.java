@@ -0,0 +1,197 @@
+package com.layer.atlas.test;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.messagetypes.ParsedContentCache;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+@RunWith(AndroidJUnit4.class)
+public class ParsedContentCacheTest {
+    private static final int STRIPES = 8;
+    private static final int ENTRY_BYTES = 100;
+
+    @After
+    public void tearDown() {
+        // Back to the default global budget
+        ParsedContentCache.setGlobalMaxSize(0);
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        // Eviction order is least recently used within a stripe, so use IDs sharing one
+        List<Uri> ids = getSameStripeIds(3);
+        ParsedContentCache<TestContent> cache = new ParsedContentCache<>(2 * ENTRY_BYTES);
+        cache.put(ids.get(0), new TestContent(ENTRY_BYTES));
+        cache.put(ids.get(1), new TestContent(ENTRY_BYTES));
+        cache.get(ids.get(0));
+        cache.put(ids.get(2), new TestContent(ENTRY_BYTES));
+
+        assertThat(cache.get(ids.get(0)), notNullValue());
+        assertThat(cache.get(ids.get(1)), nullValue());
+        assertThat(cache.get(ids.get(2)), notNullValue());
+        assertThat(cache.size(), is(2 * ENTRY_BYTES));
+        assertThat(cache.evictionCount(), is(1));
+    }
+
+    @Test
+    public void testMaxSizeAppliesToWholeCache() {
+        ParsedContentCache<TestContent> cache = new ParsedContentCache<>(4 * ENTRY_BYTES);
+        for (int i = 0; i < 32; i++) {
+            cache.put(newId(i), new TestContent(ENTRY_BYTES));
+        }
+
+        assertThat(cache.size(), is(4 * ENTRY_BYTES));
+        assertThat(cache.get(newId(31)), notNullValue());
+    }
+
+    @Test
+    public void testKeepsOversizedEntry() {
+        ParsedContentCache<TestContent> cache = new ParsedContentCache<>(ENTRY_BYTES);
+        cache.put(newId(0), new TestContent(5 * ENTRY_BYTES));
+
+        assertThat(cache.get(newId(0)), notNullValue());
+
+        // The next entry evicts it, since only the entry being added is kept
+        cache.put(newId(1), new TestContent(ENTRY_BYTES));
+        assertThat(cache.get(newId(0)), nullValue());
+        assertThat(cache.get(newId(1)), notNullValue());
+    }
+
+    @Test
+    public void testGlobalTrimKeepsCachesWithinBudget() {
+        ParsedContentCache<TestContent> first = new ParsedContentCache<>();
+        ParsedContentCache<TestContent> second = new ParsedContentCache<>();
+        for (int i = 0; i < 6; i++) {
+            first.put(newId(i), new TestContent(ENTRY_BYTES));
+        }
+        ParsedContentCache.setGlobalMaxSize(10 * ENTRY_BYTES);
+        for (int i = 6; i < 12; i++) {
+            second.put(newId(i), new TestContent(ENTRY_BYTES));
+        }
+
+        assertThat(ParsedContentCache.getGlobalSize() <= 10 * ENTRY_BYTES, is(true));
+        // Eviction starts from the largest cache, so neither is emptied
+        assertThat(first.size() > 0, is(true));
+        assertThat(second.size() > 0, is(true));
+    }
+
+    @Test
+    public void testConcurrentComputeRunsOnce() throws Exception {
+        final ParsedContentCache<TestContent> cache = new ParsedContentCache<>();
+        final Uri id = newId(0);
+        final AtomicInteger computations = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ParsedContentCache.Computer<TestContent> computer = new ParsedContentCache.Computer<TestContent>() {
+            @Override
+            public TestContent compute() {
+                computations.incrementAndGet();
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return new TestContent(ENTRY_BYTES);
+            }
+        };
+        final List<TestContent> results = new ArrayList<>();
+        Runnable getOrCompute = new Runnable() {
+            @Override
+            public void run() {
+                TestContent content = cache.getOrCompute(id, computer);
+                synchronized (results) {
+                    results.add(content);
+                }
+            }
+        };
+
+        Thread first = new Thread(getOrCompute);
+        first.start();
+        assertThat(started.await(5, TimeUnit.SECONDS), is(true));
+        Thread second = new Thread(getOrCompute);
+        second.start();
+        long deadline = SystemClock.uptimeMillis() + 5000;
+        while (cache.joinCount() == 0 && SystemClock.uptimeMillis() < deadline) {
+            SystemClock.sleep(1);
+        }
+        release.countDown();
+        first.join();
+        second.join();
+
+        assertThat(computations.get(), is(1));
+        assertThat(cache.joinCount(), is(1));
+        assertThat(results.size(), is(2));
+        assertThat(results.get(0), sameInstance(results.get(1)));
+    }
+
+    @Test
+    public void testNullResultIsNotCached() {
+        ParsedContentCache<TestContent> cache = new ParsedContentCache<>();
+        final AtomicInteger computations = new AtomicInteger();
+        ParsedContentCache.Computer<TestContent> computer = new ParsedContentCache.Computer<TestContent>() {
+            @Override
+            public TestContent compute() {
+                computations.incrementAndGet();
+                return null;
+            }
+        };
+
+        assertThat(cache.getOrCompute(newId(0), computer), nullValue());
+        assertThat(cache.getOrCompute(newId(0), computer), nullValue());
+        assertThat(computations.get(), is(2));
+        assertThat(cache.size(), is(0));
+    }
+
+    private static Uri newId(int index) {
+        return Uri.parse("layer:///messages/" + index);
+    }
+
+    /**
+     * Returns IDs which ParsedContentCache places in the same stripe, spreading Uri hash codes the
+     * same way it does.
+     */
+    private static List<Uri> getSameStripeIds(int count) {
+        List<Uri> ids = new ArrayList<>();
+        int stripe = -1;
+        for (int i = 0; ids.size() < count; i++) {
+            Uri id = newId(i);
+            int hash = id.hashCode();
+            hash ^= (hash >>> 16);
+            if (stripe == -1) stripe = hash & (STRIPES - 1);
+            if ((hash & (STRIPES - 1)) == stripe) ids.add(id);
+        }
+        return ids;
+    }
+
+    private static class TestContent implements AtlasCellFactory.ParsedContent {
+        private final int mSize;
+
+        TestContent(int size) {
+            mSize = size;
+        }
+
+        @Override
+        public int sizeOf() {
+            return mSize;
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.view.View;
 import com.layer.atlas.adapters.AtlasConversationsAdapter;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.participant.ChatParticipantProvider;
+import com.layer.atlas.util.AtlasCacheRegistry;
 import com.layer.atlas.util.AvatarStyle;
 import com.layer.atlas.util.ConversationFormatter;
 import com.layer.atlas.util.ConversationStyle;
@@ -79,6 +80,7 @@ public class AtlasConversationsRecyclerView extends RecyclerView {
     }
 
     public AtlasConversationsRecyclerView init(LayerClient layerClient, Picasso picasso, ConversationFormatter conversationFormatter, ChatParticipantProvider chatParticipantProvider) {
+        AtlasCacheRegistry.init(getContext());
         mLinearLayoutManager = new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false);
         mLinearLayoutManager.setStackFromEnd(false);
         setLayoutManager(mLinearLayoutManager);
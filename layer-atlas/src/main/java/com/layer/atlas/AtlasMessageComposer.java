@@ -276,6 +276,20 @@ public class AtlasMessageComposer extends FrameLayout {
         }
     }
 
+    /**
+     * Performs cleanup when the Activity/Fragment using the composer is destroyed.  When the host is
+     * finishing, cancels attachments still being prepared, such as images being compressed in the
+     * background.  Otherwise, e.g. on rotation, they are still sent once prepared.
+     *
+     * @param isFinishing `true` if the host is finishing, e.g. from Activity.isFinishing().
+     */
+    public void onDestroy(boolean isFinishing) {
+        if (!isFinishing) return;
+        for (AttachmentSender sender : mAttachmentSenders) {
+            sender.cancel();
+        }
+    }
+
     @Override
     public void setEnabled(boolean enabled) {
         if (mAttachButton != null) mAttachButton.setEnabled(enabled);
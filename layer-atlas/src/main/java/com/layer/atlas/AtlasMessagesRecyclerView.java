@@ -25,9 +25,11 @@ import android.util.AttributeSet;
 import android.view.View;
 
 import com.layer.atlas.adapters.AtlasMessagesAdapter;
+import com.layer.atlas.adapters.MessagePrefetcher;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.messagetypes.MessageStyle;
 import com.layer.atlas.participant.ChatParticipantProvider;
+import com.layer.atlas.util.AtlasCacheRegistry;
 import com.layer.atlas.util.itemanimators.NoChangeAnimator;
 import com.layer.atlas.util.views.SwipeableItem;
 import com.layer.sdk.LayerClient;
@@ -42,6 +44,7 @@ public class AtlasMessagesRecyclerView extends RecyclerView {
     private AtlasMessagesAdapter mAdapter;
     private LinearLayoutManager mLayoutManager;
     private ItemTouchHelper mSwipeItemTouchHelper;
+    private MessagePrefetcher mPrefetcher;
     private boolean mShouldShowAvatarsInOneOnOneConversations;
 
     private MessageStyle mMessageStyle;
@@ -61,6 +64,7 @@ public class AtlasMessagesRecyclerView extends RecyclerView {
 
     public AtlasMessagesRecyclerView init(LayerClient layerClient, Picasso picasso,
                                           ChatParticipantProvider chatParticipantProvider) {
+        AtlasCacheRegistry.init(getContext());
         mLayoutManager = new LinearLayoutManager(getContext(), LinearLayoutManager.VERTICAL, false);
         mLayoutManager.setStackFromEnd(true);
         setLayoutManager(mLayoutManager);
@@ -89,6 +93,10 @@ public class AtlasMessagesRecyclerView extends RecyclerView {
             }
         });
 
+        // Warm upcoming image parts in the scroll direction
+        mPrefetcher = new MessagePrefetcher(mAdapter, mLayoutManager);
+        addOnScrollListener(mPrefetcher);
+
         setShouldShowAvatarInOneOnOneConversations(mShouldShowAvatarsInOneOnOneConversations);
         return this;
     }
@@ -102,6 +110,9 @@ public class AtlasMessagesRecyclerView extends RecyclerView {
      * Performs cleanup when the Activity/Fragment using the adapter is destroyed.
      */
     public void onDestroy() {
+        if (mPrefetcher != null) {
+            mPrefetcher.cancelAll();
+        }
         if (mAdapter != null) {
             mAdapter.onDestroy();
         }
@@ -133,6 +144,7 @@ public class AtlasMessagesRecyclerView extends RecyclerView {
         if (conversation != null) {
             mAdapter.setReadReceiptsEnabled(conversation.isReadReceiptsEnabled());
         }
+        mPrefetcher.cancelAll();
         mAdapter.setQuery(Query.builder(Message.class)
                 .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
                 .sortDescriptor(new SortDescriptor(Message.Property.POSITION, SortDescriptor.Order.ASCENDING))
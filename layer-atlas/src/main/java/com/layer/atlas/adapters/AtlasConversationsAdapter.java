@@ -1,6 +1,5 @@
 package com.layer.atlas.adapters;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
@@ -19,42 +18,36 @@ import com.layer.atlas.messagetypes.singlepartimage.SinglePartImageCellFactory;
 import com.layer.atlas.messagetypes.text.TextCellFactory;
 import com.layer.atlas.messagetypes.threepartimage.ThreePartImageCellFactory;
 import com.layer.atlas.participant.BotParticipant;
+import com.layer.atlas.participant.CachingChatParticipantProvider;
 import com.layer.atlas.participant.ChatParticipantProvider;
 import com.layer.atlas.participant.Participant;
 import com.layer.atlas.util.ConversationFormatter;
 import com.layer.atlas.util.ConversationStyle;
 import com.layer.atlas.util.IdentityRecyclerViewEventListener;
 import com.layer.atlas.util.Log;
-import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Conversation;
 import com.layer.sdk.messaging.Identity;
 import com.layer.sdk.messaging.Message;
-import com.layer.sdk.query.CompoundPredicate;
+import com.layer.sdk.query.ListViewController;
 import com.layer.sdk.query.Predicate;
 import com.layer.sdk.query.Query;
 import com.layer.sdk.query.RecyclerViewController;
 import com.layer.sdk.query.SortDescriptor;
 import com.squareup.picasso.Picasso;
 
-import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import io.reactivex.Observable;
-import io.reactivex.ObservableSource;
-import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.functions.Consumer;
-import io.reactivex.functions.Function;
-import io.reactivex.schedulers.Schedulers;
 
 public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConversationsAdapter.ViewHolder> implements AtlasBaseAdapter<Conversation>, RecyclerViewController.Callback {
     protected final LayerClient mLayerClient;
@@ -66,10 +59,11 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     private OnConversationClickListener mConversationClickListener;
     private ViewHolder.OnClickListener mViewHolderClickListener;
 
-    private final DateFormat mDateFormat;
-    private final DateFormat mTimeFormat;
     private ConversationStyle conversationStyle;
     private final IdentityRecyclerViewEventListener mIdentityEventListener;
+    private final LastSpeakerIndex mLastSpeakerIndex;
+    private final HistoricSyncScheduler mHistoricSyncScheduler;
+    private final ConversationRowModels mRowModels;
 
     protected Set<AtlasCellFactory> mCellFactories;
     private Set<AtlasCellFactory> mDefaultCellFactories;
@@ -78,7 +72,7 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     protected boolean mShouldShowAvatarPresence = true;
 
     private final CompositeDisposable compositeDisposable = new CompositeDisposable();
-    private final ChatParticipantProvider chatParticipantProvider;
+    private final CachingChatParticipantProvider chatParticipantProvider;
     public static final String BOT_PREFIX = "bot";
 
     public AtlasConversationsAdapter(Context context, LayerClient client, Picasso picasso, ConversationFormatter conversationFormatter, ChatParticipantProvider chatParticipantProvider) {
@@ -86,7 +80,7 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     }
 
     public AtlasConversationsAdapter(Context context, LayerClient client, Picasso picasso, Collection<String> updateAttributes, ConversationFormatter conversationFormatter, ChatParticipantProvider chatParticipantProvider) {
-        this.chatParticipantProvider = chatParticipantProvider;
+        this.chatParticipantProvider = CachingChatParticipantProvider.wrap(chatParticipantProvider);
         mConversationFormatter = conversationFormatter;
         Query<Conversation> query = Query.builder(Conversation.class)
                 /* Only show conversations we're still a member of */
@@ -97,10 +91,21 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
                 .build();
         mQueryController = client.newRecyclerViewController(query, updateAttributes, this);
         mLayerClient = client;
+        mRowModels = new ConversationRowModels(context, client, new ConversationRowModels.PreviewResolver() {
+            @Override
+            public String getPreviewText(Context context, Message message) {
+                return getLastMessageString(context, message);
+            }
+        }, BOT_PREFIX);
+        mQueryController.setPreProcessCallback(new ListViewController.PreProcessCallback<Conversation>() {
+            @Override
+            public void onCache(ListViewController listViewController, Conversation conversation) {
+                // Replaces any previous model, so change callbacks usually bind the model built here
+                mRowModels.build(conversation);
+            }
+        });
         mPicasso = picasso;
         mInflater = LayoutInflater.from(context);
-        mDateFormat = android.text.format.DateFormat.getDateFormat(context);
-        mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
         mViewHolderClickListener = new ViewHolder.OnClickListener() {
             @Override
             public void onClick(ViewHolder viewHolder) {
@@ -123,6 +128,11 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
 
         mIdentityEventListener = new IdentityRecyclerViewEventListener(this);
         mLayerClient.registerEventListener(mIdentityEventListener);
+
+        mLastSpeakerIndex = new LastSpeakerIndex(client);
+        mLayerClient.registerEventListener(mLastSpeakerIndex);
+
+        mHistoricSyncScheduler = new HistoricSyncScheduler(client, this);
     }
 
     public AtlasConversationsAdapter addCellFactories(AtlasCellFactory... cellFactories) {
@@ -130,6 +140,8 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
             mCellFactories = new LinkedHashSet<>();
         }
         Collections.addAll(mCellFactories, cellFactories);
+        // Previews may now resolve to different CellFactories
+        mRowModels.clear();
         return this;
     }
 
@@ -146,6 +158,9 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     public void onDestroy() {
         compositeDisposable.clear();
         mLayerClient.unregisterEventListener(mIdentityEventListener);
+        mLayerClient.unregisterEventListener(mLastSpeakerIndex);
+        mRowModels.onDestroy();
+        mHistoricSyncScheduler.cancel();
     }
 
     //==============================================================================================
@@ -182,29 +197,8 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         return this;
     }
 
-    private void syncInitialMessages(final int start, final int length) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                long desiredHistory = mInitialHistory;
-                if (desiredHistory <= 0) return;
-                for (int i = start; i < start + length; i++) {
-                    try {
-                        final Conversation conversation = getItem(i);
-                        if (conversation == null || conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) {
-                            continue;
-                        }
-                        Query<Message> localCountQuery = Query.builder(Message.class)
-                                .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
-                                .build();
-                        long delta = desiredHistory - mLayerClient.executeQueryForCount(localCountQuery);
-                        if (delta > 0) conversation.syncMoreHistoricMessages((int) delta);
-                    } catch (IndexOutOfBoundsException e) {
-                        // Concurrent modification
-                    }
-                }
-            }
-        }).start();
+    private void syncInitialMessages(int start, int length) {
+        mHistoricSyncScheduler.schedule(start, length, mInitialHistory);
     }
 
 
@@ -229,69 +223,57 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         viewHolder.mAvatarCluster
                 .init(mPicasso)
                 .setStyle(conversationStyle.getAvatarStyle());
+        compositeDisposable.add(viewHolder.mDisposables);
         return viewHolder;
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder viewHolder) {
+        // Drop pending work for the recycled row
+        viewHolder.mDisposables.clear();
+    }
+
     @Override
     public void onBindViewHolder(final ViewHolder viewHolder, int position) {
         mQueryController.updateBoundPosition(position);
+        viewHolder.mDisposables.clear();
         final Conversation conversation = mQueryController.getItem(position);
-        Message lastMessage = conversation.getLastMessage();
-        Context context = viewHolder.itemView.getContext();
+        ConversationRowModels.RowModel model = mRowModels.get(conversation);
 
         viewHolder.setConversation(conversation);
-        final Set<Identity> identities = conversation.getParticipants();
-        identities.remove(mLayerClient.getAuthenticatedUser());
 
         // Add the position to the positions map for Identity updates
-        mIdentityEventListener.addIdentityPosition(position, identities);
-
+        mIdentityEventListener.addIdentityPosition(position, model.mIdentities);
 
         viewHolder.mTitleView.setText("");
-        viewHolder.applyStyle(conversation.getTotalUnreadMessageCount() > 0);
+        viewHolder.applyStyle(model.mUnread);
+        viewHolder.mMessageView.setText(model.mPreview);
+        viewHolder.mTimeView.setText(model.mTime);
 
-        if (lastMessage == null) {
-            viewHolder.mMessageView.setText(null);
-            viewHolder.mTimeView.setText(null);
-        } else {
-            viewHolder.mMessageView.setText(this.getLastMessageString(context, lastMessage));
-            if (lastMessage.getReceivedAt() == null) {
-                viewHolder.mTimeView.setText(null);
-            } else {
-                viewHolder.mTimeView.setText(Util.formatTime(context, lastMessage.getReceivedAt(), mTimeFormat, mDateFormat));
-            }
-        }
         //Bind bot or normal participants
-        if (identities.size() == 1 && identities.iterator().hasNext()) {
-            Identity identity = identities.iterator().next();
-            if (identity.getMetadata().containsKey(BOT_PREFIX)) {
-                viewHolder.mTitleView.setText(ConversationFormatter.getConversationMetadataTitle(conversation));
-                viewHolder.mAvatarCluster.setParticipants(BotParticipant.from(identity));
-            } else {
-                bindParticipants(viewHolder, conversation, identities);
-            }
+        if (model.mBot != null) {
+            viewHolder.mTitleView.setText(model.mTitle);
+            viewHolder.mAvatarCluster.setParticipants(BotParticipant.from(model.mBot));
         } else {
-            bindParticipants(viewHolder, conversation, identities);
+            bindParticipants(viewHolder, conversation, model.mIdentities, model.mParticipantIds);
         }
     }
 
     private void bindParticipants(final ViewHolder viewHolder,
                                   final Conversation conversation,
-                                  final Set<Identity> identities) {
-        compositeDisposable.add(chatParticipantProvider
-                .getParticipants(Util.getIdsFromIdentities(identities))
+                                  final Set<Identity> identities,
+                                  List<String> ids) {
+        List<Participant> cached = chatParticipantProvider.peek(ids);
+        if (cached != null) {
+            bindParticipants(viewHolder, conversation, identities, cached);
+            return;
+        }
+        viewHolder.mDisposables.add(chatParticipantProvider
+                .getParticipants(ids)
                 .subscribe(new Consumer<List<Participant>>() {
                     @Override
                     public void accept(List<Participant> participants) throws Exception {
-                        if (!participants.isEmpty()) {
-                            setPresenceStatus(participants, identities);
-                            viewHolder.mTitleView.setText(ConversationFormatter.getConversationTitle(participants, conversation));
-                            if (participants.size() > 1) {
-                                sortAvatars(participants, conversation, viewHolder);
-                            } else {
-                                viewHolder.mAvatarCluster.setParticipants(new LinkedHashSet<>(participants));
-                            }
-                        }
+                        bindParticipants(viewHolder, conversation, identities, participants);
                     }
                 }, new Consumer<Throwable>() {
                     @Override
@@ -301,6 +283,17 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
                 }));
     }
 
+    private void bindParticipants(ViewHolder viewHolder, Conversation conversation, Set<Identity> identities, List<Participant> participants) {
+        if (participants.isEmpty()) return;
+        setPresenceStatus(participants, identities);
+        viewHolder.mTitleView.setText(ConversationFormatter.getConversationTitle(participants, conversation));
+        if (participants.size() > 1) {
+            sortAvatars(participants, conversation, viewHolder);
+        } else {
+            viewHolder.mAvatarCluster.setParticipants(new LinkedHashSet<>(participants));
+        }
+    }
+
     private void setPresenceStatus(List<Participant> participants, Set<Identity> identities) {
         for (Identity identity : identities) {
             Participant participant = findParticipant(identity.getUserId(), participants);
@@ -323,80 +316,42 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     private void sortAvatars(final List<Participant> participants,
                              final Conversation conversation,
                              final ViewHolder viewHolder) {
-        compositeDisposable.add(Observable.fromIterable(participants)
-                .map(new Function<Participant, String>() {
-                    @Override
-                    public String apply(Participant identity) throws Exception {
-                        return identity.getId();
-                    }
-                }).flatMap(new Function<String, ObservableSource<List<Message>>>() {
-                    @Override
-                    public ObservableSource<List<Message>> apply(String identityId) throws Exception {
-                        return Observable.just(queryLastMessageForIdentity(conversation, identityId));
-                    }
-                }).filter(new io.reactivex.functions.Predicate<List<Message>>() {
-                    @Override
-                    public boolean test(List<Message> messages) throws Exception {
-                        return messages.size() > 0;
-                    }
-                }).map(new Function<List<Message>, Message>() {
-                    @Override
-                    public Message apply(List<Message> messages) throws Exception {
-                        return messages.get(0);
-                    }
-                }).sorted(new Comparator<Message>() {
-                    @SuppressLint("NewApi")
-                    @Override
-                    public int compare(Message message1, Message message2) {
-                        return Long.compare(message1.getPosition(), message2.getPosition());
-                    }
-                }).toList().map(new Function<List<Message>, Set<Participant>>() {
+        List<String> participantIds = new ArrayList<>(participants.size());
+        for (Participant participant : participants) {
+            participantIds.add(participant.getId());
+        }
+        List<String> speakerOrder = mLastSpeakerIndex.peek(conversation, participantIds);
+        if (speakerOrder != null) {
+            viewHolder.mAvatarCluster.setParticipants(sortParticipants(participants, speakerOrder));
+            return;
+        }
+        viewHolder.mDisposables.add(mLastSpeakerIndex.load(conversation, participantIds)
+                .subscribe(new Consumer<List<String>>() {
                     @Override
-                    public Set<Participant> apply(List<Message> messages) throws Exception {
-                        return sortIdentities(participants, messages);
+                    public void accept(List<String> speakerOrder) throws Exception {
+                        viewHolder.mAvatarCluster.setParticipants(sortParticipants(participants, speakerOrder));
                     }
-                })
-                .subscribeOn(Schedulers.io())
-                .observeOn(AndroidSchedulers.mainThread())
-                .subscribe(new Consumer<Set<Participant>>() {
+                }, new Consumer<Throwable>() {
                     @Override
-                    public void accept(Set<Participant> identities) throws Exception {
-                        viewHolder.mAvatarCluster.setParticipants(identities);
+                    public void accept(Throwable throwable) throws Exception {
+                        Log.e("Error during avatar sorting", throwable);
                     }
                 }));
     }
 
-    @SuppressWarnings("unchecked")
-    private List<Message> queryLastMessageForIdentity(Conversation conversation, String identityId) {
-        Query.Builder<Message> query = Query.builder(Message.class)
-                .predicate(new CompoundPredicate(CompoundPredicate.Type.AND,
-                        new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation),
-                        new Predicate(Message.Property.SENDER_USER_ID, Predicate.Operator.EQUAL_TO, identityId)))
-                .sortDescriptor(new SortDescriptor(Message.Property.POSITION, SortDescriptor.Order.DESCENDING))
-                .limit(1);
-
-        return mLayerClient.executeQuery(query.build(), Query.ResultType.OBJECTS);
-    }
-
     /**
-     * Sort identities in order first identities without any messages(random order) and then sorted by last message sent.
+     * Sort participants in order first participants without any recent messages and then sorted by
+     * last message sent.
      */
-    private Set<Participant> sortIdentities(List<Participant> participants, List<Message> messages) {
-        Map<String, Participant> participantsMap = Observable.fromIterable(participants)
-                .toMap(new Function<Participant, String>() {
-                    @Override
-                    public String apply(Participant identity) throws Exception {
-                        return identity.getId();
-                    }
-                }).blockingGet();
+    private static Set<Participant> sortParticipants(List<Participant> participants, List<String> speakerOrder) {
+        Map<String, Participant> participantsMap = new LinkedHashMap<>(participants.size());
+        for (Participant participant : participants) {
+            participantsMap.put(participant.getId(), participant);
+        }
         List<Participant> sortedParticipants = new ArrayList<>(participants.size());
-        for (Message sortedMessage : messages) {
-            Identity sender = sortedMessage.getSender();
-            String identityId = sender != null ? sender.getUserId() : null;
-            if (identityId != null && participantsMap.containsKey(identityId)) {
-                sortedParticipants.add(participantsMap.get(identityId));
-                participantsMap.remove(identityId);
-            }
+        for (String speakerId : speakerOrder) {
+            Participant participant = participantsMap.remove(speakerId);
+            if (participant != null) sortedParticipants.add(participant);
         }
         Set<Participant> allParticipants = new LinkedHashSet<>(participants.size());
         allParticipants.addAll(participantsMap.values());
@@ -434,6 +389,10 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
     // Util methods
     //==============================================================================================
 
+    /**
+     * Resolves the preview text for the given Message.  Called from the row model stage on a
+     * background thread.
+     */
     private String getLastMessageString(Context context, Message message) {
         Set<AtlasCellFactory> cellFactories = (mCellFactories == null || mCellFactories.isEmpty()) ? getDefaultCellFactories() : mCellFactories;
 
@@ -446,7 +405,7 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         return GenericCellFactory.getPreview(context, message);
     }
 
-    private Set<AtlasCellFactory> getDefaultCellFactories() {
+    private synchronized Set<AtlasCellFactory> getDefaultCellFactories() {
         if (mDefaultCellFactories == null) {
             mDefaultCellFactories = new LinkedHashSet<>();
         }
@@ -559,6 +518,9 @@ public class AtlasConversationsAdapter extends RecyclerView.Adapter<AtlasConvers
         protected Conversation mConversation;
         protected OnClickListener mClickListener;
 
+        // Pending work for the bound Conversation, disposed on rebind and recycle
+        protected final CompositeDisposable mDisposables = new CompositeDisposable();
+
         public ViewHolder(View itemView, ConversationStyle conversationStyle, boolean shouldShowAvatarPresence) {
             super(itemView);
             itemView.setOnClickListener(this);
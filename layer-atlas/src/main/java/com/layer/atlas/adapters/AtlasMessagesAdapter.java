@@ -8,6 +8,7 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v7.widget.RecyclerView;
 import android.util.DisplayMetrics;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -19,14 +20,18 @@ import com.layer.atlas.AtlasAvatar;
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
 import com.layer.atlas.messagetypes.MessageStyle;
+import com.layer.atlas.participant.CachingChatParticipantProvider;
 import com.layer.atlas.participant.ChatParticipantProvider;
 import com.layer.atlas.participant.Participant;
+import com.layer.atlas.util.AtlasCacheRegistry;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.IdentityRecyclerViewEventListener;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Identity;
 import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.MessagePart;
 import com.layer.sdk.query.ListViewController;
 import com.layer.sdk.query.Query;
 import com.layer.sdk.query.RecyclerViewController;
@@ -35,8 +40,10 @@ import com.squareup.picasso.Picasso;
 import java.text.DateFormat;
 import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -70,6 +77,8 @@ import io.reactivex.functions.Consumer;
 public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdapter.ViewHolder> implements AtlasBaseAdapter<Message>, RecyclerViewController.Callback {
     private final static int VIEW_TYPE_FOOTER = 0;
     private static final String BOT_ID_PREFIX = "transient_";
+    private static final int CELL_TYPE_CACHE_SIZE = 1024;
+    private static final int CELL_TYPE_ENTRY_BYTES = HeapSize.object(4, 5);
 
     protected final LayerClient mLayerClient;
     protected final Picasso mPicasso;
@@ -87,8 +96,27 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     protected final Map<AtlasCellFactory, Integer> mMyViewTypesByCell = new HashMap<AtlasCellFactory, Integer>();
     protected final Map<AtlasCellFactory, Integer> mTheirViewTypesByCell = new HashMap<AtlasCellFactory, Integer>();
 
+    // Resolved CellTypes by Message ID, shared by the main thread and the PreProcessCallback
+    private final LruCache<Uri, CellType> mCellTypesByMessage = new LruCache<Uri, CellType>(CELL_TYPE_CACHE_SIZE);
+    private final AtlasCacheRegistry.Trimmable mCellTypesTrimmable = new AtlasCacheRegistry.Trimmable() {
+        @Override
+        public long getSizeBytes() {
+            // Keys and CellTypes are shared, so only count the map entries
+            return mCellTypesByMessage.size() * (long) CELL_TYPE_ENTRY_BYTES;
+        }
+
+        @Override
+        public void trimToFraction(float fraction) {
+            AtlasCacheRegistry.trim(mCellTypesByMessage, fraction);
+        }
+    };
+
+    // Most recently bound CellHolderSpecs by view type, for prefetching with matching dimensions
+    private final Map<Integer, AtlasCellFactory.CellHolderSpecs> mBoundSpecsByViewType = new HashMap<Integer, AtlasCellFactory.CellHolderSpecs>();
+
     // Dates and Clustering
-    private final Map<Uri, Cluster> mClusterCache = new HashMap<Uri, Cluster>();
+    private final MessageClusterer mClusterer;
+    private final ItemChangeBatcher<Message> mUpdateBatcher;
     private final DateFormat mDateFormat;
     private final DateFormat mTimeFormat;
 
@@ -107,35 +135,47 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     @Nullable
     private OnAvatarClickListener avatarClickListener;
     private final CompositeDisposable compositeDisposable = new CompositeDisposable();
-    private final ChatParticipantProvider chatParticipantProvider;
+    private final CachingChatParticipantProvider chatParticipantProvider;
 
     public AtlasMessagesAdapter(Context context, LayerClient layerClient, Picasso picasso,
                                 ChatParticipantProvider chatParticipantProvider) {
         mLayerClient = layerClient;
         mPicasso = picasso;
         mLayoutInflater = LayoutInflater.from(context);
-        this.chatParticipantProvider = chatParticipantProvider;
+        this.chatParticipantProvider = CachingChatParticipantProvider.wrap(chatParticipantProvider);
         mUiThreadHandler = new Handler(Looper.getMainLooper());
         mDateFormat = android.text.format.DateFormat.getDateFormat(context);
         mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
         mDisplayMetrics = context.getResources().getDisplayMetrics();
         mQueryController = layerClient.newRecyclerViewController(null, null, this);
+        mUpdateBatcher = new ItemChangeBatcher<Message>(this, this);
+        mClusterer = new MessageClusterer(new MessageClusterer.Callback() {
+            @Override
+            public Message getMessage(int position) {
+                if (position < 0 || position >= mQueryController.getItemCount()) return null;
+                return mQueryController.getItem(position);
+            }
+
+            @Override
+            public void onClusterChanged(Message message, int position) {
+                requestUpdate(message, position);
+            }
+        });
         mQueryController.setPreProcessCallback(new ListViewController.PreProcessCallback<Message>() {
             @Override
             public void onCache(ListViewController listViewController, Message message) {
-                for (AtlasCellFactory factory : mCellFactories) {
-                    if (factory.isBindable(message)) {
-                        factory.getParsedContent(mLayerClient, message);
-                        break;
-                    }
+                CellType cellType = getCellType(message);
+                if (cellType != null) {
+                    cellType.mCellFactory.getParsedContent(mLayerClient, message);
                 }
             }
         });
 
         setHasStableIds(false);
 
-        mIdentityEventListener = new IdentityRecyclerViewEventListener(this);
+        mIdentityEventListener = new IdentityRecyclerViewEventListener(this, Payload.IDENTITY);
         mLayerClient.registerEventListener(mIdentityEventListener);
+        AtlasCacheRegistry.register("AtlasMessagesAdapter cell types", AtlasCacheRegistry.PRIORITY_NORMAL, mCellTypesTrimmable);
     }
 
     /**
@@ -145,6 +185,9 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
      * @return This AtlasMessagesAdapter.
      */
     public AtlasMessagesAdapter setQuery(Query<Message> query) {
+        mCellTypesByMessage.evictAll();
+        mBoundSpecsByViewType.clear();
+        mClusterer.clear();
         mQueryController.setQuery(query);
         return this;
     }
@@ -161,11 +204,13 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
      */
     public void onDestroy() {
         compositeDisposable.clear();
+        mUpdateBatcher.cancel();
         mLayerClient.unregisterEventListener(mIdentityEventListener);
     }
 
     public AtlasMessagesAdapter setRecyclerView(RecyclerView recyclerView) {
         mRecyclerView = recyclerView;
+        mUpdateBatcher.setRecyclerView(recyclerView);
         return this;
     }
 
@@ -274,15 +319,17 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
             mCellFactories.add(cellFactory);
 
             mViewTypeCount++;
-            CellType me = new CellType(true, cellFactory);
+            CellType me = new CellType(true, cellFactory, mViewTypeCount);
             mCellTypesByViewType.put(mViewTypeCount, me);
             mMyViewTypesByCell.put(cellFactory, mViewTypeCount);
 
             mViewTypeCount++;
-            CellType notMe = new CellType(false, cellFactory);
+            CellType notMe = new CellType(false, cellFactory, mViewTypeCount);
             mCellTypesByViewType.put(mViewTypeCount, notMe);
             mTheirViewTypesByCell.put(cellFactory, mViewTypeCount);
         }
+        // Previously resolved Messages may now belong to a different CellFactory
+        mCellTypesByMessage.evictAll();
         return this;
     }
 
@@ -290,17 +337,68 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         return mCellFactories;
     }
 
+    /**
+     * Returns the AtlasCellFactory that binds the given Message, or `null` if none can.
+     */
+    public AtlasCellFactory getCellFactory(Message message) {
+        CellType cellType = getCellType(message);
+        return cellType == null ? null : cellType.mCellFactory;
+    }
+
+    /**
+     * Returns the CellHolderSpecs the given Message is expected to be bound with, based on the
+     * last Message bound with the same view type, or `null` if none has been bound yet.
+     */
+    AtlasCellFactory.CellHolderSpecs getExpectedSpecs(Message message, int position) {
+        CellType cellType = getCellType(message);
+        if (cellType == null) return null;
+        AtlasCellFactory.CellHolderSpecs bound = mBoundSpecsByViewType.get(cellType.mViewType);
+        if (bound == null) return null;
+        AtlasCellFactory.CellHolderSpecs specs = new AtlasCellFactory.CellHolderSpecs();
+        specs.isMe = bound.isMe;
+        specs.position = position;
+        specs.maxWidth = bound.maxWidth;
+        specs.maxHeight = bound.maxHeight;
+        return specs;
+    }
+
     @Override
     public int getItemViewType(int position) {
         if (mFooterView != null && position == mFooterPosition) return VIEW_TYPE_FOOTER;
-        Message message = getItem(position);
+        CellType cellType = getCellType(getItem(position));
+        return cellType == null ? -1 : cellType.mViewType;
+    }
+
+    /**
+     * Returns the CellType for the given Message, only matching the Message against the registered
+     * CellFactories if it has not been resolved before.  Resolved CellTypes are cached by Message
+     * ID until the Message changes, so this is safe to call on every layout pass and from the
+     * PreProcessCallback's background thread.
+     *
+     * @param message Message to resolve the CellType for.
+     * @return The CellType handling the given Message, or `null` if no CellFactory can bind it.
+     */
+    private CellType getCellType(Message message) {
+        Uri id = message.getId();
+        CellType cellType = mCellTypesByMessage.get(id);
+        if (cellType != null) return cellType;
+
         Identity authenticatedUser = mLayerClient.getAuthenticatedUser();
         boolean isMe = authenticatedUser != null && authenticatedUser.equals(message.getSender());
         for (AtlasCellFactory factory : mCellFactories) {
             if (!factory.isBindable(message)) continue;
-            return isMe ? mMyViewTypesByCell.get(factory) : mTheirViewTypesByCell.get(factory);
+            cellType = mCellTypesByViewType.get(isMe ? mMyViewTypesByCell.get(factory) : mTheirViewTypesByCell.get(factory));
+            mCellTypesByMessage.put(id, cellType);
+            return cellType;
+        }
+        return null;
+    }
+
+    private void invalidateCellTypes(int positionStart, int itemCount) {
+        for (int position = positionStart; position < positionStart + itemCount; position++) {
+            Message message = mQueryController.getItem(position);
+            if (message != null) mCellTypesByMessage.remove(message.getId());
         }
-        return -1;
     }
 
     @Override
@@ -314,9 +412,18 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         CellViewHolder rootViewHolder = new CellViewHolder(mLayoutInflater.inflate(rootResId, parent, false), mPicasso, mShouldShowAvatarPresence);
         rootViewHolder.mCellHolder = cellType.mCellFactory.createCellHolder(rootViewHolder.mCell, cellType.mMe, mLayoutInflater);
         rootViewHolder.mCellHolderSpecs = new AtlasCellFactory.CellHolderSpecs();
+        compositeDisposable.add(rootViewHolder.mDisposables);
         return rootViewHolder;
     }
 
+    @Override
+    public void onViewRecycled(ViewHolder viewHolder) {
+        if (viewHolder instanceof CellViewHolder) {
+            // Drop pending work for the recycled cell
+            ((CellViewHolder) viewHolder).mDisposables.clear();
+        }
+    }
+
     @Override
     public void onBindViewHolder(ViewHolder viewHolder, int position) {
         mQueryController.updateBoundPosition(position);
@@ -329,6 +436,39 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         }
     }
 
+    /**
+     * Binds only the parts of the cell affected by the given {@link Payload}s.  Falls back to a
+     * full bind when there are no payloads, an unknown payload, or the ViewHolder is bound to a
+     * different Message.
+     */
+    @Override
+    public void onBindViewHolder(ViewHolder viewHolder, int position, List<Object> payloads) {
+        if (payloads.isEmpty() || !(viewHolder instanceof CellViewHolder)
+                || (mFooterView != null && position == mFooterPosition)) {
+            onBindViewHolder(viewHolder, position);
+            return;
+        }
+
+        CellViewHolder cellViewHolder = (CellViewHolder) viewHolder;
+        Message message = getItem(position);
+        if (message == null || cellViewHolder.mMessage == null || !message.getId().equals(cellViewHolder.mMessage.getId())) {
+            onBindViewHolder(viewHolder, position);
+            return;
+        }
+
+        EnumSet<Payload> changes = EnumSet.noneOf(Payload.class);
+        for (Object payload : payloads) {
+            if (!(payload instanceof Payload)) {
+                onBindViewHolder(viewHolder, position);
+                return;
+            }
+            changes.add((Payload) payload);
+        }
+
+        mQueryController.updateBoundPosition(position);
+        bindPayloads(cellViewHolder, position, message, changes);
+    }
+
     public void bindFooter(ViewHolder viewHolder) {
         viewHolder.mRoot.removeAllViews();
         if (mFooterView.getParent() != null) {
@@ -340,148 +480,208 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     public void bindCellViewHolder(final CellViewHolder viewHolder, int position) {
         final Message message = getItem(position);
         viewHolder.mMessage = message;
+        viewHolder.mDisposables.clear();
         CellType cellType = mCellTypesByViewType.get(viewHolder.getItemViewType());
         boolean oneOnOne = message.getConversation().getParticipants().size() == 2;
 
         // Clustering and dates
-        Cluster cluster = getClustering(message, position);
+        MessageClusterer.Cluster cluster = mClusterer.getCluster(message, position);
+        bindClustering(viewHolder, message, cluster);
+
+        // Sender-dependent elements
+        Receipts receipts = null;
+        if (cellType.mMe) {
+            receipts = Receipts.of(message, mLayerClient.getAuthenticatedUser());
+            updateViewHolderForRecipientStatus(viewHolder, position, receipts);
+            bindSentState(viewHolder, message);
+        } else {
+            if (mReadReceiptsEnabled) {
+                message.markAsRead();
+            }
+            bindSender(viewHolder, position, message, cluster, oneOnOne);
+        }
+        viewHolder.mBoundState.update(message, receipts);
+
+        // CellHolder
+        AtlasCellFactory.CellHolder cellHolder = viewHolder.mCellHolder;
+        cellHolder.setMessage(message);
+
+        // Cell dimensions
+        LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) viewHolder.mCell.getLayoutParams();
+        int maxWidth = mRecyclerView.getWidth() - viewHolder.mRoot.getPaddingLeft() - viewHolder.mRoot.getPaddingRight() - params.leftMargin - params.rightMargin;
+        if (!oneOnOne && !cellType.mMe) {
+            // Subtract off avatar width if needed
+            ViewGroup.MarginLayoutParams avatarParams = (ViewGroup.MarginLayoutParams) viewHolder.mAvatar.getLayoutParams();
+            maxWidth -= avatarParams.width + avatarParams.rightMargin + avatarParams.leftMargin;
+        }
+        // TODO: subtract spacing rather than multiply by 0.8 to handle screen sizes more cleanly
+        int maxHeight = (int) viewHolder.mRoot.getContext().getResources().getDimension(R.dimen.atlas_messages_max_cell_height);
+
+        viewHolder.mCellHolderSpecs.isMe = cellType.mMe;
+        viewHolder.mCellHolderSpecs.position = position;
+        viewHolder.mCellHolderSpecs.maxWidth = maxWidth;
+        viewHolder.mCellHolderSpecs.maxHeight = maxHeight;
+        mBoundSpecsByViewType.put(cellType.mViewType, viewHolder.mCellHolderSpecs);
+        cellType.mCellFactory.bindCellHolder(cellHolder, cellType.mCellFactory.getParsedContent(mLayerClient, message), message, viewHolder.mCellHolderSpecs);
+    }
+
+    private void bindPayloads(CellViewHolder viewHolder, int position, Message message, EnumSet<Payload> changes) {
+        CellType cellType = mCellTypesByViewType.get(viewHolder.getItemViewType());
+        viewHolder.mCellHolderSpecs.position = position;
+
+        if (changes.contains(Payload.CLUSTER) || changes.contains(Payload.IDENTITY)) {
+            MessageClusterer.Cluster cluster = mClusterer.getCluster(message, position);
+            if (changes.contains(Payload.CLUSTER)) {
+                bindClustering(viewHolder, message, cluster);
+            }
+            if (!cellType.mMe) {
+                // Replaces any pending participant lookups
+                viewHolder.mDisposables.clear();
+                boolean oneOnOne = message.getConversation().getParticipants().size() == 2;
+                bindSender(viewHolder, position, message, cluster, oneOnOne);
+            }
+        }
+
+        Receipts receipts = null;
+        if (cellType.mMe) {
+            receipts = Receipts.of(message, mLayerClient.getAuthenticatedUser());
+            if (changes.contains(Payload.RECEIPT)) {
+                updateViewHolderForRecipientStatus(viewHolder, position, receipts);
+            }
+            if (changes.contains(Payload.SENT_STATE)) {
+                bindSentState(viewHolder, message);
+            }
+        }
+        viewHolder.mBoundState.update(message, receipts);
+    }
+
+    private void bindClustering(CellViewHolder viewHolder, Message message, MessageClusterer.Cluster cluster) {
         if (cluster.mClusterWithPrevious == null) {
             // No previous message, so no gap
             viewHolder.mClusterSpaceGap.setVisibility(View.GONE);
             bindDateTimeForMessage(viewHolder, message);
-        } else if (cluster.mDateBoundaryWithPrevious || cluster.mClusterWithPrevious == ClusterType.MORE_THAN_HOUR) {
+        } else if (cluster.mDateBoundaryWithPrevious || cluster.mClusterWithPrevious == MessageClusterer.ClusterType.MORE_THAN_HOUR) {
             // Crossed into a new day, or > 1hr lull in conversation
             bindDateTimeForMessage(viewHolder, message);
             viewHolder.mClusterSpaceGap.setVisibility(View.GONE);
-        } else if (cluster.mClusterWithPrevious == ClusterType.LESS_THAN_MINUTE) {
+        } else if (cluster.mClusterWithPrevious == MessageClusterer.ClusterType.LESS_THAN_MINUTE) {
             // Same sender with < 1m gap
             viewHolder.mClusterSpaceGap.setVisibility(View.GONE);
             viewHolder.mTimeGroup.setVisibility(View.GONE);
-        } else if (cluster.mClusterWithPrevious == ClusterType.NEW_SENDER || cluster.mClusterWithPrevious == ClusterType.LESS_THAN_HOUR) {
+        } else if (cluster.mClusterWithPrevious == MessageClusterer.ClusterType.NEW_SENDER || cluster.mClusterWithPrevious == MessageClusterer.ClusterType.LESS_THAN_HOUR) {
             // New sender or > 1m gap
             viewHolder.mClusterSpaceGap.setVisibility(View.VISIBLE);
             viewHolder.mTimeGroup.setVisibility(View.GONE);
         }
+    }
 
-        // Sender-dependent elements
-        if (cellType.mMe) {
-            updateViewHolderForRecipientStatus(viewHolder, position, message);
-
-            // Unsent and sent
-            if (!message.isSent()) {
-                viewHolder.mCell.setAlpha(0.5f);
-            } else {
-                viewHolder.mCell.setAlpha(1.0f);
-            }
+    private void bindSentState(CellViewHolder viewHolder, Message message) {
+        // Unsent and sent
+        if (!message.isSent()) {
+            viewHolder.mCell.setAlpha(0.5f);
         } else {
-            if (mReadReceiptsEnabled) {
-                message.markAsRead();
-            }
-            // Sender name, only for first message in cluster
-            if (!oneOnOne && (cluster.mClusterWithPrevious == null || cluster.mClusterWithPrevious == ClusterType.NEW_SENDER)) {
-                Identity sender = message.getSender();
-                if (sender != null) {
-                    if (isBot(sender)) {
-                        viewHolder.mUserName.setText(sender.getDisplayName());
-                    } else {
-                        participantAction(sender.getUserId(), new Consumer<Participant>() {
-                            @Override
-                            public void accept(Participant participant) throws Exception {
-                                viewHolder.mUserName.setText(participant.getName());
-                            }
-                        });
-                    }
+            viewHolder.mCell.setAlpha(1.0f);
+        }
+    }
 
+    /**
+     * Binds the sender name and avatar for Messages sent by remote actors.
+     */
+    private void bindSender(final CellViewHolder viewHolder, int position, final Message message, MessageClusterer.Cluster cluster, boolean oneOnOne) {
+        // Sender name, only for first message in cluster
+        if (!oneOnOne && (cluster.mClusterWithPrevious == null || cluster.mClusterWithPrevious == MessageClusterer.ClusterType.NEW_SENDER)) {
+            Identity sender = message.getSender();
+            if (sender != null) {
+                if (isBot(sender)) {
+                    viewHolder.mUserName.setText(sender.getDisplayName());
                 } else {
-                    viewHolder.mUserName.setText(R.string.atlas_message_item_unknown_user);
+                    participantAction(viewHolder, sender.getUserId(), new Consumer<Participant>() {
+                        @Override
+                        public void accept(Participant participant) throws Exception {
+                            viewHolder.mUserName.setText(participant.getName());
+                        }
+                    });
                 }
-                viewHolder.mUserName.setVisibility(View.VISIBLE);
 
-                // Add the position to the positions map for Identity updates
-                mIdentityEventListener.addIdentityPosition(position, Collections.singleton(sender));
             } else {
-                viewHolder.mUserName.setVisibility(View.GONE);
+                viewHolder.mUserName.setText(R.string.atlas_message_item_unknown_user);
             }
+            viewHolder.mUserName.setVisibility(View.VISIBLE);
 
-            // Avatars
-            if (oneOnOne) {
-                if (mShouldShowAvatarInOneOnOneConversations) {
-                    final Identity sender = message.getSender();
-                    if (sender != null) {
-                        participantAction(sender.getUserId(), new Consumer<Participant>() {
-                            @Override
-                            public void accept(Participant participant) throws Exception {
-                                participant.setPresenceStatus(sender.getPresenceStatus());
-                                viewHolder.mAvatar.setVisibility(View.VISIBLE);
-                                viewHolder.mAvatar.setParticipants(participant);
-                            }
-                        });
-                    }
-                } else {
-                    viewHolder.mAvatar.setVisibility(View.GONE);
-                }
-            } else if (cluster.mClusterWithNext == null || cluster.mClusterWithNext != ClusterType.LESS_THAN_MINUTE) {
+            // Add the position to the positions map for Identity updates
+            mIdentityEventListener.addIdentityPosition(position, Collections.singleton(sender));
+        } else {
+            viewHolder.mUserName.setVisibility(View.GONE);
+        }
+
+        // Avatars
+        if (oneOnOne) {
+            if (mShouldShowAvatarInOneOnOneConversations) {
                 final Identity sender = message.getSender();
                 if (sender != null) {
-                    if (isBot(sender)) {
-                        viewHolder.mAvatar.setVisibility(View.INVISIBLE);// Invisible for clustered messages to preserve proper spacing
-                    } else {
-                        participantAction(sender.getUserId(), new Consumer<Participant>() {
-                            @Override
-                            public void accept(Participant participant) throws Exception {
-                                // Last message in cluster
-                                participant.setPresenceStatus(sender.getPresenceStatus());
-                                viewHolder.mAvatar.setVisibility(View.VISIBLE);
-                                viewHolder.mAvatar.setParticipants(participant);
-                                viewHolder.mAvatar.setOnClickListener(new View.OnClickListener() {
-                                    @Override
-                                    public void onClick(View view) {
-                                        if (avatarClickListener != null && message.getSender() != null) {
-                                            avatarClickListener.onAvatarClicked(message.getSender());
-                                        }
-                                    }
-                                });
-                            }
-                        });
-                    }
+                    participantAction(viewHolder, sender.getUserId(), new Consumer<Participant>() {
+                        @Override
+                        public void accept(Participant participant) throws Exception {
+                            participant.setPresenceStatus(sender.getPresenceStatus());
+                            viewHolder.mAvatar.setVisibility(View.VISIBLE);
+                            viewHolder.mAvatar.setParticipants(participant);
+                        }
+                    });
                 }
-
-                // Add the position to the positions map for Identity updates
-                mIdentityEventListener.addIdentityPosition(position, Collections.singleton(message.getSender()));
             } else {
-                // Invisible for clustered messages to preserve proper spacing
-                viewHolder.mAvatar.setVisibility(View.INVISIBLE);
+                viewHolder.mAvatar.setVisibility(View.GONE);
+            }
+        } else if (cluster.mClusterWithNext == null || cluster.mClusterWithNext != MessageClusterer.ClusterType.LESS_THAN_MINUTE) {
+            final Identity sender = message.getSender();
+            if (sender != null) {
+                if (isBot(sender)) {
+                    viewHolder.mAvatar.setVisibility(View.INVISIBLE);// Invisible for clustered messages to preserve proper spacing
+                } else {
+                    participantAction(viewHolder, sender.getUserId(), new Consumer<Participant>() {
+                        @Override
+                        public void accept(Participant participant) throws Exception {
+                            // Last message in cluster
+                            participant.setPresenceStatus(sender.getPresenceStatus());
+                            viewHolder.mAvatar.setVisibility(View.VISIBLE);
+                            viewHolder.mAvatar.setParticipants(participant);
+                            viewHolder.mAvatar.setOnClickListener(new View.OnClickListener() {
+                                @Override
+                                public void onClick(View view) {
+                                    if (avatarClickListener != null && message.getSender() != null) {
+                                        avatarClickListener.onAvatarClicked(message.getSender());
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
             }
-        }
-
-        // CellHolder
-        AtlasCellFactory.CellHolder cellHolder = viewHolder.mCellHolder;
-        cellHolder.setMessage(message);
 
-        // Cell dimensions
-        LinearLayout.LayoutParams params = (LinearLayout.LayoutParams) viewHolder.mCell.getLayoutParams();
-        int maxWidth = mRecyclerView.getWidth() - viewHolder.mRoot.getPaddingLeft() - viewHolder.mRoot.getPaddingRight() - params.leftMargin - params.rightMargin;
-        if (!oneOnOne && !cellType.mMe) {
-            // Subtract off avatar width if needed
-            ViewGroup.MarginLayoutParams avatarParams = (ViewGroup.MarginLayoutParams) viewHolder.mAvatar.getLayoutParams();
-            maxWidth -= avatarParams.width + avatarParams.rightMargin + avatarParams.leftMargin;
+            // Add the position to the positions map for Identity updates
+            mIdentityEventListener.addIdentityPosition(position, Collections.singleton(message.getSender()));
+        } else {
+            // Invisible for clustered messages to preserve proper spacing
+            viewHolder.mAvatar.setVisibility(View.INVISIBLE);
         }
-        // TODO: subtract spacing rather than multiply by 0.8 to handle screen sizes more cleanly
-        int maxHeight = (int) viewHolder.mRoot.getContext().getResources().getDimension(R.dimen.atlas_messages_max_cell_height);
-
-        viewHolder.mCellHolderSpecs.isMe = cellType.mMe;
-        viewHolder.mCellHolderSpecs.position = position;
-        viewHolder.mCellHolderSpecs.maxWidth = maxWidth;
-        viewHolder.mCellHolderSpecs.maxHeight = maxHeight;
-        cellType.mCellFactory.bindCellHolder(cellHolder, cellType.mCellFactory.getParsedContent(mLayerClient, message), message, viewHolder.mCellHolderSpecs);
     }
 
     private boolean isBot(Identity sender) {
         return sender.getUserId().startsWith(BOT_ID_PREFIX);
     }
 
-    private void participantAction(@NonNull String attendanceId, Consumer<Participant> actionConsumer) {
-        compositeDisposable.add(chatParticipantProvider.getParticipant(attendanceId)
+    private void participantAction(CellViewHolder viewHolder, @NonNull String attendanceId, Consumer<Participant> actionConsumer) {
+        Participant cached = chatParticipantProvider.peek(attendanceId);
+        if (cached != null) {
+            try {
+                actionConsumer.accept(cached);
+            } catch (Exception e) {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e("Failed to bind participant", e);
+                }
+            }
+            return;
+        }
+        viewHolder.mDisposables.add(chatParticipantProvider.getParticipant(attendanceId)
                 .subscribe(actionConsumer,
                         new Consumer<Throwable>() {
                             @Override
@@ -496,37 +696,20 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         this.avatarClickListener = onAvatarClickListener;
     }
 
-    private void updateViewHolderForRecipientStatus(CellViewHolder viewHolder, int position, Message message) {
+    private void updateViewHolderForRecipientStatus(CellViewHolder viewHolder, int position, Receipts receipts) {
         if (mReadReceiptsEnabled && mRecipientStatusPosition != null && mRecipientStatusPosition == position) {
-            int readCount = 0;
-            boolean delivered = false;
-            Map<Identity, Message.RecipientStatus> statuses = message.getRecipientStatus();
-            for (Map.Entry<Identity, Message.RecipientStatus> entry : statuses.entrySet()) {
-                // Only show receipts for other members
-                if (entry.getKey().equals(mLayerClient.getAuthenticatedUser())) continue;
-                // Skip receipts for members no longer in the conversation
-                if (entry.getValue() == null) continue;
-
-                switch (entry.getValue()) {
-                    case READ:
-                        readCount++;
-                        break;
-                    case DELIVERED:
-                        delivered = true;
-                        break;
-                }
-            }
+            int readCount = receipts.mReadCount;
             if (readCount > 0) {
                 viewHolder.mReceipt.setVisibility(View.VISIBLE);
                 // Use 2 to include one other participant plus the current user
-                if (statuses.size() > 2) {
+                if (receipts.mStatusCount > 2) {
                     String quantityString = viewHolder.mReceipt.getResources()
                             .getQuantityString(R.plurals.atlas_message_item_read_muliple_participants, readCount, readCount);
                     viewHolder.mReceipt.setText(quantityString);
                 } else {
                     viewHolder.mReceipt.setText(R.string.atlas_message_item_read);
                 }
-            } else if (delivered) {
+            } else if (receipts.mDelivered) {
                 viewHolder.mReceipt.setVisibility(View.VISIBLE);
                 viewHolder.mReceipt.setText(R.string.atlas_message_item_delivered);
             } else {
@@ -578,71 +761,12 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     // Clustering
     //==============================================================================================
 
-    // TODO: optimize by limiting search to positions in- and around- visible range
-    private Cluster getClustering(Message message, int position) {
-        Cluster result = mClusterCache.get(message.getId());
-        if (result == null) {
-            result = new Cluster();
-            mClusterCache.put(message.getId(), result);
-        }
-
-        int previousPosition = position - 1;
-        Message previousMessage = (previousPosition >= 0) ? getItem(previousPosition) : null;
-        if (previousMessage != null) {
-            result.mDateBoundaryWithPrevious = isDateBoundary(previousMessage.getReceivedAt(), message.getReceivedAt());
-            result.mClusterWithPrevious = ClusterType.fromMessages(previousMessage, message);
-
-            Cluster previousCluster = mClusterCache.get(previousMessage.getId());
-            if (previousCluster == null) {
-                previousCluster = new Cluster();
-                mClusterCache.put(previousMessage.getId(), previousCluster);
-            } else {
-                // does the previous need to change its clustering?
-                if ((previousCluster.mClusterWithNext != result.mClusterWithPrevious) ||
-                        (previousCluster.mDateBoundaryWithNext != result.mDateBoundaryWithPrevious)) {
-                    requestUpdate(previousMessage, previousPosition);
-                }
-            }
-            previousCluster.mClusterWithNext = result.mClusterWithPrevious;
-            previousCluster.mDateBoundaryWithNext = result.mDateBoundaryWithPrevious;
-        }
-
-        int nextPosition = position + 1;
-        Message nextMessage = (nextPosition < getItemCount()) ? getItem(nextPosition) : null;
-        if (nextMessage != null) {
-            result.mDateBoundaryWithNext = isDateBoundary(message.getReceivedAt(), nextMessage.getReceivedAt());
-            result.mClusterWithNext = ClusterType.fromMessages(message, nextMessage);
-
-            Cluster nextCluster = mClusterCache.get(nextMessage.getId());
-            if (nextCluster == null) {
-                nextCluster = new Cluster();
-                mClusterCache.put(nextMessage.getId(), nextCluster);
-            } else {
-                // does the next need to change its clustering?
-                if ((nextCluster.mClusterWithPrevious != result.mClusterWithNext) ||
-                        (nextCluster.mDateBoundaryWithPrevious != result.mDateBoundaryWithNext)) {
-                    requestUpdate(nextMessage, nextPosition);
-                }
-            }
-            nextCluster.mClusterWithPrevious = result.mClusterWithNext;
-            nextCluster.mDateBoundaryWithPrevious = result.mDateBoundaryWithNext;
-        }
-
-        return result;
-    }
-
-    private static boolean isDateBoundary(Date d1, Date d2) {
-        if (d1 == null || d2 == null) return false;
-        return (d1.getYear() != d2.getYear()) || (d1.getMonth() != d2.getMonth()) || (d1.getDay() != d2.getDay());
-    }
-
-    private void requestUpdate(final Message message, final int lastPosition) {
-        mUiThreadHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                notifyItemChanged(getPosition(message, lastPosition));
-            }
-        });
+    /**
+     * Queues the given Message for re-rendering on the next frame.  Requests made during the same
+     * frame are coalesced into as few `notifyItemRangeChanged()` calls as possible.
+     */
+    private void requestUpdate(Message message, int lastPosition) {
+        mUpdateBatcher.requestUpdate(message, lastPosition, Payload.CLUSTER);
     }
 
 
@@ -656,18 +780,40 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
             // Set new position to last in the list
             mRecipientStatusPosition = mQueryController.getItemCount() - 1;
             if (oldPosition != null) {
-                notifyItemChanged(oldPosition);
+                notifyItemChanged(oldPosition, Payload.RECEIPT);
             }
         }
     }
 
 
+    /**
+     * Compares the Message at the given position with the state it was last bound with.
+     *
+     * @return The Payloads covering the change, or `null` if the Message is not bound to a visible
+     * ViewHolder or changed in ways that require a full bind.
+     */
+    private EnumSet<Payload> getBoundChanges(int position) {
+        if (mRecyclerView == null) return null;
+        RecyclerView.ViewHolder holder = mRecyclerView.findViewHolderForAdapterPosition(position);
+        if (!(holder instanceof CellViewHolder)) return null;
+        CellViewHolder viewHolder = (CellViewHolder) holder;
+        Message message = mQueryController.getItem(position);
+        if (message == null || viewHolder.mMessage == null || !message.getId().equals(viewHolder.mMessage.getId())) {
+            return null;
+        }
+        return viewHolder.mBoundState.diff(message, mLayerClient.getAuthenticatedUser());
+    }
+
+
     //==============================================================================================
     // UI update callbacks
     //==============================================================================================
 
     @Override
     public void onQueryDataSetChanged(RecyclerViewController controller) {
+        mCellTypesByMessage.evictAll();
+        mClusterer.clear();
+        mUpdateBatcher.cancel();
         mFooterPosition = mQueryController.getItemCount();
         updateRecipientStatusPosition();
         notifyDataSetChanged();
@@ -679,7 +825,15 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
 
     @Override
     public void onQueryItemChanged(RecyclerViewController controller, int position) {
-        notifyItemChanged(position);
+        EnumSet<Payload> changes = getBoundChanges(position);
+        if (changes == null || changes.isEmpty()) {
+            invalidateCellTypes(position, 1);
+            notifyItemChanged(position);
+        } else {
+            for (Payload change : changes) {
+                notifyItemChanged(position, change);
+            }
+        }
 
         if (Log.isPerfLoggable()) {
             Log.perf("Messages adapter - onQueryItemChanged. Position: " + position);
@@ -688,6 +842,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
 
     @Override
     public void onQueryItemRangeChanged(RecyclerViewController controller, int positionStart, int itemCount) {
+        invalidateCellTypes(positionStart, itemCount);
         notifyItemRangeChanged(positionStart, itemCount);
 
         if (Log.isPerfLoggable()) {
@@ -700,6 +855,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         mFooterPosition++;
         updateRecipientStatusPosition();
         notifyItemInserted(position);
+        mClusterer.onItemRangeInserted(position, 1);
         if (mAppendListener != null && (position + 1) == getItemCount()) {
             mAppendListener.onMessageAppend(this, getItem(position));
         }
@@ -714,6 +870,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         mFooterPosition += itemCount;
         updateRecipientStatusPosition();
         notifyItemRangeInserted(positionStart, itemCount);
+        mClusterer.onItemRangeInserted(positionStart, itemCount);
         int positionEnd = positionStart + itemCount;
         if (mAppendListener != null && (positionEnd + 1) == getItemCount()) {
             mAppendListener.onMessageAppend(this, getItem(positionEnd));
@@ -729,6 +886,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         mFooterPosition--;
         updateRecipientStatusPosition();
         notifyItemRemoved(position);
+        mClusterer.onItemRangeRemoved(position, 1);
 
         if (Log.isPerfLoggable()) {
             Log.perf("Messages adapter - onQueryItemRemoved. Position: " + position);
@@ -740,6 +898,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         mFooterPosition -= itemCount;
         updateRecipientStatusPosition();
         notifyItemRangeRemoved(positionStart, itemCount);
+        mClusterer.onItemRangeRemoved(positionStart, itemCount);
 
         if (Log.isPerfLoggable()) {
             Log.perf("Messages adapter - onQueryItemRangeRemoved. Position start: " + positionStart + " Count: " + itemCount);
@@ -750,6 +909,7 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     public void onQueryItemMoved(RecyclerViewController controller, int fromPosition, int toPosition) {
         updateRecipientStatusPosition();
         notifyItemMoved(fromPosition, toPosition);
+        mClusterer.onItemMoved(fromPosition, toPosition);
 
         if (Log.isPerfLoggable()) {
             Log.perf("Conversations adapter - onQueryItemMoved. From: " + fromPosition + " To: " + toPosition);
@@ -793,6 +953,12 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         protected AtlasCellFactory.CellHolder mCellHolder;
         protected AtlasCellFactory.CellHolderSpecs mCellHolderSpecs;
 
+        // Pending work for the bound Message, disposed on rebind and recycle
+        protected final CompositeDisposable mDisposables = new CompositeDisposable();
+
+        // Message state at the last bind
+        protected final BoundState mBoundState = new BoundState();
+
         public CellViewHolder(View itemView, Picasso picasso, boolean shouldShowAvatarPresence) {
             super(itemView);
             mUserName = (TextView) itemView.findViewById(R.id.sender);
@@ -811,36 +977,97 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         }
     }
 
-    private enum ClusterType {
-        NEW_SENDER,
-        LESS_THAN_MINUTE,
-        LESS_THAN_HOUR,
-        MORE_THAN_HOUR;
+    /**
+     * Snapshot of the Message state a CellViewHolder was last bound with, used for mapping Message
+     * changes to Payloads.
+     */
+    static class BoundState {
+        private boolean mSent;
+        private long mReceivedAt;
+        // Receipts as displayed, or `null` for Messages from other members, which show none
+        private Receipts mReceipts;
+        private int mContent;
+
+        void update(Message message, Receipts receipts) {
+            mSent = message.isSent();
+            mReceivedAt = getReceivedAt(message);
+            mReceipts = receipts;
+            mContent = getContentState(message);
+        }
 
-        private static final long MILLIS_MINUTE = 60 * 1000;
-        private static final long MILLIS_HOUR = 60 * MILLIS_MINUTE;
+        /**
+         * @return The Payloads covering the changes since the last bind, or `null` if anything
+         * else changed.
+         */
+        EnumSet<Payload> diff(Message message, Identity authenticatedUser) {
+            if (mReceivedAt != getReceivedAt(message) || mContent != getContentState(message)) {
+                return null;
+            }
+            EnumSet<Payload> changes = EnumSet.noneOf(Payload.class);
+            if (mSent != message.isSent()) changes.add(Payload.SENT_STATE);
+            if (mReceipts != null && !mReceipts.equals(Receipts.of(message, authenticatedUser))) {
+                changes.add(Payload.RECEIPT);
+            }
+            return changes;
+        }
 
-        public static ClusterType fromMessages(Message older, Message newer) {
-            // Different users?
-            if (!older.getSender().equals(newer.getSender())) return NEW_SENDER;
+        private static long getReceivedAt(Message message) {
+            Date receivedAt = message.getReceivedAt();
+            return receivedAt == null ? 0 : receivedAt.getTime();
+        }
 
-            // Time clustering for same user?
-            Date oldReceivedAt = older.getReceivedAt();
-            Date newReceivedAt = newer.getReceivedAt();
-            if (oldReceivedAt == null || newReceivedAt == null) return LESS_THAN_MINUTE;
-            long delta = Math.abs(newReceivedAt.getTime() - oldReceivedAt.getTime());
-            if (delta <= MILLIS_MINUTE) return LESS_THAN_MINUTE;
-            if (delta <= MILLIS_HOUR) return LESS_THAN_HOUR;
-            return MORE_THAN_HOUR;
+        private static int getContentState(Message message) {
+            int result = 0;
+            for (MessagePart part : message.getMessageParts()) {
+                result = 31 * result + (part.isContentReady() ? 1 : 0);
+            }
+            return result;
         }
     }
 
-    private static class Cluster {
-        public boolean mDateBoundaryWithPrevious;
-        public ClusterType mClusterWithPrevious;
+    /**
+     * The receipt state displayed for a Message sent by the authenticated user.
+     */
+    static class Receipts {
+        int mReadCount;
+        boolean mDelivered;
+        int mStatusCount;
+
+        static Receipts of(Message message, Identity authenticatedUser) {
+            Receipts receipts = new Receipts();
+            Map<Identity, Message.RecipientStatus> statuses = message.getRecipientStatus();
+            receipts.mStatusCount = statuses.size();
+            for (Map.Entry<Identity, Message.RecipientStatus> entry : statuses.entrySet()) {
+                // Only show receipts for other members
+                if (entry.getKey().equals(authenticatedUser)) continue;
+                // Skip receipts for members no longer in the conversation
+                if (entry.getValue() == null) continue;
+
+                switch (entry.getValue()) {
+                    case READ:
+                        receipts.mReadCount++;
+                        break;
+                    case DELIVERED:
+                        receipts.mDelivered = true;
+                        break;
+                }
+            }
+            return receipts;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Receipts receipts = (Receipts) o;
+            return mReadCount == receipts.mReadCount && mDelivered == receipts.mDelivered
+                    && mStatusCount == receipts.mStatusCount;
+        }
 
-        public boolean mDateBoundaryWithNext;
-        public ClusterType mClusterWithNext;
+        @Override
+        public int hashCode() {
+            return 31 * (31 * mReadCount + (mDelivered ? 1 : 0)) + mStatusCount;
+        }
     }
 
     private static class MessagePosition {
@@ -856,10 +1083,12 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
     private static class CellType {
         protected final boolean mMe;
         protected final AtlasCellFactory mCellFactory;
+        protected final int mViewType;
 
-        public CellType(boolean me, AtlasCellFactory CellFactory) {
+        public CellType(boolean me, AtlasCellFactory CellFactory, int viewType) {
             mMe = me;
             mCellFactory = CellFactory;
+            mViewType = viewType;
         }
 
         @Override
@@ -882,6 +1111,31 @@ public class AtlasMessagesAdapter extends RecyclerView.Adapter<AtlasMessagesAdap
         }
     }
 
+    /**
+     * Change payloads used for re-binding only the affected parts of a cell.
+     */
+    public enum Payload {
+        /**
+         * Read and delivery receipts changed.
+         */
+        RECEIPT,
+
+        /**
+         * Clustering or date boundaries with neighbouring Messages changed.
+         */
+        CLUSTER,
+
+        /**
+         * The Message was sent.
+         */
+        SENT_STATE,
+
+        /**
+         * The sender's Identity changed.
+         */
+        IDENTITY
+    }
+
     /**
      * Listens for inserts to the end of an AtlasQueryAdapter.
      */
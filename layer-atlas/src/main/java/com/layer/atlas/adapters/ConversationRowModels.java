@@ -0,0 +1,255 @@
+package com.layer.atlas.adapters;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.layer.atlas.util.AtlasCacheRegistry;
+import com.layer.atlas.util.ConversationFormatter;
+import com.layer.atlas.util.HeapSize;
+import com.layer.atlas.util.Util;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Identity;
+import com.layer.sdk.messaging.LayerObject;
+import com.layer.sdk.messaging.Message;
+
+import java.text.DateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ConversationRowModels precomputes everything an AtlasConversationsAdapter row displays that can
+ * be derived from its Conversation: the title for bot Conversations, last Message preview and
+ * time, unread state, and the other participants.  Models are built from the RecyclerViewController
+ * PreProcessCallback on a background thread and cached by Conversation ID, so binding a row only
+ * assigns views.  Models record the last Message and unread state they were built from, and are
+ * rebuilt on get() if those changed without the Conversation being re-cached.  Models showing a
+ * participant Identity are dropped when it changes, since Identity changes re-bind rows directly.
+ * <p>
+ * Last Message previews are cached separately by Message ID and truncated to the displayable
+ * length, so rebuilding a row model does not re-resolve the preview of an unchanged Message.
+ */
+class ConversationRowModels implements AtlasCacheRegistry.Trimmable {
+    private static final int CACHE_SIZE = 256;
+    private static final int PREVIEW_CACHE_SIZE = 512;
+    private static final int PREVIEW_MAX_LENGTH = 120;
+    private static final long MILLIS_DAY = 24 * 60 * 60 * 1000;
+
+    private final Context mContext;
+    private final LayerClient mLayerClient;
+    private final PreviewResolver mPreviewResolver;
+    private final String mBotMetadataKey;
+    private final LruCache<Uri, RowModel> mModels = new LruCache<Uri, RowModel>(CACHE_SIZE);
+
+    // Truncated preview text by Message ID, outliving row models invalidated by e.g. unread changes
+    private final LruCache<Uri, String> mPreviews = new LruCache<Uri, String>(PREVIEW_CACHE_SIZE);
+
+    // Identity changes re-bind rows without re-caching their Conversations, e.g. bot metadata
+    private final LayerChangeEventListener.Weak mIdentityListener = new LayerChangeEventListener.Weak() {
+        @Override
+        public void onChangeEvent(LayerChangeEvent event) {
+            for (LayerChange change : event.getChanges()) {
+                if (change.getObjectType() != LayerObject.Type.IDENTITY) continue;
+                Uri identityId = ((Identity) change.getObject()).getId();
+                for (Map.Entry<Uri, RowModel> entry : mModels.snapshot().entrySet()) {
+                    if (entry.getValue().shows(identityId)) mModels.remove(entry.getKey());
+                }
+            }
+        }
+    };
+
+    // DateFormats are not thread-safe, so these are only used while holding `this`
+    private final DateFormat mDateFormat;
+    private final DateFormat mTimeFormat;
+    private long mTodayMidnight;
+
+    /**
+     * @param context         Context for resolving strings and date formats.
+     * @param layerClient     LayerClient for excluding the authenticated user from participants.
+     * @param previewResolver Resolves last Message preview text.
+     * @param botMetadataKey  Identity metadata key marking a bot participant.
+     */
+    ConversationRowModels(Context context, LayerClient layerClient, PreviewResolver previewResolver, String botMetadataKey) {
+        mContext = context.getApplicationContext();
+        mLayerClient = layerClient;
+        mPreviewResolver = previewResolver;
+        mBotMetadataKey = botMetadataKey;
+        mDateFormat = android.text.format.DateFormat.getDateFormat(context);
+        mTimeFormat = android.text.format.DateFormat.getTimeFormat(context);
+        AtlasCacheRegistry.register("ConversationRowModels", AtlasCacheRegistry.PRIORITY_NORMAL, this);
+        mLayerClient.registerEventListener(mIdentityListener);
+    }
+
+    /**
+     * Returns the cached RowModel for the given Conversation, building it on the calling thread if
+     * it is not cached yet or is stale.  Time text is re-formatted if the day changed since it was built.
+     */
+    RowModel get(Conversation conversation) {
+        RowModel model = mModels.get(conversation.getId());
+        if (model == null || !model.isBuiltFrom(conversation)) return build(conversation);
+        synchronized (this) {
+            if (model.mFormattedForMidnight != getTodayMidnight()) {
+                model.mTime = formatTime(model.mReceivedAt);
+                model.mFormattedForMidnight = mTodayMidnight;
+            }
+        }
+        return model;
+    }
+
+    /**
+     * Builds and caches the RowModel for the given Conversation.  Safe to call from any thread.
+     */
+    RowModel build(Conversation conversation) {
+        RowModel model = new RowModel();
+
+        Set<Identity> identities = conversation.getParticipants();
+        identities.remove(mLayerClient.getAuthenticatedUser());
+        model.mIdentities = Collections.unmodifiableSet(identities);
+        model.mParticipantIds = Collections.unmodifiableList(Util.getIdsFromIdentities(identities));
+        if (identities.size() == 1) {
+            Identity identity = identities.iterator().next();
+            if (identity.getMetadata().containsKey(mBotMetadataKey)) {
+                model.mBot = identity;
+                model.mTitle = ConversationFormatter.getConversationMetadataTitle(conversation);
+            }
+        }
+
+        model.mUnread = conversation.getTotalUnreadMessageCount() > 0;
+
+        Message lastMessage = conversation.getLastMessage();
+        if (lastMessage != null) {
+            model.mLastMessageId = lastMessage.getId();
+            model.mPreview = getPreview(lastMessage);
+            model.mReceivedAt = lastMessage.getReceivedAt();
+        }
+        synchronized (this) {
+            model.mTime = formatTime(model.mReceivedAt);
+            model.mFormattedForMidnight = mTodayMidnight;
+        }
+
+        mModels.put(conversation.getId(), model);
+        return model;
+    }
+
+    /**
+     * Stops dropping models on Identity changes.
+     */
+    void onDestroy() {
+        mLayerClient.unregisterEventListener(mIdentityListener);
+    }
+
+    /**
+     * Drops all row models and previews, e.g. when preview resolution changes.
+     */
+    void clear() {
+        mModels.evictAll();
+        mPreviews.evictAll();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        long size = 0;
+        for (RowModel model : mModels.snapshot().values()) {
+            // Previews are counted with the preview cache
+            size += HeapSize.object(1 + 8 + 8, 8) + HeapSize.of(model.mTitle) + HeapSize.of(model.mTime);
+            if (model.mParticipantIds != null) size += model.mParticipantIds.size() * HeapSize.REFERENCE;
+        }
+        for (String preview : mPreviews.snapshot().values()) {
+            size += HeapSize.of(preview);
+        }
+        return size;
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        AtlasCacheRegistry.trim(mModels, fraction);
+        AtlasCacheRegistry.trim(mPreviews, fraction);
+    }
+
+    private String getPreview(Message message) {
+        String preview = mPreviews.get(message.getId());
+        if (preview != null) return preview;
+
+        preview = mPreviewResolver.getPreviewText(mContext, message);
+        if (preview == null || preview.isEmpty()) {
+            // Content may not be downloaded yet, so only cache resolved previews
+            return preview;
+        }
+        if (preview.length() > PREVIEW_MAX_LENGTH) {
+            int end = PREVIEW_MAX_LENGTH;
+            if (Character.isHighSurrogate(preview.charAt(end - 1))) end--;
+            preview = preview.substring(0, end);
+        }
+        mPreviews.put(message.getId(), preview);
+        return preview;
+    }
+
+    private String formatTime(Date receivedAt) {
+        if (receivedAt == null) return null;
+        return Util.formatTime(mContext, receivedAt, mTimeFormat, mDateFormat, getTodayMidnight());
+    }
+
+    /**
+     * Returns the most recent midnight, only computing it with a Calendar once per day.
+     */
+    private long getTodayMidnight() {
+        if (mTodayMidnight == 0 || System.currentTimeMillis() >= mTodayMidnight + MILLIS_DAY) {
+            mTodayMidnight = Util.getTodayMidnight();
+        }
+        return mTodayMidnight;
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    interface PreviewResolver {
+        String getPreviewText(Context context, Message message);
+    }
+
+    static class RowModel {
+        /**
+         * Participants other than the authenticated user.
+         */
+        Set<Identity> mIdentities;
+        List<String> mParticipantIds;
+
+        /**
+         * The bot participant and metadata title, if this is a bot Conversation.
+         */
+        Identity mBot;
+        String mTitle;
+
+        boolean mUnread;
+        Uri mLastMessageId;
+        String mPreview;
+        Date mReceivedAt;
+        String mTime;
+        long mFormattedForMidnight;
+
+        /**
+         * Returns `true` if this model was built from the Conversation's current last Message and
+         * unread state.
+         */
+        boolean isBuiltFrom(Conversation conversation) {
+            if (mUnread != conversation.getTotalUnreadMessageCount() > 0) return false;
+            Message lastMessage = conversation.getLastMessage();
+            Uri lastMessageId = lastMessage == null ? null : lastMessage.getId();
+            return lastMessageId == null ? mLastMessageId == null : lastMessageId.equals(mLastMessageId);
+        }
+
+        boolean shows(Uri identityId) {
+            for (Identity identity : mIdentities) {
+                if (identity.getId().equals(identityId)) return true;
+            }
+            return false;
+        }
+    }
+}
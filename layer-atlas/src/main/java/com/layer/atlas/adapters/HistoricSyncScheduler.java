@@ -0,0 +1,217 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.LruCache;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.query.Predicate;
+import com.layer.sdk.query.Query;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HistoricSyncScheduler requests initial historic Messages for ranges of Conversations in an
+ * adapter, on a bounded background executor instead of a new Thread per data set change.
+ * <p>
+ * Ranges already waiting to be processed are not queued again, and each Conversation's measured
+ * local Message count, along with whether a sync was requested from it, is cached for a short
+ * time, so bursts of data set changes do not repeat the same count Queries or sync requests.  Once
+ * that expires the count is measured again, so a sync that failed or returned fewer Messages than
+ * requested is retried while more history is available.
+ */
+class HistoricSyncScheduler {
+    private static final int DEFAULT_MAX_THREADS = 1;
+    private static final int LOCAL_COUNT_CACHE_SIZE = 512;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+    private static final long DEFAULT_LOCAL_COUNT_TTL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final LayerClient mLayerClient;
+    private final AtlasBaseAdapter<Conversation> mAdapter;
+    private final ThreadPoolExecutor mExecutor;
+    private final long mLocalCountTtlMillis;
+    private final LruCache<Uri, LocalCount> mLocalCounts = new LruCache<Uri, LocalCount>(LOCAL_COUNT_CACHE_SIZE);
+    private final List<Range> mPendingRanges = new ArrayList<Range>();
+    private volatile boolean mCancelled;
+
+    // Progress metrics
+    private final AtomicInteger mRangesScheduled = new AtomicInteger();
+    private final AtomicInteger mRangesSkipped = new AtomicInteger();
+    private final AtomicInteger mConversationsChecked = new AtomicInteger();
+    private final AtomicInteger mCountQueries = new AtomicInteger();
+    private final AtomicInteger mSyncsRequested = new AtomicInteger();
+
+    HistoricSyncScheduler(LayerClient layerClient, AtlasBaseAdapter<Conversation> adapter) {
+        this(layerClient, adapter, DEFAULT_MAX_THREADS, DEFAULT_LOCAL_COUNT_TTL_MILLIS);
+    }
+
+    /**
+     * @param layerClient         LayerClient to count local Messages with.
+     * @param adapter             Adapter to resolve Conversation positions with.
+     * @param maxThreads          Maximum number of ranges processed concurrently.
+     * @param localCountTtlMillis Time after which a Conversation's local Message count is measured
+     *                            again.
+     */
+    HistoricSyncScheduler(LayerClient layerClient, AtlasBaseAdapter<Conversation> adapter, int maxThreads, long localCountTtlMillis) {
+        mLayerClient = layerClient;
+        mAdapter = adapter;
+        mLocalCountTtlMillis = localCountTtlMillis;
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "atlas-historic-sync-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules syncing up to `desiredHistory` Messages for Conversations in the given range of
+     * adapter positions.
+     */
+    void schedule(int start, int length, final long desiredHistory) {
+        if (mCancelled || desiredHistory <= 0 || length <= 0) return;
+        final Range range = new Range(start, start + length);
+        synchronized (mPendingRanges) {
+            for (Range pending : mPendingRanges) {
+                if (pending.contains(range)) {
+                    mRangesSkipped.incrementAndGet();
+                    return;
+                }
+            }
+            mPendingRanges.add(range);
+        }
+        mRangesScheduled.incrementAndGet();
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                synchronized (mPendingRanges) {
+                    mPendingRanges.remove(range);
+                }
+                sync(range, desiredHistory);
+            }
+        });
+    }
+
+    /**
+     * Cancels all pending and running work.  No further work is scheduled after cancelling.
+     */
+    void cancel() {
+        mCancelled = true;
+        mExecutor.shutdownNow();
+        synchronized (mPendingRanges) {
+            mPendingRanges.clear();
+        }
+    }
+
+    int getRangesScheduled() {
+        return mRangesScheduled.get();
+    }
+
+    int getRangesSkipped() {
+        return mRangesSkipped.get();
+    }
+
+    int getConversationsChecked() {
+        return mConversationsChecked.get();
+    }
+
+    int getCountQueries() {
+        return mCountQueries.get();
+    }
+
+    int getSyncsRequested() {
+        return mSyncsRequested.get();
+    }
+
+    private void sync(Range range, long desiredHistory) {
+        for (int i = range.mStart; i < range.mEnd; i++) {
+            if (mCancelled || Thread.currentThread().isInterrupted()) return;
+            Conversation conversation;
+            try {
+                conversation = mAdapter.getItem(i);
+            } catch (IndexOutOfBoundsException e) {
+                // Concurrent modification
+                return;
+            }
+            if (conversation == null) continue;
+            mConversationsChecked.incrementAndGet();
+            if (conversation.getHistoricSyncStatus() != Conversation.HistoricSyncStatus.MORE_AVAILABLE) {
+                continue;
+            }
+
+            Uri id = conversation.getId();
+            long now = SystemClock.elapsedRealtime();
+            LocalCount localCount = mLocalCounts.get(id);
+            if (localCount == null || now - localCount.mMeasuredAt > mLocalCountTtlMillis) {
+                Query<Message> localCountQuery = Query.builder(Message.class)
+                        .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
+                        .build();
+                localCount = new LocalCount(mLayerClient.executeQueryForCount(localCountQuery), now);
+                mCountQueries.incrementAndGet();
+                mLocalCounts.put(id, localCount);
+            }
+            // A sync requested from this count may still be running, so wait for the next count
+            if (localCount.mSyncRequested) continue;
+            long delta = desiredHistory - localCount.mCount;
+            if (delta > 0) {
+                conversation.syncMoreHistoricMessages((int) delta);
+                mSyncsRequested.incrementAndGet();
+                localCount.mSyncRequested = true;
+            }
+        }
+
+        if (Log.isPerfLoggable()) {
+            Log.perf("HistoricSyncScheduler synced range [" + range.mStart + ", " + range.mEnd + ")."
+                    + " Ranges: " + mRangesScheduled.get() + " scheduled, " + mRangesSkipped.get() + " skipped."
+                    + " Conversations checked: " + mConversationsChecked.get()
+                    + ", count queries: " + mCountQueries.get()
+                    + ", syncs requested: " + mSyncsRequested.get());
+        }
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class LocalCount {
+        final long mCount;
+        final long mMeasuredAt;
+        volatile boolean mSyncRequested;
+
+        LocalCount(long count, long measuredAt) {
+            mCount = count;
+            mMeasuredAt = measuredAt;
+        }
+    }
+
+    private static class Range {
+        final int mStart;
+        final int mEnd;
+
+        Range(int start, int end) {
+            mStart = start;
+            mEnd = end;
+        }
+
+        boolean contains(Range other) {
+            return mStart <= other.mStart && mEnd >= other.mEnd;
+        }
+    }
+}
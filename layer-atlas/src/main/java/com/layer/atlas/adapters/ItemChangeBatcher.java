@@ -0,0 +1,161 @@
+package com.layer.atlas.adapters;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.view.ViewCompat;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.query.Queryable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ItemChangeBatcher collects items that need re-rendering during a frame and notifies the adapter
+ * once per frame with the minimal set of `notifyItemRangeChanged()` calls.  Items are tracked
+ * rather than positions, and resolved to positions only when flushing, so inserts and removals
+ * between a request and the flush are handled.  Requests for the same item and payload within a
+ * frame are coalesced, as are requests for adjacent positions.
+ * <p>
+ * Must only be used from the main thread.
+ */
+class ItemChangeBatcher<Tquery extends Queryable> implements Runnable {
+    private final RecyclerView.Adapter mAdapter;
+    private final AtlasBaseAdapter<Tquery> mBaseAdapter;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Map<Object, Map<Tquery, Integer>> mPending = new HashMap<Object, Map<Tquery, Integer>>();
+    private RecyclerView mRecyclerView;
+    private boolean mScheduled;
+    private int mPendingRequests;
+    private int[] mPositions = new int[16];
+
+    // Counters
+    private long mRequestedCount;
+    private long mDispatchedCount;
+    private long mCoalescedCount;
+    private long mFlushCount;
+
+    /**
+     * @param adapter     Adapter to notify of changes.
+     * @param baseAdapter The same adapter, used for resolving items to positions.
+     */
+    ItemChangeBatcher(RecyclerView.Adapter adapter, AtlasBaseAdapter<Tquery> baseAdapter) {
+        mAdapter = adapter;
+        mBaseAdapter = baseAdapter;
+    }
+
+    /**
+     * Sets the RecyclerView displaying the adapter.  When set, flushes are aligned with its next
+     * animation frame rather than simply posted to the main thread.
+     */
+    void setRecyclerView(RecyclerView recyclerView) {
+        mRecyclerView = recyclerView;
+    }
+
+    /**
+     * Requests that the given item be re-rendered with the given payload on the next frame.
+     *
+     * @param item         Item to re-render.
+     * @param lastPosition Last known position of the item, used as a hint when flushing.
+     * @param payload      Payload passed to `notifyItemRangeChanged()`.
+     */
+    void requestUpdate(Tquery item, int lastPosition, Object payload) {
+        mRequestedCount++;
+        mPendingRequests++;
+        Map<Tquery, Integer> items = mPending.get(payload);
+        if (items == null) {
+            items = new LinkedHashMap<Tquery, Integer>();
+            mPending.put(payload, items);
+        }
+        items.put(item, lastPosition);
+        schedule();
+    }
+
+    /**
+     * Drops all pending requests without notifying the adapter.
+     */
+    void cancel() {
+        mHandler.removeCallbacks(this);
+        if (mRecyclerView != null) mRecyclerView.removeCallbacks(this);
+        mScheduled = false;
+        mPending.clear();
+        mPendingRequests = 0;
+    }
+
+    long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    /**
+     * @return The number of requests that did not need a notification of their own.
+     */
+    long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    long getFlushCount() {
+        return mFlushCount;
+    }
+
+    private void schedule() {
+        if (mScheduled) return;
+        mScheduled = true;
+        if (mRecyclerView != null) {
+            ViewCompat.postOnAnimation(mRecyclerView, this);
+        } else {
+            mHandler.post(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        mScheduled = false;
+        if (mPending.isEmpty()) return;
+
+        int dispatched = 0;
+        int itemCount = mAdapter.getItemCount();
+        for (Map.Entry<Object, Map<Tquery, Integer>> entry : mPending.entrySet()) {
+            Map<Tquery, Integer> items = entry.getValue();
+            if (mPositions.length < items.size()) mPositions = new int[items.size()];
+
+            int count = 0;
+            for (Map.Entry<Tquery, Integer> item : items.entrySet()) {
+                Integer position = mBaseAdapter.getPosition(item.getKey(), item.getValue());
+                if (position == null || position < 0 || position >= itemCount) continue;
+                mPositions[count++] = position;
+            }
+            Arrays.sort(mPositions, 0, count);
+
+            // Emit one notification per run of adjacent positions
+            int i = 0;
+            while (i < count) {
+                int start = mPositions[i];
+                int end = start;
+                while (i < count && mPositions[i] <= end + 1) {
+                    end = Math.max(end, mPositions[i]);
+                    i++;
+                }
+                mAdapter.notifyItemRangeChanged(start, end - start + 1, entry.getKey());
+                dispatched++;
+            }
+        }
+
+        mFlushCount++;
+        mDispatchedCount += dispatched;
+        mCoalescedCount += Math.max(0, mPendingRequests - dispatched);
+        if (Log.isPerfLoggable()) {
+            Log.perf("ItemChangeBatcher flushed " + mPendingRequests + " requests in " + dispatched
+                    + " notifications (total requested: " + mRequestedCount
+                    + ", coalesced: " + mCoalescedCount + ")");
+        }
+        mPending.clear();
+        mPendingRequests = 0;
+    }
+}
@@ -0,0 +1,249 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.util.LruCache;
+
+import com.layer.atlas.util.AtlasCacheRegistry;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.Conversation;
+import com.layer.sdk.messaging.Identity;
+import com.layer.sdk.messaging.LayerObject;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.query.CompoundPredicate;
+import com.layer.sdk.query.Predicate;
+import com.layer.sdk.query.Query;
+import com.layer.sdk.query.SortDescriptor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import io.reactivex.Single;
+import io.reactivex.android.schedulers.AndroidSchedulers;
+import io.reactivex.schedulers.Schedulers;
+
+/**
+ * LastSpeakerIndex keeps, per Conversation, the user IDs of recent Message senders ordered from
+ * least to most recently spoken.  A Conversation is indexed with a single Query over its most
+ * recent Messages, and kept up to date from Message insert events, so looking up the speaker order
+ * of an indexed Conversation does not touch the database.  A Message deletion drops its
+ * Conversation from the index, so it is queried again when next needed.
+ * <p>
+ * When fewer than {@link #MIN_SPEAKERS} participants spoke within the indexed window, the last
+ * Message of each remaining participant is looked up individually, so the most recent speakers are
+ * always known, as AtlasAvatar shows them.
+ * <p>
+ * The index is registered with AtlasCacheRegistry at low priority, since trimmed Conversations are
+ * simply queried again.
+ */
+class LastSpeakerIndex implements LayerChangeEventListener.BackgroundThread.Weak, AtlasCacheRegistry.Trimmable {
+    private static final int DEFAULT_MAX_CONVERSATIONS = 128;
+    private static final int DEFAULT_RECENT_MESSAGES = 64;
+    // AtlasAvatar shows the three most recent speakers
+    static final int MIN_SPEAKERS = 3;
+    // Speakers hold a handful of app-defined user IDs, so each entry is estimated at a fixed size
+    private static final int ENTRY_BYTES_ESTIMATE = 512;
+
+    private final LayerClient mLayerClient;
+    // Guarded by itself for get-or-create
+    private final LruCache<Uri, Speakers> mIndex;
+    private final int mRecentMessages;
+
+    LastSpeakerIndex(LayerClient layerClient) {
+        this(layerClient, DEFAULT_MAX_CONVERSATIONS, DEFAULT_RECENT_MESSAGES);
+    }
+
+    /**
+     * @param layerClient      LayerClient to query Messages from.
+     * @param maxConversations Maximum number of Conversations to index.
+     * @param recentMessages   Number of recent Messages to index a Conversation from.
+     */
+    LastSpeakerIndex(LayerClient layerClient, int maxConversations, int recentMessages) {
+        mLayerClient = layerClient;
+        mIndex = new LruCache<Uri, Speakers>(maxConversations);
+        mRecentMessages = recentMessages;
+        AtlasCacheRegistry.register("LastSpeakerIndex", AtlasCacheRegistry.PRIORITY_LOW, this);
+    }
+
+    /**
+     * Returns the indexed speaker order for the given Conversation, or `null` if the Conversation
+     * has not been indexed yet, or its most recent speakers among the given participants are not
+     * all known.
+     *
+     * @return User IDs ordered from least to most recently spoken.
+     */
+    List<String> peek(Conversation conversation, List<String> participantIds) {
+        Speakers speakers = mIndex.get(conversation.getId());
+        if (speakers == null || !speakers.isIndexed() || !speakers.getMissing(participantIds).isEmpty()) return null;
+        return speakers.getOrder();
+    }
+
+    /**
+     * Indexes the given Conversation off the main thread, looking up the last Message of any
+     * participants needed to know its most recent speakers, and emits its speaker order on the main
+     * thread.
+     */
+    Single<List<String>> load(final Conversation conversation, final List<String> participantIds) {
+        return Single.fromCallable(new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                // Index before querying, so Messages inserted meanwhile are merged rather than lost
+                Speakers speakers;
+                synchronized (mIndex) {
+                    speakers = mIndex.get(conversation.getId());
+                    if (speakers == null) {
+                        speakers = new Speakers();
+                        mIndex.put(conversation.getId(), speakers);
+                    }
+                }
+                if (!speakers.isIndexed()) {
+                    for (Message message : queryRecent(conversation)) {
+                        speakers.onMessage(message);
+                    }
+                    speakers.setIndexed();
+                }
+                for (String userId : speakers.getMissing(participantIds)) {
+                    speakers.onLookedUp(userId, queryLast(conversation, userId));
+                }
+                return speakers.getOrder();
+            }
+        }).subscribeOn(Schedulers.io()).observeOn(AndroidSchedulers.mainThread());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Message> queryRecent(Conversation conversation) {
+        Query<Message> query = Query.builder(Message.class)
+                .predicate(new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation))
+                .sortDescriptor(new SortDescriptor(Message.Property.POSITION, SortDescriptor.Order.DESCENDING))
+                .limit(mRecentMessages)
+                .build();
+        List<Message> messages = (List<Message>) mLayerClient.executeQuery(query, Query.ResultType.OBJECTS);
+        return messages == null ? Collections.<Message>emptyList() : messages;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Message queryLast(Conversation conversation, String userId) {
+        Query<Message> query = Query.builder(Message.class)
+                .predicate(new CompoundPredicate(CompoundPredicate.Type.AND,
+                        new Predicate(Message.Property.CONVERSATION, Predicate.Operator.EQUAL_TO, conversation),
+                        new Predicate(Message.Property.SENDER_USER_ID, Predicate.Operator.EQUAL_TO, userId)))
+                .sortDescriptor(new SortDescriptor(Message.Property.POSITION, SortDescriptor.Order.DESCENDING))
+                .limit(1)
+                .build();
+        List<Message> messages = (List<Message>) mLayerClient.executeQuery(query, Query.ResultType.OBJECTS);
+        return messages == null || messages.isEmpty() ? null : messages.get(0);
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return mIndex.size() * (long) ENTRY_BYTES_ESTIMATE;
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        AtlasCacheRegistry.trim(mIndex, fraction);
+    }
+
+    @Override
+    public void onChangeEvent(LayerChangeEvent event) {
+        for (LayerChange change : event.getChanges()) {
+            if (change.getObjectType() == LayerObject.Type.CONVERSATION) {
+                if (change.getChangeType() == LayerChange.Type.DELETE) {
+                    mIndex.remove(((Conversation) change.getObject()).getId());
+                }
+            } else if (change.getObjectType() == LayerObject.Type.MESSAGE) {
+                Message message = (Message) change.getObject();
+                Conversation conversation = message.getConversation();
+                if (conversation == null) continue;
+                if (change.getChangeType() == LayerChange.Type.DELETE) {
+                    // The deleted Message may have been a sender's last, so re-query when needed
+                    mIndex.remove(conversation.getId());
+                } else if (change.getChangeType() == LayerChange.Type.INSERT) {
+                    // Only update Conversations already indexed; others are queried when needed
+                    Speakers speakers = mIndex.get(conversation.getId());
+                    if (speakers != null) speakers.onMessage(message);
+                }
+            }
+        }
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Speakers {
+        private final Map<String, Long> mLastPositions = new HashMap<String, Long>();
+        // Participants whose last Message was looked up individually, including those with none
+        private final Set<String> mLookedUp = new HashSet<String>();
+        private boolean mIndexed;
+        private List<String> mOrder;
+
+        synchronized boolean isIndexed() {
+            return mIndexed;
+        }
+
+        synchronized void setIndexed() {
+            mIndexed = true;
+        }
+
+        synchronized void onLookedUp(String userId, Message lastMessage) {
+            mLookedUp.add(userId);
+            if (lastMessage != null) onMessage(lastMessage);
+        }
+
+        /**
+         * Returns the participants whose last Message must still be looked up to know the
+         * {@link #MIN_SPEAKERS} most recent speakers.  Participants outside the indexed window spoke
+         * before everyone in it, so they are only needed while too few speakers are known.
+         */
+        synchronized List<String> getMissing(List<String> participantIds) {
+            int known = 0;
+            List<String> missing = new ArrayList<String>();
+            for (String userId : participantIds) {
+                if (mLastPositions.containsKey(userId)) {
+                    known++;
+                } else if (!mLookedUp.contains(userId)) {
+                    missing.add(userId);
+                }
+            }
+            if (known >= MIN_SPEAKERS) return Collections.emptyList();
+            return missing;
+        }
+
+        synchronized void onMessage(Message message) {
+            Identity sender = message.getSender();
+            if (sender == null || sender.getUserId() == null) return;
+            Long lastPosition = mLastPositions.get(sender.getUserId());
+            if (lastPosition != null && lastPosition >= message.getPosition()) return;
+            mLastPositions.put(sender.getUserId(), message.getPosition());
+            mOrder = null;
+        }
+
+        synchronized List<String> getOrder() {
+            if (mOrder == null) {
+                List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(mLastPositions.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+                    @Override
+                    public int compare(Map.Entry<String, Long> lhs, Map.Entry<String, Long> rhs) {
+                        return lhs.getValue() < rhs.getValue() ? -1 : (lhs.getValue().equals(rhs.getValue()) ? 0 : 1);
+                    }
+                });
+                List<String> order = new ArrayList<String>(entries.size());
+                for (Map.Entry<String, Long> entry : entries) {
+                    order.add(entry.getKey());
+                }
+                mOrder = Collections.unmodifiableList(order);
+            }
+            return mOrder;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+
+import com.layer.sdk.messaging.Message;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * MessageClusterer computes date boundaries and sender clustering between adjacent Messages for an
+ * AtlasMessagesAdapter.  Clusters are only retained for a sliding window of positions around the
+ * most recently bound position, so memory stays flat regardless of the conversation length.
+ * <p>
+ * Neighbouring Messages are only re-rendered when a Message's own clustering changes between two
+ * binds (e.g. its received-at time was updated), or when Messages are inserted, removed, or moved
+ * next to them.  Binding a Message for the first time, such as while scrolling back through
+ * history, never requests updates for its neighbours.
+ */
+class MessageClusterer {
+    private static final int DEFAULT_WINDOW_RADIUS = 64;
+
+    private final Callback mCallback;
+    private final int mWindowRadius;
+    private final Map<Uri, Cluster> mClusters = new HashMap<Uri, Cluster>();
+    private int mWindowCenter = 0;
+
+    MessageClusterer(Callback callback) {
+        this(callback, DEFAULT_WINDOW_RADIUS);
+    }
+
+    /**
+     * @param callback     Callback for looking up Messages and re-rendering neighbours.
+     * @param windowRadius Number of positions on either side of the last bound position for which
+     *                     Clusters are retained.
+     */
+    MessageClusterer(Callback callback, int windowRadius) {
+        mCallback = callback;
+        mWindowRadius = windowRadius;
+    }
+
+    /**
+     * Returns the Cluster for the Message at the given position, computing it from the Messages
+     * currently adjacent to it.
+     *
+     * @param message  Message to cluster.
+     * @param position Position of the Message in the adapter.
+     * @return The Cluster for the given Message.
+     */
+    Cluster getCluster(Message message, int position) {
+        Message previousMessage = mCallback.getMessage(position - 1);
+        Message nextMessage = mCallback.getMessage(position + 1);
+
+        boolean dateBoundaryWithPrevious = false;
+        ClusterType clusterWithPrevious = null;
+        if (previousMessage != null) {
+            dateBoundaryWithPrevious = isDateBoundary(previousMessage.getReceivedAt(), message.getReceivedAt());
+            clusterWithPrevious = ClusterType.fromMessages(previousMessage, message);
+        }
+
+        boolean dateBoundaryWithNext = false;
+        ClusterType clusterWithNext = null;
+        if (nextMessage != null) {
+            dateBoundaryWithNext = isDateBoundary(message.getReceivedAt(), nextMessage.getReceivedAt());
+            clusterWithNext = ClusterType.fromMessages(message, nextMessage);
+        }
+
+        Cluster cluster = mClusters.get(message.getId());
+        if (cluster == null) {
+            cluster = new Cluster();
+            mClusters.put(message.getId(), cluster);
+        } else {
+            // Only a change to this Message's own clustering affects how its neighbours render
+            if (previousMessage != null && (cluster.mClusterWithPrevious != clusterWithPrevious
+                    || cluster.mDateBoundaryWithPrevious != dateBoundaryWithPrevious)) {
+                invalidate(position - 1);
+            }
+            if (nextMessage != null && (cluster.mClusterWithNext != clusterWithNext
+                    || cluster.mDateBoundaryWithNext != dateBoundaryWithNext)) {
+                invalidate(position + 1);
+            }
+        }
+
+        cluster.mPosition = position;
+        cluster.mDateBoundaryWithPrevious = dateBoundaryWithPrevious;
+        cluster.mClusterWithPrevious = clusterWithPrevious;
+        cluster.mDateBoundaryWithNext = dateBoundaryWithNext;
+        cluster.mClusterWithNext = clusterWithNext;
+
+        slideWindow(position);
+        return cluster;
+    }
+
+    /**
+     * Drops all Clusters, e.g. when the underlying Query or data set changes.
+     */
+    void clear() {
+        mClusters.clear();
+    }
+
+    void onItemRangeInserted(int positionStart, int itemCount) {
+        shiftPositions(positionStart, itemCount);
+        invalidate(positionStart - 1);
+        invalidate(positionStart + itemCount);
+    }
+
+    void onItemRangeRemoved(int positionStart, int itemCount) {
+        int positionEnd = positionStart + itemCount;
+        Iterator<Cluster> iterator = mClusters.values().iterator();
+        while (iterator.hasNext()) {
+            Cluster cluster = iterator.next();
+            if (cluster.mPosition >= positionStart && cluster.mPosition < positionEnd) {
+                iterator.remove();
+            } else if (cluster.mPosition >= positionEnd) {
+                cluster.mPosition -= itemCount;
+            }
+        }
+        invalidate(positionStart - 1);
+        invalidate(positionStart);
+    }
+
+    void onItemMoved(int fromPosition, int toPosition) {
+        for (Cluster cluster : mClusters.values()) {
+            if (cluster.mPosition == fromPosition) {
+                cluster.mPosition = toPosition;
+            } else if (fromPosition < toPosition && cluster.mPosition > fromPosition && cluster.mPosition <= toPosition) {
+                cluster.mPosition--;
+            } else if (fromPosition > toPosition && cluster.mPosition >= toPosition && cluster.mPosition < fromPosition) {
+                cluster.mPosition++;
+            }
+        }
+        // Old neighbours now sit around `fromPosition`, new neighbours around `toPosition`
+        invalidate(fromPosition - 1);
+        if (fromPosition != toPosition) invalidate(fromPosition);
+        invalidate(fromPosition + 1);
+        invalidate(toPosition - 1);
+        invalidate(toPosition + 1);
+    }
+
+    int size() {
+        return mClusters.size();
+    }
+
+    private void shiftPositions(int positionStart, int delta) {
+        for (Cluster cluster : mClusters.values()) {
+            if (cluster.mPosition >= positionStart) cluster.mPosition += delta;
+        }
+    }
+
+    /**
+     * Forgets the Cluster at the given position and asks for the Message there to be re-rendered.
+     * The Cluster is recomputed from scratch on the next bind.
+     */
+    private void invalidate(int position) {
+        Message message = mCallback.getMessage(position);
+        if (message == null) return;
+        mClusters.remove(message.getId());
+        mCallback.onClusterChanged(message, position);
+    }
+
+    private void slideWindow(int position) {
+        if (Math.abs(position - mWindowCenter) <= mWindowRadius / 2) return;
+        mWindowCenter = position;
+        Iterator<Cluster> iterator = mClusters.values().iterator();
+        while (iterator.hasNext()) {
+            if (Math.abs(iterator.next().mPosition - mWindowCenter) > mWindowRadius) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private static boolean isDateBoundary(Date d1, Date d2) {
+        if (d1 == null || d2 == null) return false;
+        return (d1.getYear() != d2.getYear()) || (d1.getMonth() != d2.getMonth()) || (d1.getDay() != d2.getDay());
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    interface Callback {
+        /**
+         * Returns the Message at the given position, or `null` if there is no Message there.
+         */
+        Message getMessage(int position);
+
+        /**
+         * Called when the Message at the given position must be re-rendered because its
+         * clustering with a neighbour changed.
+         */
+        void onClusterChanged(Message message, int position);
+    }
+
+    enum ClusterType {
+        NEW_SENDER,
+        LESS_THAN_MINUTE,
+        LESS_THAN_HOUR,
+        MORE_THAN_HOUR;
+
+        private static final long MILLIS_MINUTE = 60 * 1000;
+        private static final long MILLIS_HOUR = 60 * MILLIS_MINUTE;
+
+        public static ClusterType fromMessages(Message older, Message newer) {
+            // Different users?
+            if (!older.getSender().equals(newer.getSender())) return NEW_SENDER;
+
+            // Time clustering for same user?
+            Date oldReceivedAt = older.getReceivedAt();
+            Date newReceivedAt = newer.getReceivedAt();
+            if (oldReceivedAt == null || newReceivedAt == null) return LESS_THAN_MINUTE;
+            long delta = Math.abs(newReceivedAt.getTime() - oldReceivedAt.getTime());
+            if (delta <= MILLIS_MINUTE) return LESS_THAN_MINUTE;
+            if (delta <= MILLIS_HOUR) return LESS_THAN_HOUR;
+            return MORE_THAN_HOUR;
+        }
+    }
+
+    static class Cluster {
+        public int mPosition;
+
+        public boolean mDateBoundaryWithPrevious;
+        public ClusterType mClusterWithPrevious;
+
+        public boolean mDateBoundaryWithNext;
+        public ClusterType mClusterWithNext;
+    }
+}
@@ -0,0 +1,119 @@
+package com.layer.atlas.adapters;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+
+import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.sdk.messaging.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * MessagePrefetcher asks AtlasCellFactories to warm the Messages just ahead of the scroll position
+ * of an AtlasMessagesAdapter's RecyclerView, in the direction of scrolling.  The window grows with
+ * scroll velocity, and Messages leaving the window have their prefetches cancelled.
+ *
+ * @see AtlasCellFactory#onPrefetch(android.content.Context, Message, AtlasCellFactory.CellHolderSpecs)
+ * @see AtlasCellFactory#onCancelPrefetch(Message)
+ */
+public class MessagePrefetcher extends RecyclerView.OnScrollListener {
+    private static final int DEFAULT_PREFETCH_COUNT = 4;
+    private static final int MAX_WINDOW_MULTIPLIER = 3;
+
+    private final AtlasMessagesAdapter mAdapter;
+    private final LinearLayoutManager mLayoutManager;
+    private final int mPrefetchCount;
+
+    private Map<Uri, Prefetch> mPrefetches = new HashMap<Uri, Prefetch>();
+    private long mLastScrollTime;
+
+    public MessagePrefetcher(AtlasMessagesAdapter adapter, LinearLayoutManager layoutManager) {
+        this(adapter, layoutManager, DEFAULT_PREFETCH_COUNT);
+    }
+
+    /**
+     * @param adapter       Adapter to resolve Messages and CellFactories with.
+     * @param layoutManager LayoutManager to find visible positions with.
+     * @param prefetchCount Number of Messages to prefetch when scrolling slowly.  Fast scrolling
+     *                      prefetches up to three times as many.
+     */
+    public MessagePrefetcher(AtlasMessagesAdapter adapter, LinearLayoutManager layoutManager, int prefetchCount) {
+        mAdapter = adapter;
+        mLayoutManager = layoutManager;
+        mPrefetchCount = prefetchCount;
+    }
+
+    @Override
+    public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+        if (dy == 0 || mPrefetchCount <= 0) return;
+
+        // Scale the window by scroll speed in screen heights per second
+        long now = SystemClock.uptimeMillis();
+        long elapsed = Math.max(1, now - mLastScrollTime);
+        mLastScrollTime = now;
+        float screensPerSecond = Math.abs(dy) * 1000f / elapsed / Math.max(1, recyclerView.getHeight());
+        int count = mPrefetchCount * Math.min(MAX_WINDOW_MULTIPLIER, 1 + (int) screensPerSecond);
+
+        int start;
+        int end;
+        if (dy > 0) {
+            int last = mLayoutManager.findLastVisibleItemPosition();
+            if (last == RecyclerView.NO_POSITION) return;
+            start = last + 1;
+            end = last + count;
+        } else {
+            int first = mLayoutManager.findFirstVisibleItemPosition();
+            if (first == RecyclerView.NO_POSITION) return;
+            start = first - count;
+            end = first - 1;
+        }
+        prefetch(recyclerView, Math.max(0, start), Math.min(mAdapter.getItemCount() - 1, end));
+    }
+
+    /**
+     * Cancels all outstanding prefetches, e.g. when the Query changes or the list is destroyed.
+     */
+    public void cancelAll() {
+        for (Prefetch prefetch : mPrefetches.values()) {
+            prefetch.mCellFactory.onCancelPrefetch(prefetch.mMessage);
+        }
+        mPrefetches.clear();
+    }
+
+    private void prefetch(RecyclerView recyclerView, int start, int end) {
+        Map<Uri, Prefetch> prefetches = new HashMap<Uri, Prefetch>();
+        for (int position = start; position <= end; position++) {
+            Message message = mAdapter.getItem(position);
+            if (message == null) continue;
+            Uri id = message.getId();
+            Prefetch prefetch = mPrefetches.remove(id);
+            if (prefetch == null) {
+                AtlasCellFactory cellFactory = mAdapter.getCellFactory(message);
+                if (cellFactory == null) continue;
+                prefetch = new Prefetch(cellFactory, message);
+                cellFactory.onPrefetch(recyclerView.getContext(), message, mAdapter.getExpectedSpecs(message, position));
+            }
+            prefetches.put(id, prefetch);
+        }
+        // Whatever remains has left the window
+        cancelAll();
+        mPrefetches = prefetches;
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Prefetch {
+        final AtlasCellFactory mCellFactory;
+        final Message mMessage;
+
+        Prefetch(AtlasCellFactory cellFactory, Message message) {
+            mCellFactory = cellFactory;
+            mMessage = message;
+        }
+    }
+}
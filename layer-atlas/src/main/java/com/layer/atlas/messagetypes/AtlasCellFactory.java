@@ -1,14 +1,25 @@
 package com.layer.atlas.messagetypes;
 
 import android.content.Context;
+import android.net.Uri;
+import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
-import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.ViewGroup;
 
+import com.layer.atlas.util.AtlasCacheRegistry;
+import com.layer.atlas.util.Log;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Message;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
 /**
  * CellFactories manage one or more types ot Messages for display within an AtlasMessagesAdapter.
  * Factories know what types of Messages they can render, generate ViewHolders for rendering their
@@ -16,17 +27,30 @@ import com.layer.sdk.messaging.Message;
  * display.
  */
 public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHolder, Tcache extends AtlasCellFactory.ParsedContent> {
-    private LruCache<String, Tcache> mCache;
-    private final int mCacheBytes;
+    private final ParsedContentCache<Tcache> mCache;
+    private ParsedContentStore mStore;
     protected MessageStyle mMessageStyle;
 
     /**
-     * Constructs an AtlasCellFactory with a parsed content cache of `cacheBytes` size.
+     * Constructs an AtlasCellFactory with a parsed content cache limited by the budget shared by
+     * all AtlasCellFactories.
+     *
+     * @see ParsedContentCache#setGlobalMaxSize(int)
+     */
+    public AtlasCellFactory() {
+        this.mCache = new ParsedContentCache<Tcache>();
+        AtlasCacheRegistry.register(getClass().getSimpleName(), AtlasCacheRegistry.PRIORITY_NORMAL, mCache);
+    }
+
+    /**
+     * Constructs an AtlasCellFactory with a parsed content cache of at most `cacheBytes` size,
+     * within the budget shared by all AtlasCellFactories.
      *
      * @param cacheBytes Maximum bytes of parsed content to maintain in an LRU cache.
      */
     public AtlasCellFactory(int cacheBytes) {
-        this.mCacheBytes = cacheBytes;
+        this.mCache = new ParsedContentCache<Tcache>(cacheBytes);
+        AtlasCacheRegistry.register(getClass().getSimpleName(), AtlasCacheRegistry.PRIORITY_NORMAL, mCache);
     }
 
     /**
@@ -91,29 +115,132 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
         // Optional override
     }
 
+    /**
+     * Override to warm anything needed to bind the given Message soon, such as downloading and
+     * decoding images, while it is just ahead of the scroll position.  Called on the main thread.
+     *
+     * @param context Context of the RecyclerView displaying the Message.
+     * @param message Message likely to be bound soon.
+     * @param specs   Specifications the Message is expected to be bound with, or `null` if not yet
+     *                known.
+     * @see #onCancelPrefetch(Message)
+     */
+    public void onPrefetch(Context context, Message message, CellHolderSpecs specs) {
+        // Optional override
+    }
+
+    /**
+     * Override to cancel work started in onPrefetch() for a Message that left the prefetch window.
+     *
+     * @param message Message previously passed to onPrefetch().
+     * @see #onPrefetch(Context, Message, CellHolderSpecs)
+     */
+    public void onCancelPrefetch(Message message) {
+        // Optional override
+    }
+
     /**
      * Returns previously parsed content for this Message, or calls parseContent() if it has not
-     * been previously parsed.
+     * been previously parsed.  Safe to call from any thread; a Message being parsed on one thread is
+     * not parsed again by another.
      *
      * @param message Message to return parsed content object for.
      * @return Parsed content object for the given Message.
      */
-    public Tcache getParsedContent(LayerClient layerClient, Message message) {
-        if (mCache == null) {
-            mCache = new LruCache<String, Tcache>(mCacheBytes) {
-                @Override
-                protected int sizeOf(String key, Tcache value) {
-                    return value.sizeOf();
-                }
-            };
-        }
-
-        String id = message.getId().toString();
+    public Tcache getParsedContent(final LayerClient layerClient, final Message message) {
+        Uri id = message.getId();
         Tcache value = mCache.get(id);
         if (value != null) return value;
-        value = parseContent(layerClient, message);
-        if (value != null) mCache.put(id, value);
-        return value;
+        return mCache.compute(id, new ParsedContentCache.Computer<Tcache>() {
+            @Override
+            public Tcache compute() {
+                Tcache stored = readStoredContent(message);
+                if (stored != null) return stored;
+                Tcache parsed = parseContent(layerClient, message);
+                if (parsed != null) writeStoredContent(message, parsed);
+                return parsed;
+            }
+        });
+    }
+
+    /**
+     * Sets a ParsedContentStore to keep parsed content on disk, so content parsed in a previous
+     * session is read back instead of parsed again.  Only used if this CellFactory implements
+     * writeParsedContent() and readParsedContent().  The store is only read when content is
+     * pre-parsed on a background thread; content parsed on the main thread is parsed directly.
+     * Disabled by default.
+     *
+     * @param store ParsedContentStore to use, or `null` to disable.
+     */
+    public void setParsedContentStore(ParsedContentStore store) {
+        mStore = store;
+    }
+
+    /**
+     * Override to change when stored content written by an older version of this CellFactory's
+     * writeParsedContent() must be ignored.
+     *
+     * @return Version of the format written by writeParsedContent().
+     */
+    protected int getParsedContentVersion() {
+        return 1;
+    }
+
+    /**
+     * Override to allow storing parsed content with a ParsedContentStore.  Called on a background
+     * thread when possible.
+     *
+     * @param content Parsed content to write.
+     * @param out     Output to write content to.
+     * @return `true` if content was written, or `false` if it should not be stored, e.g. because
+     * it was parsed before the MessagePart content was downloaded.
+     */
+    protected boolean writeParsedContent(Tcache content, DataOutput out) throws IOException {
+        return false;
+    }
+
+    /**
+     * Override to read parsed content written by writeParsedContent().
+     *
+     * @param message Message the content was parsed from.
+     * @param in      Input to read content from.
+     * @return Parsed content, or `null` to parse the Message instead.
+     */
+    protected Tcache readParsedContent(Message message, DataInput in) throws IOException {
+        return null;
+    }
+
+    /**
+     * Returns the cache of parsed content, e.g. for inspecting its hit, miss, and eviction counts.
+     */
+    public ParsedContentCache<Tcache> getParsedContentCache() {
+        return mCache;
+    }
+
+    private Tcache readStoredContent(Message message) {
+        if (mStore == null) return null;
+        // The store reads from disk, so on the main thread parse directly instead
+        if (Looper.myLooper() == Looper.getMainLooper()) return null;
+        byte[] data = mStore.get(getClass().getName(), getParsedContentVersion(), message.getId());
+        if (data == null) return null;
+        try {
+            return readParsedContent(message, new DataInputStream(new ByteArrayInputStream(data)));
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not read stored content for " + message.getId(), e);
+            return null;
+        }
+    }
+
+    private void writeStoredContent(Message message, Tcache content) {
+        if (mStore == null) return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            if (!writeParsedContent(content, new DataOutputStream(bytes))) return;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not write stored content for " + message.getId(), e);
+            return;
+        }
+        mStore.put(getClass().getName(), getParsedContentVersion(), message.getId(), bytes.toByteArray());
     }
 
     public abstract boolean isType(Message message);
@@ -164,9 +291,11 @@ public abstract class AtlasCellFactory<Tholder extends AtlasCellFactory.CellHold
      */
     public interface ParsedContent {
         /**
-         * Returns the size of this ParsedContent in bytes.
+         * Returns the heap retained by this ParsedContent in bytes.  Called once when it is cached,
+         * possibly on the main thread, so it should not allocate.
          *
          * @return The size of this ParsedContent in bytes.
+         * @see com.layer.atlas.util.HeapSize
          */
         int sizeOf();
     }
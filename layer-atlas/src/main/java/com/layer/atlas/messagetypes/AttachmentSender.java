@@ -72,6 +72,14 @@ public abstract class AttachmentSender extends MessageSender {
         // Optional override
     }
 
+    /**
+     * Override to cancel send operations still in progress, e.g. attachments being prepared in
+     * the background.
+     */
+    public void cancel() {
+        // Optional override
+    }
+
     /**
      * Returns the title for this AttachmentSender, typically for use in the AtlasMessageComposer
      * attachment menu.
@@ -72,6 +72,36 @@ public abstract class MessageSender {
         return false;
     }
 
+    /**
+     * Reports progress preparing Messages in the background to a registered ProgressCallback.
+     *
+     * @param completed Number of Messages prepared, failed, or skipped so far.
+     * @param total     Number of Messages requested.
+     */
+    protected void notifyPrepareProgress(int completed, int total) {
+        if (mCallback instanceof ProgressCallback) {
+            ((ProgressCallback) mCallback).onPrepareProgress(this, completed, total);
+        }
+    }
+
+    /**
+     * Reports a Message that could not be prepared to a registered ProgressCallback.
+     */
+    protected void notifyPrepareFailed(Exception e) {
+        if (mCallback instanceof ProgressCallback) {
+            ((ProgressCallback) mCallback).onPrepareFailed(this, e);
+        }
+    }
+
+    /**
+     * Reports Messages abandoned by cancellation to a registered ProgressCallback.
+     */
+    protected void notifyPrepareCancelled(int cancelled) {
+        if (mCallback instanceof ProgressCallback) {
+            ((ProgressCallback) mCallback).onPrepareCancelled(this, cancelled);
+        }
+    }
+
     /**
      * Callback alerts external classes of MessageSender events.
      */
@@ -92,4 +122,36 @@ public abstract class MessageSender {
          */
         boolean beforeSend(MessageSender sender, LayerClient layerClient, Conversation conversation, Message message);
     }
-}
\ No newline at end of file
+
+    /**
+     * ProgressCallback additionally receives events from MessageSenders that prepare Messages in
+     * the background, such as image attachments that must be decoded and compressed.  All methods
+     * are called on the main thread.
+     */
+    public interface ProgressCallback extends Callback {
+        /**
+         * Called each time a Message finishes preparing, in send order.
+         *
+         * @param sender    The MessageSender preparing Messages.
+         * @param completed Number of Messages prepared, failed, or skipped so far.
+         * @param total     Number of Messages requested.
+         */
+        void onPrepareProgress(MessageSender sender, int completed, int total);
+
+        /**
+         * Called when a Message could not be prepared and will not be sent.
+         *
+         * @param sender The MessageSender preparing Messages.
+         * @param e      The cause of the failure.
+         */
+        void onPrepareFailed(MessageSender sender, Exception e);
+
+        /**
+         * Called when pending Messages are cancelled before being sent.
+         *
+         * @param sender    The MessageSender preparing Messages.
+         * @param cancelled Number of Messages that will not be sent.
+         */
+        void onPrepareCancelled(MessageSender sender, int cancelled);
+    }
+}
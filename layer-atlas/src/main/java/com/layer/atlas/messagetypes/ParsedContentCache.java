@@ -0,0 +1,410 @@
+package com.layer.atlas.messagetypes;
+
+import android.net.Uri;
+
+import com.layer.atlas.util.AtlasCacheRegistry;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParsedContentCache holds AtlasCellFactory parsed content by Message ID.  It is shared by the
+ * background pre-parsing thread and main thread binds, so it is split into independently locked
+ * stripes, each an LRU, and lookups only contend when they land on the same stripe.  The maximum
+ * size applies to the cache as a whole, evicting least recently used content from the largest
+ * stripe first, and never evicts the entry being added, so a single oversized entry is kept.
+ * Lookups are keyed by the Message ID Uri itself and allocate nothing.
+ * <p>
+ * {@link #getOrCompute(Uri, Computer)} parses each Message at most once at a time: a thread asking
+ * for content another thread is already parsing waits for that result instead of parsing again.
+ * <p>
+ * All caches also share a global budget, set with {@link #setGlobalMaxSize(int)}.  When their
+ * combined size exceeds it, least recently used content is evicted from the largest cache first.
+ * Sizes come from {@link AtlasCellFactory.ParsedContent#sizeOf()}, read once when content is added.
+ *
+ * @param <V> Type of parsed content.
+ */
+public class ParsedContentCache<V extends AtlasCellFactory.ParsedContent> implements AtlasCacheRegistry.Trimmable {
+    private static final int STRIPES = 8;
+    private static final int DEFAULT_GLOBAL_MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final CopyOnWriteArrayList<WeakReference<ParsedContentCache<?>>> sCaches = new CopyOnWriteArrayList<WeakReference<ParsedContentCache<?>>>();
+    // Zero until set, to follow the memory class once AtlasCacheRegistry is initialized
+    private static volatile int sGlobalMaxBytes;
+
+    private final Stripe<V>[] mStripes;
+    private final int mMaxBytes;
+    private final AtomicInteger mBytes = new AtomicInteger();
+    private final ConcurrentHashMap<Uri, Computation<V>> mComputing = new ConcurrentHashMap<Uri, Computation<V>>();
+
+    // Metrics
+    private final AtomicInteger mJoins = new AtomicInteger();
+
+    /**
+     * Constructs a ParsedContentCache limited only by the global budget.
+     */
+    public ParsedContentCache() {
+        this(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxBytes Maximum bytes of parsed content to keep in this cache, in addition to the
+     *                 global budget, as reported by {@link AtlasCellFactory.ParsedContent#sizeOf()}.
+     */
+    @SuppressWarnings("unchecked")
+    public ParsedContentCache(int maxBytes) {
+        mMaxBytes = maxBytes;
+        mStripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mStripes[i] = new Stripe<V>(mBytes);
+        }
+        sCaches.add(new WeakReference<ParsedContentCache<?>>(this));
+    }
+
+    /**
+     * Sets the maximum combined bytes of parsed content kept by all ParsedContentCaches.  Defaults
+     * to a thirty-second of the memory class or 4MB, whichever is smaller.
+     */
+    public static void setGlobalMaxSize(int maxBytes) {
+        sGlobalMaxBytes = maxBytes;
+        trimGlobal();
+    }
+
+    public static int getGlobalMaxSize() {
+        int maxBytes = sGlobalMaxBytes;
+        return maxBytes > 0 ? maxBytes : AtlasCacheRegistry.getBudget(32, DEFAULT_GLOBAL_MAX_BYTES);
+    }
+
+    /**
+     * Returns the combined bytes of parsed content kept by all ParsedContentCaches.
+     */
+    public static int getGlobalSize() {
+        int size = 0;
+        for (WeakReference<ParsedContentCache<?>> ref : sCaches) {
+            ParsedContentCache<?> cache = ref.get();
+            if (cache != null) size += cache.mBytes.get();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the cached content for the given Message ID, or `null` if not cached.
+     */
+    public V get(Uri id) {
+        return getStripe(id).get(id);
+    }
+
+    /**
+     * Returns the cached content for the given Message ID, computing and caching it if not cached.
+     * If another thread is already computing it, waits for and returns that thread's result.
+     * `null` results are returned but not cached.
+     */
+    public V getOrCompute(Uri id, Computer<V> computer) {
+        V value = get(id);
+        if (value != null) return value;
+        return compute(id, computer);
+    }
+
+    /**
+     * The miss path of getOrCompute(), for callers that already tried get() and want to avoid
+     * allocating a Computer on hits.
+     */
+    V compute(Uri id, Computer<V> computer) {
+        Stripe<V> stripe = getStripe(id);
+        Computation<V> computation = new Computation<V>();
+        Computation<V> existing = mComputing.putIfAbsent(id, computation);
+        if (existing != null) {
+            mJoins.incrementAndGet();
+            return existing.await();
+        }
+        try {
+            // Another computation may have finished between the miss and claiming this one
+            V value = stripe.peek(id);
+            if (value == null) {
+                value = computer.compute();
+                if (value != null) put(id, value);
+            }
+            computation.mValue = value;
+            return value;
+        } finally {
+            mComputing.remove(id, computation);
+            computation.mLatch.countDown();
+        }
+    }
+
+    public void put(Uri id, V value) {
+        getStripe(id).put(id, value);
+        while (mBytes.get() > mMaxBytes && evictEldest(id)) {
+            // Keep evicting
+        }
+        if (getGlobalSize() > getGlobalMaxSize()) trimGlobal();
+    }
+
+    public void remove(Uri id) {
+        getStripe(id).remove(id);
+    }
+
+    /**
+     * Evicts least recently used content, largest stripes first, until at most `maxBytes` remain
+     * in total.
+     */
+    public void trimToSize(int maxBytes) {
+        while (mBytes.get() > maxBytes && evictEldest(null)) {
+            // Keep evicting
+        }
+    }
+
+    public void evictAll() {
+        for (Stripe<V> stripe : mStripes) {
+            stripe.trimToSize(-1);
+        }
+    }
+
+    public int size() {
+        return mBytes.get();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return size();
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        for (Stripe<V> stripe : mStripes) {
+            stripe.trimToSize(fraction <= 0f ? -1 : (int) (stripe.size() * fraction));
+        }
+    }
+
+    public int maxSize() {
+        return mMaxBytes;
+    }
+
+    public int hitCount() {
+        int count = 0;
+        for (Stripe<V> stripe : mStripes) {
+            count += stripe.hitCount();
+        }
+        return count;
+    }
+
+    public int missCount() {
+        int count = 0;
+        for (Stripe<V> stripe : mStripes) {
+            count += stripe.missCount();
+        }
+        return count;
+    }
+
+    public int evictionCount() {
+        int count = 0;
+        for (Stripe<V> stripe : mStripes) {
+            count += stripe.evictionCount();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of getOrCompute() calls which waited on another thread's computation
+     * instead of computing again.
+     */
+    public int joinCount() {
+        return mJoins.get();
+    }
+
+    @Override
+    public String toString() {
+        return "ParsedContentCache[size=" + size() + ", maxSize=" + mMaxBytes + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + ", joins=" + joinCount() + "]";
+    }
+
+    /**
+     * Evicts the least recently used entry of this cache's largest stripe, or of any other stripe
+     * if the largest only holds the entry to keep.
+     *
+     * @param keep ID of an entry not to evict, or `null`.
+     * @return `true` if an entry was evicted, or `false` if nothing but `keep` is cached.
+     */
+    private boolean evictEldest(Uri keep) {
+        Stripe<V> largest = null;
+        int largestSize = 0;
+        for (Stripe<V> stripe : mStripes) {
+            int size = stripe.size();
+            if (size > largestSize) {
+                largest = stripe;
+                largestSize = size;
+            }
+        }
+        if (largest == null) return false;
+        if (largest.evictEldest(keep)) return true;
+        for (Stripe<V> stripe : mStripes) {
+            if (stripe != largest && stripe.evictEldest(keep)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evicts from the largest caches until all caches fit in the global budget.
+     */
+    private static void trimGlobal() {
+        while (true) {
+            ParsedContentCache<?> largest = null;
+            int total = 0;
+            for (WeakReference<ParsedContentCache<?>> ref : sCaches) {
+                ParsedContentCache<?> cache = ref.get();
+                if (cache == null) {
+                    sCaches.remove(ref);
+                    continue;
+                }
+                int size = cache.mBytes.get();
+                total += size;
+                if (largest == null || size > largest.mBytes.get()) largest = cache;
+            }
+            if (total <= getGlobalMaxSize() || largest == null || !largest.evictEldest(null)) return;
+        }
+    }
+
+    private Stripe<V> getStripe(Uri id) {
+        int hash = id.hashCode();
+        hash ^= (hash >>> 16);
+        return mStripes[hash & (STRIPES - 1)];
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    public interface Computer<V> {
+        /**
+         * Computes content to cache, or returns `null` if there is none.
+         */
+        V compute();
+    }
+
+    private static class Computation<V> {
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile V mValue;
+
+        V await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    mLatch.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            return mValue;
+        }
+    }
+
+    private static class Entry<V> {
+        final V mValue;
+        final int mSize;
+
+        Entry(V value, int size) {
+            mValue = value;
+            mSize = size;
+        }
+    }
+
+    /**
+     * A single LRU, guarded by its own lock.  Sizes are also added to the owning cache's total.
+     */
+    private static class Stripe<V extends AtlasCellFactory.ParsedContent> {
+        private final AtomicInteger mCacheBytes;
+        private final LinkedHashMap<Uri, Entry<V>> mMap = new LinkedHashMap<Uri, Entry<V>>(16, 0.75f, true);
+        private int mBytes;
+        private int mHits;
+        private int mMisses;
+        private int mEvictions;
+
+        Stripe(AtomicInteger cacheBytes) {
+            mCacheBytes = cacheBytes;
+        }
+
+        synchronized V get(Uri id) {
+            Entry<V> entry = mMap.get(id);
+            if (entry != null) {
+                mHits++;
+                return entry.mValue;
+            }
+            mMisses++;
+            return null;
+        }
+
+        /**
+         * Returns the cached value without counting a hit or miss.
+         */
+        synchronized V peek(Uri id) {
+            Entry<V> entry = mMap.get(id);
+            return entry == null ? null : entry.mValue;
+        }
+
+        synchronized void put(Uri id, V value) {
+            Entry<V> entry = new Entry<V>(value, value.sizeOf());
+            Entry<V> previous = mMap.put(id, entry);
+            if (previous != null) add(-previous.mSize);
+            add(entry.mSize);
+        }
+
+        synchronized void remove(Uri id) {
+            Entry<V> previous = mMap.remove(id);
+            if (previous != null) add(-previous.mSize);
+        }
+
+        synchronized void trimToSize(int maxBytes) {
+            Iterator<Map.Entry<Uri, Entry<V>>> it = mMap.entrySet().iterator();
+            while (mBytes > maxBytes && it.hasNext()) {
+                add(-it.next().getValue().mSize);
+                it.remove();
+                mEvictions++;
+            }
+        }
+
+        /**
+         * Evicts the least recently used entry other than `keep`, which may be `null`.
+         */
+        synchronized boolean evictEldest(Uri keep) {
+            Iterator<Map.Entry<Uri, Entry<V>>> it = mMap.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Uri, Entry<V>> eldest = it.next();
+                if (eldest.getKey().equals(keep)) continue;
+                add(-eldest.getValue().mSize);
+                it.remove();
+                mEvictions++;
+                return true;
+            }
+            return false;
+        }
+
+        synchronized int size() {
+            return mBytes;
+        }
+
+        synchronized int hitCount() {
+            return mHits;
+        }
+
+        synchronized int missCount() {
+            return mMisses;
+        }
+
+        synchronized int evictionCount() {
+            return mEvictions;
+        }
+
+        private void add(int bytes) {
+            mBytes += bytes;
+            mCacheBytes.addAndGet(bytes);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package com.layer.atlas.messagetypes;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.net.Uri;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.LayerClient;
+import com.layer.sdk.changes.LayerChange;
+import com.layer.sdk.changes.LayerChangeEvent;
+import com.layer.sdk.exceptions.LayerException;
+import com.layer.sdk.listeners.LayerAuthenticationListener;
+import com.layer.sdk.listeners.LayerChangeEventListener;
+import com.layer.sdk.messaging.LayerObject;
+import com.layer.sdk.messaging.Message;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ParsedContentStore is an optional disk tier below AtlasCellFactory parsed content caches, so
+ * that reopening a Conversation binds from already parsed content instead of parsing MessagePart
+ * data again.  Content is kept in a SQLite table keyed by cell factory, factory content version,
+ * and Message ID, as bytes written by the factory.
+ * <p>
+ * The database is opened on a background writer thread when the store is created.  Reads are
+ * synchronous and must not be made on the main thread.  Writes are queued and written in batches
+ * on the writer thread.  The most recently written rows are kept, up to a maximum row count.
+ * <p>
+ * Stored content is decoded Message content, so the store follows its LayerClient: a Message's
+ * row is deleted when the Message is deleted, and all rows are deleted when the LayerClient
+ * deauthenticates.
+ *
+ * @see AtlasCellFactory#setParsedContentStore(ParsedContentStore)
+ */
+public class ParsedContentStore {
+    private static final String DATABASE_NAME = "atlas_parsed_content.db";
+    private static final int DATABASE_VERSION = 1;
+    private static final int DEFAULT_MAX_ROWS = 5000;
+    private static final int TRIM_INTERVAL_WRITES = 500;
+
+    private static final String TABLE = "parsed_content";
+    private static final String COLUMN_FACTORY = "factory";
+    private static final String COLUMN_VERSION = "version";
+    private static final String COLUMN_MESSAGE_ID = "message_id";
+    private static final String COLUMN_DATA = "data";
+
+    private static ParsedContentStore sDefault;
+
+    private final Helper mHelper;
+    private final int mMaxRows;
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "atlas-parsed-content-store");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final ConcurrentLinkedQueue<ContentValues> mPendingWrites = new ConcurrentLinkedQueue<ContentValues>();
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean();
+    private int mWritesSinceTrim;
+
+    // Metrics
+    private final AtomicInteger mHits = new AtomicInteger();
+    private final AtomicInteger mMisses = new AtomicInteger();
+    private final AtomicInteger mWrites = new AtomicInteger();
+
+    private final LayerChangeEventListener.BackgroundThread.Weak mChangeListener = new LayerChangeEventListener.BackgroundThread.Weak() {
+        @Override
+        public void onChangeEvent(LayerChangeEvent event) {
+            List<String> deleted = null;
+            for (LayerChange change : event.getChanges()) {
+                if (change.getObjectType() != LayerObject.Type.MESSAGE) continue;
+                if (change.getChangeType() != LayerChange.Type.DELETE) continue;
+                if (deleted == null) deleted = new ArrayList<String>();
+                deleted.add(((Message) change.getObject()).getId().toString());
+            }
+            if (deleted != null) delete(deleted);
+        }
+    };
+
+    private final LayerAuthenticationListener.BackgroundThread mAuthenticationListener = new LayerAuthenticationListener.BackgroundThread() {
+        @Override
+        public void onAuthenticated(LayerClient layerClient, String userId) {
+        }
+
+        @Override
+        public void onDeauthenticated(LayerClient layerClient) {
+            clear();
+        }
+
+        @Override
+        public void onAuthenticationChallenge(LayerClient layerClient, String nonce) {
+        }
+
+        @Override
+        public void onAuthenticationError(LayerClient layerClient, LayerException e) {
+        }
+    };
+
+    /**
+     * Returns the ParsedContentStore shared by Atlas cell factories.
+     */
+    public static synchronized ParsedContentStore getDefault(Context context, LayerClient layerClient) {
+        if (sDefault == null) {
+            sDefault = new ParsedContentStore(context, layerClient, DATABASE_NAME, DEFAULT_MAX_ROWS);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param context     Context for opening the database.
+     * @param layerClient LayerClient whose Message deletions and deauthentication delete stored
+     *                    content.
+     * @param name        Database file name.
+     * @param maxRows     Maximum number of parsed contents to keep.
+     */
+    public ParsedContentStore(Context context, LayerClient layerClient, String name, int maxRows) {
+        mHelper = new Helper(context.getApplicationContext(), name);
+        mMaxRows = maxRows;
+        layerClient.registerEventListener(mChangeListener);
+        layerClient.registerAuthenticationListener(mAuthenticationListener);
+        // Creating or upgrading the database is disk I/O, so get it done before the first read
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase();
+                } catch (SQLiteException e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Could not open parsed content", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the stored bytes for the given factory, version, and Message ID, or `null`.  Must not
+     * be called on the main thread.
+     */
+    byte[] get(String factory, int version, Uri messageId) {
+        Cursor cursor = null;
+        try {
+            cursor = mHelper.getReadableDatabase().query(TABLE, new String[]{COLUMN_DATA},
+                    COLUMN_FACTORY + " = ? AND " + COLUMN_MESSAGE_ID + " = ? AND " + COLUMN_VERSION + " = ?",
+                    new String[]{factory, messageId.toString(), Integer.toString(version)}, null, null, null);
+            if (cursor.moveToFirst()) {
+                mHits.incrementAndGet();
+                return cursor.getBlob(0);
+            }
+        } catch (SQLiteException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not read parsed content", e);
+        } finally {
+            if (cursor != null) cursor.close();
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Queues the given bytes to be stored for the given factory, version, and Message ID.
+     */
+    void put(String factory, int version, Uri messageId, byte[] data) {
+        ContentValues values = new ContentValues(4);
+        values.put(COLUMN_FACTORY, factory);
+        values.put(COLUMN_VERSION, version);
+        values.put(COLUMN_MESSAGE_ID, messageId.toString());
+        values.put(COLUMN_DATA, data);
+        mPendingWrites.add(values);
+        if (mFlushScheduled.compareAndSet(false, true)) {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mFlushScheduled.set(false);
+                    flush();
+                }
+            });
+        }
+    }
+
+    /**
+     * Deletes the stored content of the given Messages, including content still queued.
+     */
+    private void delete(final List<String> messageIds) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                // Write queued content first, so none of it outlives its Message
+                flush();
+                try {
+                    SQLiteDatabase db = mHelper.getWritableDatabase();
+                    db.beginTransaction();
+                    try {
+                        for (String messageId : messageIds) {
+                            db.delete(TABLE, COLUMN_MESSAGE_ID + " = ?", new String[]{messageId});
+                        }
+                        db.setTransactionSuccessful();
+                    } finally {
+                        db.endTransaction();
+                    }
+                } catch (SQLiteException e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Could not delete parsed content", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes all stored parsed content.  Called automatically when the LayerClient
+     * deauthenticates.
+     */
+    public void clear() {
+        mPendingWrites.clear();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mHelper.getWritableDatabase().delete(TABLE, null, null);
+                } catch (SQLiteException e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Could not clear parsed content", e);
+                }
+            }
+        });
+    }
+
+    public int getHitCount() {
+        return mHits.get();
+    }
+
+    public int getMissCount() {
+        return mMisses.get();
+    }
+
+    public int getWriteCount() {
+        return mWrites.get();
+    }
+
+    /**
+     * Writes all queued content in one transaction, then deletes the oldest rows past the maximum
+     * every so often.  Runs on the writer thread.
+     */
+    private void flush() {
+        List<ContentValues> batch = new ArrayList<ContentValues>();
+        ContentValues values;
+        while ((values = mPendingWrites.poll()) != null) {
+            batch.add(values);
+        }
+        if (batch.isEmpty()) return;
+
+        long start = System.currentTimeMillis();
+        try {
+            SQLiteDatabase db = mHelper.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (ContentValues write : batch) {
+                    db.insertWithOnConflict(TABLE, null, write, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            mWrites.addAndGet(batch.size());
+            mWritesSinceTrim += batch.size();
+            if (mWritesSinceTrim >= TRIM_INTERVAL_WRITES) {
+                mWritesSinceTrim = 0;
+                // Replaced rows get new row IDs, so the lowest row IDs are the least recently written
+                db.execSQL("DELETE FROM " + TABLE + " WHERE rowid IN (SELECT rowid FROM " + TABLE
+                        + " ORDER BY rowid DESC LIMIT -1 OFFSET " + mMaxRows + ")");
+            }
+        } catch (SQLiteException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Could not write parsed content", e);
+        }
+        if (Log.isPerfLoggable()) {
+            Log.perf("ParsedContentStore wrote " + batch.size() + " in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    //==============================================================================================
+    // Serialization helpers
+    //==============================================================================================
+
+    /**
+     * Writes a String, which may be `null` and longer than DataOutput.writeUTF() allows.
+     */
+    public static void writeString(DataOutput out, String string) throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a String written with {@link #writeString(DataOutput, String)}.
+     */
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Helper extends SQLiteOpenHelper {
+        Helper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE " + TABLE + " ("
+                    + COLUMN_FACTORY + " TEXT NOT NULL, "
+                    + COLUMN_MESSAGE_ID + " TEXT NOT NULL, "
+                    + COLUMN_VERSION + " INTEGER NOT NULL, "
+                    + COLUMN_DATA + " BLOB NOT NULL, "
+                    + "PRIMARY KEY (" + COLUMN_FACTORY + ", " + COLUMN_MESSAGE_ID + "))");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // Parsed content is a cache, so start over
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            onCreate(db);
+        }
+    }
+}
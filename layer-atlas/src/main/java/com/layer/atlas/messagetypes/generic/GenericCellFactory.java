@@ -8,6 +8,7 @@ import android.widget.TextView;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.util.HeapSize;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Message;
 import com.layer.sdk.messaging.MessagePart;
@@ -17,7 +18,7 @@ import com.layer.sdk.messaging.MessagePart;
  */
 public class GenericCellFactory extends AtlasCellFactory<GenericCellFactory.CellHolder, GenericCellFactory.ParsedContent> {
     public GenericCellFactory() {
-        super(256 * 1024);
+        super();
     }
 
     public static String getPreview(Context context, Message message) {
@@ -93,7 +94,7 @@ public class GenericCellFactory extends AtlasCellFactory<GenericCellFactory.Cell
 
         public ParsedContent(String string) {
             mString = string;
-            mSize = mString.getBytes().length;
+            mSize = HeapSize.object(4, 1) + HeapSize.of(mString);
         }
 
         public String getString() {
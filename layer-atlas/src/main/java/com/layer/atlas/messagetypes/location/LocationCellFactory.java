@@ -13,6 +13,8 @@ import android.widget.Toast;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.messagetypes.ParsedContentStore;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.picasso.transformations.RoundedTransform;
@@ -27,6 +29,9 @@ import com.squareup.picasso.Transformation;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.Set;
 
@@ -39,13 +44,11 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
 
     private static final int PLACEHOLDER = R.drawable.atlas_message_item_cell_placeholder;
     private static final double GOLDEN_RATIO = (1.0 + Math.sqrt(5.0)) / 2.0;
-    private static final int CACHE_SIZE_BYTES = 256 * 1024;
-
     private final Picasso mPicasso;
     private Transformation mTransform;
 
     public LocationCellFactory(Picasso mPicasso) {
-        super(CACHE_SIZE_BYTES);
+        super();
         this.mPicasso = mPicasso;
     }
 
@@ -99,6 +102,23 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
         return null;
     }
 
+    @Override
+    protected boolean writeParsedContent(Location content, DataOutput out) throws IOException {
+        out.writeDouble(content.mLatitude);
+        out.writeDouble(content.mLongitude);
+        ParsedContentStore.writeString(out, content.mLabel);
+        return true;
+    }
+
+    @Override
+    protected Location readParsedContent(Message message, DataInput in) throws IOException {
+        Location c = new Location();
+        c.mLatitude = in.readDouble();
+        c.mLongitude = in.readDouble();
+        c.mLabel = ParsedContentStore.readString(in);
+        return c;
+    }
+
     @Override
     public void bindCellHolder(final CellHolder cellHolder, final Location location, Message message, CellHolderSpecs specs) {
         cellHolder.mImageView.setTag(location);
@@ -178,7 +198,7 @@ public class LocationCellFactory extends AtlasCellFactory<LocationCellFactory.Ce
 
         @Override
         public int sizeOf() {
-            return (mLabel == null ? 0 : mLabel.getBytes().length) + ((Double.SIZE + Double.SIZE) / Byte.SIZE);
+            return HeapSize.object((Double.SIZE + Double.SIZE) / Byte.SIZE, 1) + HeapSize.of(mLabel);
         }
     }
 
@@ -14,8 +14,11 @@ import android.widget.TextView;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.messagetypes.ParsedContentStore;
 import com.layer.atlas.messagetypes.text.TextCellFactory;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
+import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.Message;
@@ -24,6 +27,9 @@ import com.layer.sdk.messaging.MessagePart;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
@@ -35,6 +41,7 @@ public class MeetingCreatedCellFactory extends AtlasCellFactory<TextCellFactory.
     private static final String MEETING_ID_JSON_KEY = "meeting_id";
     private static final String MEETING_BACKGROUND_COLOR_JSON_KEY = "background_color";
     private static final String MEETING_FONT_COLOR_JSON_KEY = "font_color";
+    private static final int PREVIEW_MAX_BYTES = 512;
 
     //This is used to bind TextView  to the exact message to ensure the right TextView is updated
     private Map<TextView, Uri> mTextViewUriHashMap = new WeakHashMap<>();
@@ -42,7 +49,7 @@ public class MeetingCreatedCellFactory extends AtlasCellFactory<TextCellFactory.
     private final PublishSubject<String> clickSubject;
 
     public MeetingCreatedCellFactory(@Nullable PublishSubject<String> clickSubject) {
-        super(256 * 1024);
+        super();
         this.clickSubject = clickSubject;
     }
 
@@ -88,6 +95,23 @@ public class MeetingCreatedCellFactory extends AtlasCellFactory<TextCellFactory.
         return new MeetingInfo(text, meetingId, backgroundColor, fontColor);
     }
 
+    @Override
+    protected boolean writeParsedContent(MeetingInfo content, DataOutput out) throws IOException {
+        // Incomplete until both parts are downloaded and parsed
+        if (content.getText() == null || content.getMeetingId() == null) return false;
+        ParsedContentStore.writeString(out, content.getText());
+        ParsedContentStore.writeString(out, content.getMeetingId());
+        ParsedContentStore.writeString(out, content.getBackgroundColor());
+        ParsedContentStore.writeString(out, content.getFontColor());
+        return true;
+    }
+
+    @Override
+    protected MeetingInfo readParsedContent(Message message, DataInput in) throws IOException {
+        return new MeetingInfo(ParsedContentStore.readString(in), ParsedContentStore.readString(in),
+                ParsedContentStore.readString(in), ParsedContentStore.readString(in));
+    }
+
     @Override
     public void bindCellHolder(TextCellFactory.CellHolder cellHolder, MeetingInfo cached, Message message, CellHolderSpecs specs) {
         //Checking if the TextView is being recycled, replace the value in the map with the new message id
@@ -191,7 +215,7 @@ public class MeetingCreatedCellFactory extends AtlasCellFactory<TextCellFactory.
         if (isType(message)) {
             MeetingParts parts = new MeetingParts(message);
             // For large text content, the MessagePart may not be downloaded yet.
-            return parts.getTextPart().isContentReady() ? new String(parts.getTextPart().getData()) : "";
+            return Util.getTextPrefix(parts.getTextPart(), PREVIEW_MAX_BYTES);
         } else {
             throw new IllegalArgumentException("Message is not of the correct type - Text");
         }
@@ -219,11 +243,8 @@ public class MeetingCreatedCellFactory extends AtlasCellFactory<TextCellFactory.
 
         @Override
         public int sizeOf() {
-            int textSize = isEmpty(text) ? 0 : text.getBytes().length;
-            int meetingIdSize = isEmpty(meetingId) ? 0 : meetingId.getBytes().length;
-            int backgroundColorSize = isEmpty(backgroundColor) ? 0 : backgroundColor.getBytes().length;
-            int fontColorSize = isEmpty(fontColor) ? 0 : fontColor.getBytes().length;
-            return textSize + meetingIdSize + backgroundColorSize + fontColorSize;
+            return HeapSize.object(0, 4) + HeapSize.of(text) + HeapSize.of(meetingId)
+                    + HeapSize.of(backgroundColor) + HeapSize.of(fontColor);
         }
 
         @Nullable
@@ -15,7 +15,9 @@ import android.widget.ImageView;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
+import com.layer.atlas.util.MessagePartDownloads;
 import com.layer.atlas.util.imagepopup.AtlasImagePopupActivity;
 import com.layer.atlas.util.picasso.transformations.RoundedTransform;
 import com.layer.sdk.LayerClient;
@@ -34,14 +36,12 @@ import java.util.Set;
 public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImageCellFactory.CellHolder, SinglePartImageCellFactory.PartId> implements View.OnClickListener {
     private static final String PICASSO_TAG = SinglePartImageCellFactory.class.getSimpleName();
     private static final int PLACEHOLDER = com.layer.atlas.R.drawable.atlas_message_item_cell_placeholder;
-    private static final int CACHE_SIZE_BYTES = 256 * 1024;
-
     private final LayerClient mLayerClient;
     private final Picasso mPicasso;
     private Transformation mTransform;
 
     public SinglePartImageCellFactory(LayerClient mLayerClient, Picasso mPicasso) {
-        super(CACHE_SIZE_BYTES);
+        super();
         this.mLayerClient = mLayerClient;
         this.mPicasso = mPicasso;
     }
@@ -65,27 +65,11 @@ public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImage
         cellHolder.mImageView.setTag(index);
         cellHolder.mImageView.setOnClickListener(this);
         cellHolder.mProgressBar.show();
-        RequestCreator requestCreator = mPicasso.load(index.mId).tag(PICASSO_TAG).placeholder(PLACEHOLDER)
-                .centerInside();
-        if (specs.maxWidth > 0 && specs.maxHeight > 0) {
-            requestCreator.resize(specs.maxWidth, specs.maxHeight);
-        } else if (Log.isLoggable(Log.ERROR)) {
+        if ((specs.maxWidth <= 0 || specs.maxHeight <= 0) && Log.isLoggable(Log.ERROR)) {
             Log.e("Width or Height of image passed into SinglePartImageCellFactory.bindCellHolder should be > 0");
         }
-        requestCreator.onlyScaleDown()
-                .transform(getTransform(cellHolder.mImageView.getContext()));
-
-        requestCreator.into(cellHolder.mImageView, new Callback() {
-            @Override
-            public void onSuccess() {
-                cellHolder.mProgressBar.hide();
-            }
-
-            @Override
-            public void onError(Exception ex) {
-                cellHolder.mProgressBar.hide();
-            }
-        });
+        // Bindable Messages have exactly one part
+        loadImage(cellHolder, index, message.getMessageParts().iterator().next(), specs);
     }
 
     @Override
@@ -116,6 +100,30 @@ public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImage
         }
     }
 
+    /**
+     * Starts downloading the image part, or if it is already downloaded, decodes it into Picasso's
+     * memory cache exactly as bindCellHolder() will request it.
+     */
+    @Override
+    public void onPrefetch(Context context, Message message, CellHolderSpecs specs) {
+        PartId index = getParsedContent(mLayerClient, message);
+        if (index == null) return;
+        // Bindable Messages have exactly one part
+        MessagePart part = message.getMessageParts().iterator().next();
+        if (!part.isContentReady()) {
+            // Decoding would hold a Picasso thread until downloaded, so only warm the download
+            MessagePartDownloads.download(part);
+            return;
+        }
+        if (specs == null || specs.maxWidth <= 0 || specs.maxHeight <= 0) return;
+        createRequest(context, index, specs).tag(getPrefetchTag(message)).fetch();
+    }
+
+    @Override
+    public void onCancelPrefetch(Message message) {
+        mPicasso.cancelTag(getPrefetchTag(message));
+    }
+
     @Override
     public PartId parseContent(LayerClient layerClient, Message message) {
         for (MessagePart part : message.getMessageParts()) {
@@ -144,6 +152,53 @@ public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImage
     // private methods
     //==============================================================================================
 
+    /**
+     * Loads the image into the cell.  If the request fails because the part is still downloading,
+     * e.g. when MessagePartRequestHandler has no waiting slot free, loads it again once the download
+     * finishes and the cell still shows the same PartId.
+     */
+    private void loadImage(final CellHolder cellHolder, final PartId index, final MessagePart part, final CellHolderSpecs specs) {
+        createRequest(cellHolder.mImageView.getContext(), index, specs)
+                .tag(PICASSO_TAG).placeholder(PLACEHOLDER)
+                .into(cellHolder.mImageView, new Callback() {
+                    @Override
+                    public void onSuccess() {
+                        cellHolder.mProgressBar.hide();
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        if (part.isContentReady()) {
+                            cellHolder.mProgressBar.hide();
+                            return;
+                        }
+                        MessagePartDownloads.download(part).addCallback(new MessagePartDownloads.Download.Callback() {
+                            @Override
+                            public void onDownloadFinished(MessagePart downloaded) {
+                                if (cellHolder.mImageView.getTag() != index) return;
+                                if (downloaded.isContentReady()) {
+                                    loadImage(cellHolder, index, downloaded, specs);
+                                } else {
+                                    cellHolder.mProgressBar.hide();
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    private RequestCreator createRequest(Context context, PartId index, CellHolderSpecs specs) {
+        RequestCreator requestCreator = mPicasso.load(index.mId).centerInside();
+        if (specs.maxWidth > 0 && specs.maxHeight > 0) {
+            requestCreator.resize(specs.maxWidth, specs.maxHeight);
+        }
+        return requestCreator.onlyScaleDown().transform(getTransform(context));
+    }
+
+    private static String getPrefetchTag(Message message) {
+        return PICASSO_TAG + ".prefetch." + message.getId();
+    }
+
     private Transformation getTransform(Context context) {
         if (mTransform == null) {
             float radius = context.getResources().getDimension(com.layer.atlas.R.dimen.atlas_message_item_cell_radius);
@@ -176,7 +231,7 @@ public class SinglePartImageCellFactory extends AtlasCellFactory<SinglePartImage
 
         @Override
         public int sizeOf() {
-            return mId.toString().getBytes().length;
+            return HeapSize.object(0, 1) + HeapSize.of(mId);
         }
     }
 }
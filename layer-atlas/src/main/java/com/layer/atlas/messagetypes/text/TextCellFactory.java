@@ -13,6 +13,8 @@ import android.widget.Toast;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.messagetypes.ParsedContentStore;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
@@ -20,16 +22,20 @@ import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.Message;
 import com.layer.sdk.messaging.MessagePart;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Map;
 import java.util.WeakHashMap;
 
 public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder, TextCellFactory.TextInfo> implements View.OnLongClickListener {
     public final static String MIME_TYPE = "text/plain";
+    private final static int PREVIEW_MAX_BYTES = 512;
     //This is used to bind TextView  to the exact message to ensure the right TextView is updated
     private Map<TextView, Uri> mTextViewUriHashMap = new WeakHashMap<>();
 
     public TextCellFactory() {
-        super(256 * 1024);
+        super();
     }
 
     @Override
@@ -58,6 +64,20 @@ public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder
         return new TextInfo(text, "");
     }
 
+    @Override
+    protected boolean writeParsedContent(TextInfo content, DataOutput out) throws IOException {
+        // Text parsed before download has no content worth keeping
+        if (content.getString() == null) return false;
+        ParsedContentStore.writeString(out, content.getString());
+        ParsedContentStore.writeString(out, content.getClipboardPrefix());
+        return true;
+    }
+
+    @Override
+    protected TextInfo readParsedContent(Message message, DataInput in) throws IOException {
+        return new TextInfo(ParsedContentStore.readString(in), ParsedContentStore.readString(in));
+    }
+
     @Override
     public void bindCellHolder(CellHolder cellHolder, final TextInfo parsed, Message message, CellHolderSpecs specs) {
 
@@ -130,8 +150,9 @@ public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder
     public String getPreviewText(Context context, Message message) {
         if (isType(message)) {
             MessagePart part = message.getMessageParts().iterator().next();
-            // For large text content, the MessagePart may not be downloaded yet.
-            return part.isContentReady() ? new String(part.getData()) : "";
+            // For large text content, the MessagePart may not be downloaded yet.  Only a
+            // preview-sized prefix is decoded.
+            return Util.getTextPrefix(part, PREVIEW_MAX_BYTES);
         } else {
             throw new IllegalArgumentException("Message is not of the correct type - Text");
         }
@@ -169,8 +190,7 @@ public class TextCellFactory extends AtlasCellFactory<TextCellFactory.CellHolder
         public TextInfo(String string, String clipboardPrefix) {
             mString = string;
             mClipboardPrefix = clipboardPrefix;
-            int clipboardLength = mClipboardPrefix.getBytes().length;
-            mSize = (mString != null) ? mString.getBytes().length + clipboardLength : clipboardLength;
+            mSize = HeapSize.object(4, 2) + HeapSize.of(mString) + HeapSize.of(mClipboardPrefix);
         }
 
         public String getString() {
@@ -3,6 +3,7 @@ package com.layer.atlas.messagetypes.threepartimage;
 import android.Manifest;
 import android.app.Activity;
 import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
@@ -15,17 +16,15 @@ import android.support.annotation.NonNull;
 import android.support.v4.content.FileProvider;
 import android.text.TextUtils;
 
-import com.layer.atlas.R;
-import com.layer.atlas.messagetypes.AttachmentSender;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.messaging.Identity;
 import com.layer.sdk.messaging.Message;
-import com.layer.sdk.messaging.PushNotificationPayload;
 
+import java.io.Closeable;
 import java.io.File;
-import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -36,8 +35,12 @@ import java.util.concurrent.atomic.AtomicReference;
  * that it uses the CAMERA permission, then CameraSender will not require the CAMERA permission to
  * be granted. See http://developer.android.com/reference/android/provider/MediaStore.html#ACTION_IMAGE_CAPTURE
  * for details.
+ * <p>
+ * Photos are prepared in the background and sent in the order they were taken.  Register a
+ * {@link com.layer.atlas.messagetypes.MessageSender.ProgressCallback} to follow preparation, and
+ * call {@link #cancel()} to abandon photos not yet sent.
  */
-public class CameraSender extends AttachmentSender {
+public class CameraSender extends ImageAttachmentSender {
     private static final String PERMISSION_READ = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? Manifest.permission.READ_EXTERNAL_STORAGE : null;
     private static final String PERMISSION_WRITE = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? Manifest.permission.WRITE_EXTERNAL_STORAGE : null;
     private static final String PERMISSION_CAMERA = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? Manifest.permission.CAMERA : null;
@@ -125,21 +128,17 @@ public class CameraSender extends AttachmentSender {
             return true;
         }
         if (Log.isLoggable(Log.VERBOSE)) Log.v("Received camera response");
-        try {
-            if (Log.isPerfLoggable()) {
-                Log.perf("CameraSender is attempting to send a message");
-            }
-            String myName = mUserName == null ? "" : mUserName;
-            Message message = ThreePartImageUtils.newThreePartImageMessage(activity, getLayerClient(), new File(mPhotoFilePath.get()));
-
-            PushNotificationPayload payload = new PushNotificationPayload.Builder()
-                    .text(getContext().getString(R.string.atlas_notification_image, myName))
-                    .build();
-            message.getOptions().defaultPushNotificationPayload(payload);
-            send(message);
-        } catch (IOException e) {
-            if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
+        if (Log.isPerfLoggable()) {
+            Log.perf("CameraSender is attempting to send a message");
         }
+        final Context context = activity.getApplicationContext();
+        final File file = new File(mPhotoFilePath.get());
+        prepareAndSend(new ImagePreparationQueue.Preparer() {
+            @Override
+            public Message prepare(List<Closeable> streams) throws Exception {
+                return ThreePartImageUtils.newThreePartImageMessage(context, getLayerClient(), file, streams);
+            }
+        });
         return true;
     }
 
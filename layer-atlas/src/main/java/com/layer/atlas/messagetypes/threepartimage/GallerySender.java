@@ -3,33 +3,40 @@ package com.layer.atlas.messagetypes.threepartimage;
 import android.Manifest;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.content.ClipData;
+import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 
 import com.layer.atlas.R;
-import com.layer.atlas.messagetypes.AttachmentSender;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.messaging.Identity;
 import com.layer.sdk.messaging.Message;
-import com.layer.sdk.messaging.PushNotificationPayload;
 
-import java.io.IOException;
+import java.io.Closeable;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * GallerySender creates a ThreePartImage from the a selected image from the user's gallety.
  * Requires `Manifest.permission.READ_EXTERNAL_STORAGE` to read photos from external storage.
+ * <p>
+ * Images are prepared in the background and sent in the order they were selected.  Register a
+ * {@link com.layer.atlas.messagetypes.MessageSender.ProgressCallback} to follow preparation, and
+ * call {@link #cancel()} to abandon images not yet sent.
  */
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
-public class GallerySender extends AttachmentSender {
+public class GallerySender extends ImageAttachmentSender {
     private static final String PERMISSION_READ = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) ? Manifest.permission.READ_EXTERNAL_STORAGE : null;
     public static final int ACTIVITY_REQUEST_CODE = 10;
     public static final int PERMISSION_REQUEST_CODE = 11;
 
     private WeakReference<Activity> mActivity = new WeakReference<Activity>(null);
+    private boolean mMultipleSelectionEnabled;
 
     public GallerySender(int titleResId, Integer iconResId, Activity activity) {
         this(activity.getString(titleResId), iconResId, activity);
@@ -40,6 +47,14 @@ public class GallerySender extends AttachmentSender {
         mActivity = new WeakReference<Activity>(activity);
     }
 
+    /**
+     * Allows selecting several images at once on API 18+.  Disabled by default.
+     */
+    public GallerySender setMultipleSelectionEnabled(boolean enabled) {
+        mMultipleSelectionEnabled = enabled;
+        return this;
+    }
+
     private void startGalleryIntent(Activity activity) {
         Intent intent;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
@@ -49,6 +64,9 @@ public class GallerySender extends AttachmentSender {
         } else {
             intent = new Intent(Intent.ACTION_PICK, android.provider.MediaStore.Images.Media.EXTERNAL_CONTENT_URI);
         }
+        if (mMultipleSelectionEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
+        }
         activity.startActivityForResult(Intent.createChooser(intent, getContext().getString(R.string.atlas_gallery_sender_chooser)), ACTIVITY_REQUEST_CODE);
     }
 
@@ -88,22 +106,35 @@ public class GallerySender extends AttachmentSender {
             return true;
         }
         if (Log.isLoggable(Log.VERBOSE)) Log.v("Received gallery response");
-        try {
-            if (Log.isPerfLoggable()) {
-                Log.perf("GallerySender is attempting to send a message");
-            }
-            String myName = mUserName == null ? "" : mUserName;
-            Uri uri = data.getData();
-            Message message = ThreePartImageUtils.newThreePartImageMessage(activity, getLayerClient(), uri);
-
-            PushNotificationPayload payload = new PushNotificationPayload.Builder()
-                    .text(getContext().getString(R.string.atlas_notification_image, myName))
-                    .build();
-            message.getOptions().defaultPushNotificationPayload(payload);
-            send(message);
-        } catch (IOException e) {
-            if (Log.isLoggable(Log.ERROR)) Log.e(e.getMessage(), e);
+        if (Log.isPerfLoggable()) {
+            Log.perf("GallerySender is attempting to send a message");
+        }
+        final Context context = activity.getApplicationContext();
+        for (final Uri uri : getSelectedUris(data)) {
+            prepareAndSend(new ImagePreparationQueue.Preparer() {
+                @Override
+                public Message prepare(List<Closeable> streams) throws Exception {
+                    return ThreePartImageUtils.newThreePartImageMessage(context, getLayerClient(), uri, streams);
+                }
+            });
         }
         return true;
     }
-}
\ No newline at end of file
+
+    private static List<Uri> getSelectedUris(Intent data) {
+        List<Uri> uris = new ArrayList<Uri>();
+        if (data == null) return uris;
+        // Multiple selections arrive as ClipData, which is only requested on API 18+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            ClipData clipData = data.getClipData();
+            if (clipData != null) {
+                for (int i = 0; i < clipData.getItemCount(); i++) {
+                    Uri uri = clipData.getItemAt(i).getUri();
+                    if (uri != null) uris.add(uri);
+                }
+            }
+        }
+        if (uris.isEmpty() && data.getData() != null) uris.add(data.getData());
+        return uris;
+    }
+}
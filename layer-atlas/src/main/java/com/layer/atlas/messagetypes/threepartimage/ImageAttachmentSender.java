@@ -0,0 +1,56 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import com.layer.atlas.R;
+import com.layer.atlas.messagetypes.AttachmentSender;
+import com.layer.sdk.messaging.Message;
+import com.layer.sdk.messaging.PushNotificationPayload;
+
+/**
+ * ImageAttachmentSender is the base of AttachmentSenders that prepare image Messages on an
+ * ImagePreparationQueue.  Prepared Messages are sent with an image push notification in the order
+ * they were requested, and preparation progress is reported to a registered ProgressCallback.
+ */
+abstract class ImageAttachmentSender extends AttachmentSender {
+    private final ImagePreparationQueue mQueue = new ImagePreparationQueue(new ImagePreparationQueue.Listener() {
+        @Override
+        public void onPrepared(Message message) {
+            String myName = mUserName == null ? "" : mUserName;
+            PushNotificationPayload payload = new PushNotificationPayload.Builder()
+                    .text(getContext().getString(R.string.atlas_notification_image, myName))
+                    .build();
+            message.getOptions().defaultPushNotificationPayload(payload);
+            send(message);
+        }
+
+        @Override
+        public void onFailed(Exception e) {
+            notifyPrepareFailed(e);
+        }
+
+        @Override
+        public void onProgress(int completed, int total) {
+            notifyPrepareProgress(completed, total);
+        }
+
+        @Override
+        public void onCancelled(int cancelled) {
+            notifyPrepareCancelled(cancelled);
+        }
+    });
+
+    ImageAttachmentSender(String title, Integer iconResId) {
+        super(title, iconResId);
+    }
+
+    /**
+     * Queues an image Message for preparation and sending.
+     */
+    void prepareAndSend(ImagePreparationQueue.Preparer preparer) {
+        mQueue.add(preparer);
+    }
+
+    @Override
+    public void cancel() {
+        mQueue.cancel();
+    }
+}
@@ -0,0 +1,197 @@
+package com.layer.atlas.messagetypes.threepartimage;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+import com.layer.atlas.util.Log;
+import com.layer.sdk.messaging.Message;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ImagePreparationQueue builds image Messages off the main thread, on a small worker pool shared by
+ * all queues, and hands them back on the main thread in the order they were added.  Several images
+ * may be prepared in parallel, but a Message is only delivered once every Message added before it
+ * has been delivered, failed, or cancelled.  Messages prepared for cancelled jobs are discarded by
+ * closing the streams their parts were built from.
+ * <p>
+ * All methods must be called on the main thread.
+ */
+class ImagePreparationQueue {
+    private static final int MAX_THREADS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static ThreadPoolExecutor sExecutor;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Listener mListener;
+
+    // Jobs not yet delivered, in send order
+    private final ArrayDeque<Job> mJobs = new ArrayDeque<Job>();
+    private int mCompleted;
+    private int mTotal;
+
+    ImagePreparationQueue(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Queues a Message for preparation.  The Preparer is invoked on a worker thread.
+     */
+    void add(Preparer preparer) {
+        final Job job = new Job(preparer);
+        mJobs.add(job);
+        mTotal++;
+        job.mFuture = getExecutor().submit(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                long start = System.currentTimeMillis();
+                try {
+                    job.mMessage = job.mPreparer.prepare(job.mStreams);
+                } catch (Exception e) {
+                    job.mError = e;
+                }
+                if (Log.isPerfLoggable()) {
+                    Log.perf("ImagePreparationQueue prepared a Message in " + (System.currentTimeMillis() - start) + "ms");
+                }
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onJobDone(job);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Cancels all Messages not yet delivered.  Messages already delivered are unaffected.
+     */
+    void cancel() {
+        int cancelled = mJobs.size();
+        for (Job job : mJobs) {
+            job.mCancelled = true;
+            job.mFuture.cancel(true);
+            // Jobs still running are discarded when they finish
+            if (job.mDone) discard(job);
+        }
+        mJobs.clear();
+        mCompleted = 0;
+        mTotal = 0;
+        if (cancelled > 0) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("Cancelled preparing " + cancelled + " images");
+            mListener.onCancelled(cancelled);
+        }
+    }
+
+    /**
+     * Returns the number of Messages added but not yet delivered.
+     */
+    int getPendingCount() {
+        return mJobs.size();
+    }
+
+    private void onJobDone(Job job) {
+        if (job.mCancelled) {
+            discard(job);
+            return;
+        }
+        job.mDone = true;
+
+        // Deliver completed jobs from the head of the queue, preserving send order
+        while (!mJobs.isEmpty() && mJobs.peek().mDone) {
+            Job head = mJobs.poll();
+            mCompleted++;
+            if (head.mError != null) {
+                if (Log.isLoggable(Log.ERROR)) Log.e(head.mError.getMessage(), head.mError);
+                mListener.onFailed(head.mError);
+            } else if (head.mMessage != null) {
+                mListener.onPrepared(head.mMessage);
+            }
+            mListener.onProgress(mCompleted, mTotal);
+        }
+        if (mJobs.isEmpty()) {
+            mCompleted = 0;
+            mTotal = 0;
+        }
+    }
+
+    /**
+     * Closes the streams of a cancelled job's Message, which will never be sent.
+     */
+    private static void discard(Job job) {
+        ThreePartImageUtils.closeStreams(job.mStreams);
+        job.mMessage = null;
+    }
+
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = new ThreadPoolExecutor(MAX_THREADS, MAX_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "atlas-image-prepare-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    interface Preparer {
+        /**
+         * Builds a Message on a worker thread.
+         *
+         * @param streams Collects streams opened for the Message's parts, to close if the Message
+         *                is discarded.
+         */
+        Message prepare(List<Closeable> streams) throws Exception;
+    }
+
+    interface Listener {
+        /**
+         * Called with each prepared Message, in the order they were added.
+         */
+        void onPrepared(Message message);
+
+        void onFailed(Exception e);
+
+        void onProgress(int completed, int total);
+
+        void onCancelled(int cancelled);
+    }
+
+    private static class Job {
+        final Preparer mPreparer;
+        // Written on the worker thread, then only read on the main thread after it is done
+        final List<Closeable> mStreams = new ArrayList<Closeable>();
+        Future<?> mFuture;
+        volatile Message mMessage;
+        volatile Exception mError;
+        boolean mDone;
+        boolean mCancelled;
+
+        Job(Preparer preparer) {
+            mPreparer = preparer;
+        }
+    }
+}
@@ -19,7 +19,10 @@ import android.widget.ImageView;
 
 import com.layer.atlas.R;
 import com.layer.atlas.messagetypes.AtlasCellFactory;
+import com.layer.atlas.util.HeapSize;
 import com.layer.atlas.util.Log;
+import com.layer.atlas.util.MessagePartDownloads;
+import com.layer.atlas.util.ThumbnailDiskCache;
 import com.layer.atlas.util.Util;
 import com.layer.atlas.util.imagepopup.AtlasImagePopupActivity;
 import com.layer.atlas.util.picasso.transformations.RoundedTransform;
@@ -34,6 +37,10 @@ import com.squareup.picasso.Transformation;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
 import java.util.Set;
 
 /**
@@ -45,14 +52,15 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
     private static final String PICASSO_TAG = ThreePartImageCellFactory.class.getSimpleName();
 
     private static final int PLACEHOLDER = R.drawable.atlas_message_item_cell_placeholder;
-    private static final int CACHE_SIZE_BYTES = 256 * 1024;
 
     private final LayerClient mLayerClient;
     private final Picasso mPicasso;
     private Transformation mTransform;
+    private ThumbnailDiskCache mThumbnailCache;
+    private boolean mUseDefaultThumbnailCache = true;
 
     public ThreePartImageCellFactory(LayerClient mLayerClient, Picasso mPicasso) {
-        super(CACHE_SIZE_BYTES);
+        super();
         this.mLayerClient = mLayerClient;
         this.mPicasso = mPicasso;
     }
@@ -67,6 +75,17 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         mTransform = new RoundedTransform(radius);
     }
 
+    /**
+     * Sets the ThumbnailDiskCache used to keep rendered previews across restarts, or `null` to
+     * always render previews from the preview part.  Defaults to
+     * {@link ThumbnailDiskCache#getDefault(Context)}.
+     */
+    public ThreePartImageCellFactory setThumbnailDiskCache(ThumbnailDiskCache thumbnailCache) {
+        mThumbnailCache = thumbnailCache;
+        mUseDefaultThumbnailCache = false;
+        return this;
+    }
+
     @Override
     public boolean isBindable(Message message) {
         return isType(message);
@@ -82,6 +101,28 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         return getInfo(message);
     }
 
+    @Override
+    protected boolean writeParsedContent(Info content, DataOutput out) throws IOException {
+        // Part IDs and sizes come from the Message itself, so only the info part content is stored
+        out.writeInt(content.orientation);
+        out.writeInt(content.width);
+        out.writeInt(content.height);
+        return true;
+    }
+
+    @Override
+    protected Info readParsedContent(Message message, DataInput in) throws IOException {
+        ThreePartMessageParts parts = new ThreePartMessageParts(message);
+        Info info = new Info();
+        info.orientation = in.readInt();
+        info.width = in.readInt();
+        info.height = in.readInt();
+        info.previewPartId = parts.getPreviewPart().getId();
+        info.fullPartId = parts.getFullPart().getId();
+        info.fullPartSizeInBytes = parts.getFullPart().getSize();
+        return info;
+    }
+
     @Override
     public void bindCellHolder(final CellHolder cellHolder, final Info info, final Message message, CellHolderSpecs specs) {
         cellHolder.mImageView.setTag(info);
@@ -94,38 +135,10 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         params.width = cellDims[0];
         params.height = cellDims[1];
         cellHolder.mProgressBar.show();
-        RequestCreator creator = mPicasso.load(parts.getPreviewPart().getId()).tag(PICASSO_TAG).placeholder(PLACEHOLDER);
-
-        if (cellDims[0] > 0 && cellDims[1] > 0) {
-            creator.resize(cellDims[0], cellDims[1]);
-            switch (info.orientation) {
-                case ThreePartImageUtils.ORIENTATION_0:
-                    break;
-                case ThreePartImageUtils.ORIENTATION_90:
-                    creator.rotate(-90);
-                    break;
-                case ThreePartImageUtils.ORIENTATION_180:
-                    creator.rotate(180);
-                    break;
-                default:
-                    creator.rotate(90);
-                    break;
-            }
-        } else if (Log.isLoggable(Log.ERROR)) {
+        if ((cellDims[0] <= 0 || cellDims[1] <= 0) && Log.isLoggable(Log.ERROR)) {
             Log.e("Width or Height in ThreePartImageCellFactory.Info of image passed into ThreePartImageCellFactory.bindCellHolder is invalid");
         }
-
-        creator.transform(getTransform(cellHolder.mImageView.getContext())).into(cellHolder.mImageView, new Callback() {
-            @Override
-            public void onSuccess() {
-                cellHolder.mProgressBar.hide();
-            }
-
-            @Override
-            public void onError(Exception ex) {
-                cellHolder.mProgressBar.hide();
-            }
-        });
+        loadPreview(cellHolder, info, parts.getPreviewPart(), cellDims);
 
         cellHolder.mImageView.setOnLongClickListener(new View.OnLongClickListener() {
             @Override
@@ -171,10 +184,150 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         }
     }
 
+    /**
+     * Starts downloading the preview part, or if it is already downloaded or its rendered preview
+     * is on disk, decodes it into Picasso's memory cache exactly as bindCellHolder() will request it.
+     */
+    @Override
+    public void onPrefetch(Context context, Message message, CellHolderSpecs specs) {
+        Info info = getParsedContent(mLayerClient, message);
+        if (info == null) return;
+        int[] cellDims = specs == null ? null : Util.scaleDownInside(info.width, info.height, specs.maxWidth, specs.maxHeight);
+        boolean validDims = cellDims != null && cellDims[0] > 0 && cellDims[1] > 0;
+        if (!validDims || getCachedThumbnail(context, info, cellDims) == null) {
+            MessagePart previewPart = new ThreePartMessageParts(message).getPreviewPart();
+            if (!previewPart.isContentReady()) {
+                // Decoding would hold a Picasso thread until downloaded, so only warm the download
+                MessagePartDownloads.download(previewPart);
+                return;
+            }
+        }
+        if (!validDims) return;
+        createPreviewRequest(context, info, cellDims).tag(getPrefetchTag(message)).fetch();
+    }
+
+    @Override
+    public void onCancelPrefetch(Message message) {
+        mPicasso.cancelTag(getPrefetchTag(message));
+    }
+
     //==============================================================================================
     // private methods
     //==============================================================================================
 
+    /**
+     * Loads the preview into the cell.  If the request fails because the preview part is still
+     * downloading, e.g. when MessagePartRequestHandler has no waiting slot free, loads it again once
+     * the download finishes and the cell still shows the same Info.  If a cached thumbnail fails to
+     * load, drops it from the ThumbnailDiskCache and renders the preview part instead.
+     */
+    private void loadPreview(final CellHolder cellHolder, final Info info, final MessagePart previewPart, final int[] cellDims) {
+        final Context context = cellHolder.mImageView.getContext();
+        boolean validDims = cellDims[0] > 0 && cellDims[1] > 0;
+        final File cached = validDims ? getCachedThumbnail(context, info, cellDims) : null;
+        RequestCreator creator = cached != null ? mPicasso.load(cached) : createPreviewPartRequest(context, info, cellDims);
+        creator.tag(PICASSO_TAG).placeholder(PLACEHOLDER)
+                .into(cellHolder.mImageView, new Callback() {
+                    @Override
+                    public void onSuccess() {
+                        cellHolder.mProgressBar.hide();
+                    }
+
+                    @Override
+                    public void onError(Exception ex) {
+                        if (cached != null) {
+                            // Deleted or unreadable, e.g. cleared with the app's cache directory
+                            if (Log.isLoggable(Log.VERBOSE)) Log.v("Cached thumbnail failed to load: " + cached);
+                            getThumbnailCache(context).remove(getThumbnailKey(context, info, cellDims));
+                            loadPreview(cellHolder, info, previewPart, cellDims);
+                            return;
+                        }
+                        if (previewPart.isContentReady()) {
+                            cellHolder.mProgressBar.hide();
+                            return;
+                        }
+                        MessagePartDownloads.download(previewPart).addCallback(new MessagePartDownloads.Download.Callback() {
+                            @Override
+                            public void onDownloadFinished(MessagePart part) {
+                                if (cellHolder.mImageView.getTag() != info) return;
+                                if (part.isContentReady()) {
+                                    loadPreview(cellHolder, info, part, cellDims);
+                                } else {
+                                    cellHolder.mProgressBar.hide();
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * Loads the rendered preview from the ThumbnailDiskCache if present.  Otherwise renders it from
+     * the preview part, writing the result to the ThumbnailDiskCache for next time.
+     */
+    private RequestCreator createPreviewRequest(Context context, Info info, int[] cellDims) {
+        boolean validDims = cellDims[0] > 0 && cellDims[1] > 0;
+        if (validDims) {
+            File cached = getCachedThumbnail(context, info, cellDims);
+            if (cached != null) return mPicasso.load(cached);
+        }
+        return createPreviewPartRequest(context, info, cellDims);
+    }
+
+    /**
+     * Renders the preview from the preview part, writing the result to the ThumbnailDiskCache.
+     */
+    private RequestCreator createPreviewPartRequest(Context context, Info info, int[] cellDims) {
+        boolean validDims = cellDims[0] > 0 && cellDims[1] > 0;
+        RequestCreator creator = mPicasso.load(info.previewPartId);
+        if (validDims) {
+            creator.resize(cellDims[0], cellDims[1]);
+            switch (info.orientation) {
+                case ThreePartImageUtils.ORIENTATION_0:
+                    break;
+                case ThreePartImageUtils.ORIENTATION_90:
+                    creator.rotate(-90);
+                    break;
+                case ThreePartImageUtils.ORIENTATION_180:
+                    creator.rotate(180);
+                    break;
+                default:
+                    creator.rotate(90);
+                    break;
+            }
+        }
+        creator.transform(getTransform(context));
+        ThumbnailDiskCache thumbnailCache = getThumbnailCache(context);
+        if (validDims && thumbnailCache != null) {
+            creator.transform(thumbnailCache.writeThrough(getThumbnailKey(context, info, cellDims)));
+        }
+        return creator;
+    }
+
+    private File getCachedThumbnail(Context context, Info info, int[] cellDims) {
+        ThumbnailDiskCache thumbnailCache = getThumbnailCache(context);
+        if (thumbnailCache == null) return null;
+        return thumbnailCache.get(getThumbnailKey(context, info, cellDims));
+    }
+
+    /**
+     * Returns a key capturing everything that affects the rendered preview.
+     */
+    private String getThumbnailKey(Context context, Info info, int[] cellDims) {
+        return info.previewPartId + "|" + cellDims[0] + "x" + cellDims[1] + "|" + info.orientation + "|" + getTransform(context).key();
+    }
+
+    private ThumbnailDiskCache getThumbnailCache(Context context) {
+        if (mThumbnailCache == null && mUseDefaultThumbnailCache) {
+            mThumbnailCache = ThumbnailDiskCache.getDefault(context);
+        }
+        return mThumbnailCache;
+    }
+
+    private static String getPrefetchTag(Message message) {
+        return PICASSO_TAG + ".prefetch." + message.getId();
+    }
+
     private Transformation getTransform(Context context) {
         if (mTransform == null) {
             float radius = context.getResources().getDimension(com.layer.atlas.R.dimen.atlas_message_item_cell_radius);
@@ -212,7 +365,7 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
         for (MessagePart part : parts) {
             if (part.getMimeType().equals(ThreePartImageUtils.MIME_TYPE_INFO)) {
                 hasInfoPart = true;
-            } else if (part.getMimeType().equals(ThreePartImageUtils.MIME_TYPE_PREVIEW)) {
+            } else if (ThreePartImageUtils.isPreviewMimeType(part.getMimeType())) {
                 hasPreviewPart = true;
             } else if (part.getMimeType().startsWith("image/")) {
                 hasFullPart = true;
@@ -266,7 +419,7 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
 
         @Override
         public int sizeOf() {
-            return ((Integer.SIZE + Integer.SIZE + Integer.SIZE) / Byte.SIZE) + fullPartId.toString().getBytes().length + previewPartId.toString().getBytes().length;
+            return HeapSize.object((Integer.SIZE * 3 + Long.SIZE) / Byte.SIZE, 2) + HeapSize.of(fullPartId) + HeapSize.of(previewPartId);
         }
 
         @Override
@@ -320,7 +473,7 @@ public class ThreePartImageCellFactory extends AtlasCellFactory<ThreePartImageCe
             for (MessagePart part : messageParts) {
                 if (part.getMimeType().equals(ThreePartImageUtils.MIME_TYPE_INFO)) {
                     mInfoPart = part;
-                } else if (part.getMimeType().equals(ThreePartImageUtils.MIME_TYPE_PREVIEW)) {
+                } else if (ThreePartImageUtils.isPreviewMimeType(part.getMimeType())) {
                     mPreviewPart = part;
                 } else if (part.getMimeType().startsWith("image/")) {
                     mFullPart = part;
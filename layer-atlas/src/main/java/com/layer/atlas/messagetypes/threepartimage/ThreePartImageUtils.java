@@ -1,34 +1,34 @@
 package com.layer.atlas.messagetypes.threepartimage;
 
+import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.media.ExifInterface;
 import android.net.Uri;
-import android.os.Build;
-import android.os.ParcelFileDescriptor;
-import android.provider.MediaStore;
-import android.provider.OpenableColumns;
-import android.support.annotation.NonNull;
-import android.support.annotation.RequiresApi;
 
+import com.layer.atlas.util.BitmapPool;
 import com.layer.atlas.util.Log;
 import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.Message;
 import com.layer.sdk.messaging.MessagePart;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Calendar;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ThreePartImageUtils {
     public static final int ORIENTATION_0 = 0;
@@ -37,6 +37,7 @@ public class ThreePartImageUtils {
     public static final int ORIENTATION_270 = 3;
 
     public static final String MIME_TYPE_PREVIEW = "image/jpeg+preview";
+    public static final String MIME_TYPE_PREVIEW_WEBP = "image/webp+preview";
     public static final String MIME_TYPE_INFO = "application/json+imageSize";
 
     public static final int PART_INDEX_FULL = 0;
@@ -49,90 +50,215 @@ public class ThreePartImageUtils {
     public static final String MIME_TYPE_FILTER_IMAGE = "image/*";
     public static final String MIME_TYPE_IMAGE_JPEG = "image/jpeg";
 
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+    private static final int PREVIEW_MIN_QUALITY = 30;
+    private static final int PREVIEW_MIN_DIMENSION = 128;
+
+    private static volatile int sPreviewByteBudget = 0;
+    private static volatile boolean sPreviewWebpAllowed = false;
+    private static final AtomicLong sPreviewBytesSaved = new AtomicLong();
+
+    private static final int DEFAULT_FULL_IMAGE_QUALITY = 85;
+    private static volatile int sFullImageMaxLongEdge = 0;
+    private static volatile int sFullImageQuality = DEFAULT_FULL_IMAGE_QUALITY;
+
     /**
-     * The methods by which the ThreePartImageMessage is constructed differs by Android API versions
-     * since the way in which Android handles files from ContentProviders has changed across versions
+     * Sets a target size for preview parts, which are synced to every participant.  When set,
+     * previews that exceed the budget at the default quality are re-encoded at the highest quality
+     * that fits, and shrunk if even the minimum quality does not fit.  The chosen
+     * format, quality, and dimensions are added to the info part.
      * <p>
-     * Nougat: Makes some changes to how files are handled.  It is no longer allowed to attach a "file://"
-     * URI to an intent any longer.
-     * <p>
-     * Kitkat - Marshmallow : On these versions of Android, the URI you get back may or may not be a "file://"
-     * URI, depending on whether the file in question is on disk or is a remote file. Using a {@link ParcelFileDescriptor}
-     * is the simplest way of handling these variations, without having to parse URIs.
+     * WebP previews are usually smaller, but carry no EXIF orientation and are sent as
+     * {@link #MIME_TYPE_PREVIEW_WEBP}, which clients that only know {@link #MIME_TYPE_PREVIEW} will
+     * not recognize as a three part image; orientation is always available from the info part.
+     *
+     * @param maxBytes  Target preview size in bytes, or 0 to always use the default quality.
+     * @param allowWebp `true` to encode previews as WebP when within a budget.
+     * @see #getPreviewBytesSaved()
+     */
+    public static void setPreviewByteBudget(int maxBytes, boolean allowWebp) {
+        sPreviewByteBudget = Math.max(0, maxBytes);
+        sPreviewWebpAllowed = allowWebp;
+    }
+
+    /**
+     * Sets a maximum size for full image parts.  When set, images with a longer edge than
+     * `maxLongEdge` are downscaled and re-encoded as JPEG at the given quality before sending,
+     * instead of attaching the original file.  The original EXIF orientation is kept, and the
+     * preview is derived from the downscaled image rather than decoded again.
+     *
+     * @param maxLongEdge Maximum width or height of full images in pixels, or 0 to always send the
+     *                    original file.
+     * @param quality     JPEG quality for downscaled full images, from 0 to 100.
+     */
+    public static void setFullImageDownscale(int maxLongEdge, int quality) {
+        if (quality < 0 || quality > 100) throw new IllegalArgumentException("Quality must be between 0 and 100");
+        sFullImageMaxLongEdge = Math.max(0, maxLongEdge);
+        sFullImageQuality = quality;
+    }
+
+    /**
+     * Returns the total number of preview bytes saved by the preview byte budget, compared to
+     * encoding at the default quality and dimensions.
+     *
+     * @see #setPreviewByteBudget(int, boolean)
+     */
+    public static long getPreviewBytesSaved() {
+        return sPreviewBytesSaved.get();
+    }
+
+    /**
+     * Returns `true` if the given MIME type is that of a JPEG or WebP preview part.
+     */
+    public static boolean isPreviewMimeType(String mimeType) {
+        return MIME_TYPE_PREVIEW.equals(mimeType) || MIME_TYPE_PREVIEW_WEBP.equals(mimeType);
+    }
+
+    /**
+     * Creates a new ThreePartImage Message from a content or file URI.
      * <p>
-     * Jelly Bean to <KitKat: {@link #getPath(Context, Uri) getPath} handles potential edge cases arising from files picked
-     * from the Gallery vs files selected using a third party file explorer
+     * The source is read exactly once: "file://" URIs are used in place, while other URIs are
+     * streamed into a temporary file in the cache directory.  EXIF data, bounds, the preview and
+     * the full part are all derived from that single local copy, which works the same way on all
+     * API levels since {@link ExifInterface} can always read from a file path.
      */
     public static Message newThreePartImageMessage(Context context, LayerClient layerClient, Uri imageUri) throws IOException {
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
-            return newThreePartImageMessageFromUri(context, layerClient, imageUri);
-        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
-            ParcelFileDescriptor parcelFileDescriptor = null;
-            try {
-                parcelFileDescriptor = context.getContentResolver().openFileDescriptor(imageUri, "r");
-                FileDescriptor fileDescriptor = parcelFileDescriptor.getFileDescriptor();
-                return newThreePartImageMessageFromFileDescriptor(context, layerClient, fileDescriptor);
-            } finally {
-                if (parcelFileDescriptor != null) {
-                    parcelFileDescriptor.close();
-                }
-            }
-        } else {
-            String path = getPath(context, imageUri);
-            File imageFile = new File(path);
-            return ThreePartImageUtils.newThreePartImageMessage(context, layerClient, imageFile);
-        }
+        return newThreePartImageMessage(context, layerClient, imageUri, new ArrayList<Closeable>());
     }
 
-    private static String getPath(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri, new String[]{MediaStore.Images.Media.DATA}, null, null, null);
+    /**
+     * As {@link #newThreePartImageMessage(Context, LayerClient, Uri)}, adding the streams opened
+     * for the Message's parts to `streams`, so they can be closed if the Message is never sent.
+     */
+    static Message newThreePartImageMessage(Context context, LayerClient layerClient, Uri imageUri, List<Closeable> streams) throws IOException {
+        if (layerClient == null) throw new IllegalArgumentException("Null LayerClient");
+        if (imageUri == null) throw new IllegalArgumentException("Null image URI");
+
+        if (ContentResolver.SCHEME_FILE.equals(imageUri.getScheme()) && imageUri.getPath() != null) {
+            return newThreePartImageMessage(context, layerClient, new File(imageUri.getPath()), streams);
+        }
 
+        StageTimer timer = new StageTimer();
+        File spooled = spoolToCache(context, imageUri);
+        timer.mark("spool");
         try {
-            // Images in the MediaStore
-            if (cursor != null) {
-                int columnIndex = cursor.getColumnIndexOrThrow(MediaStore.Images.Media.DATA);
-                cursor.moveToFirst();
-                return cursor.getString(columnIndex);
-            } else {
-                // Fallback to available path in the Uri
-                return uri.getPath();
-            }
+            return newThreePartImageMessage(context, layerClient, spooled, timer, streams);
         } finally {
-            if (cursor != null) cursor.close();
+            // See newFileMessagePart() for why the spooled copy can be deleted here
+            if (!spooled.delete() && Log.isLoggable(Log.VERBOSE)) {
+                Log.v("Could not delete spooled image '" + spooled.getAbsolutePath() + "'");
+            }
         }
     }
 
     /**
-     * Creates a new ThreePartImage Message.  The full image is attached untouched, while the
-     * preview is created from the full image by loading, resizing, and compressing.
+     * Creates a new ThreePartImage Message.  The full image is attached untouched unless a full
+     * image downscale is set, while the preview is created from the full image by loading,
+     * resizing, and compressing.
      *
      * @param client
      * @param file   Image file
      * @return
      */
     public static Message newThreePartImageMessage(Context context, LayerClient client, File file) throws IOException {
+        return newThreePartImageMessage(context, client, file, new ArrayList<Closeable>());
+    }
+
+    /**
+     * As {@link #newThreePartImageMessage(Context, LayerClient, File)}, adding the streams opened
+     * for the Message's parts to `streams`, so they can be closed if the Message is never sent.
+     */
+    static Message newThreePartImageMessage(Context context, LayerClient client, File file, List<Closeable> streams) throws IOException {
+        return newThreePartImageMessage(context, client, file, new StageTimer(), streams);
+    }
+
+    private static Message newThreePartImageMessage(Context context, LayerClient client, File file, StageTimer timer,
+                                                    List<Closeable> streams) throws IOException {
+        boolean built = false;
+        try {
+            Message message = buildThreePartImageMessage(context, client, file, timer, streams);
+            built = true;
+            return message;
+        } finally {
+            // Parts of a Message that failed to build are never sent
+            if (!built) closeStreams(streams);
+        }
+    }
+
+    /**
+     * Closes streams collected while building a Message that will not be sent.
+     */
+    static void closeStreams(List<Closeable> streams) {
+        for (Closeable stream : streams) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                if (Log.isLoggable(Log.VERBOSE)) Log.v("Could not close image part stream", e);
+            }
+        }
+        streams.clear();
+    }
+
+    private static Message buildThreePartImageMessage(Context context, LayerClient client, File file, StageTimer timer,
+                                                      List<Closeable> streams) throws IOException {
         if (client == null) throw new IllegalArgumentException("Null LayerClient");
         if (file == null) throw new IllegalArgumentException("Null image file");
         if (!file.exists()) throw new IllegalArgumentException("No image file");
         if (!file.canRead()) throw new IllegalArgumentException("Cannot read image file");
 
-        BitmapFactory.Options bounds = getBounds(new FileInputStream(file.getAbsolutePath()));
         ExifInterface exifData = getExifData(file);
+        timer.mark("exif");
 
-        // Create info message part
-        MessagePart info = buildInfoMessagePart(client, bounds, exifData);
+        BitmapFactory.Options bounds = getBounds(file);
+        timer.mark("bounds");
+
+        // Decode once for both the downscaled full image and the preview, if downscaling
+        Bitmap downscaled = getDownscaledBitmap(bounds, file);
+        if (downscaled != null) timer.mark("decode");
 
         // Create Preview message part
         if (Log.isLoggable(Log.VERBOSE)) {
             Log.v("Creating Preview from '" + file.getAbsolutePath() + "'");
         }
-        MessagePart preview = buildPreviewMessagePart(context, client, new FileInputStream(file.getAbsolutePath()), bounds, exifData);
+        Bitmap previewBitmap;
+        if (downscaled != null) {
+            int[] previewDimensions = Util.scaleDownInside(downscaled.getWidth(), downscaled.getHeight(), PREVIEW_MAX_WIDTH, PREVIEW_MAX_HEIGHT);
+            previewBitmap = scale(downscaled, previewDimensions[0], previewDimensions[1]);
+        } else {
+            previewBitmap = getPreviewBitmap(bounds, file);
+        }
+        if (previewBitmap == null) throw new IOException("Could not decode image '" + file.getAbsolutePath() + "'");
+        EncodedPreview encoded = encodePreview(previewBitmap);
+        BitmapPool.getDefault().release(previewBitmap);
+        MessagePart preview = buildPreviewMessagePart(context, client, encoded, exifData, streams);
+        timer.mark("preview");
 
         // Create Full message part
-        MessagePart full = client.newMessagePart(MIME_TYPE_IMAGE_JPEG, new FileInputStream(file), file.length());
+        MessagePart full = null;
+        int fullWidth = bounds.outWidth;
+        int fullHeight = bounds.outHeight;
+        if (downscaled != null) {
+            full = buildDownscaledFullMessagePart(context, client, downscaled, file.length(), exifData, streams);
+            if (full != null) {
+                fullWidth = downscaled.getWidth();
+                fullHeight = downscaled.getHeight();
+            }
+            downscaled.recycle();
+        }
+        if (full == null) {
+            full = newFileMessagePart(client, MIME_TYPE_IMAGE_JPEG, file, streams);
+        }
+        timer.mark("full");
+
+        // Create info message part
+        MessagePart info = buildInfoMessagePart(client, fullWidth, fullHeight, exifData, encoded);
+
         if (Log.isLoggable(Log.VERBOSE)) {
             Log.v(String.format(Locale.US, "Full image bytes: %d, preview bytes: %d, info bytes: %d", full.getSize(), preview.getSize(), info.getSize()));
         }
+        if (Log.isPerfLoggable()) {
+            Log.perf("ThreePartImage built from " + file.length() + " bytes: " + timer);
+        }
 
         MessagePart[] parts = new MessagePart[3];
         parts[PART_INDEX_FULL] = full;
@@ -141,6 +267,31 @@ public class ThreePartImageUtils {
         return client.newMessage(parts);
     }
 
+    /**
+     * Streams the given URI into a new temporary file in the cache directory.
+     */
+    private static File spoolToCache(Context context, Uri uri) throws IOException {
+        InputStream inputStream = context.getContentResolver().openInputStream(uri);
+        if (inputStream == null) throw new IOException("Could not open " + uri);
+        File file = new File(context.getCacheDir(), ThreePartImageUtils.class.getSimpleName() + ".spool." + System.nanoTime());
+        OutputStream outputStream = null;
+        try {
+            outputStream = new FileOutputStream(file);
+            byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, len);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        } finally {
+            inputStream.close();
+            if (outputStream != null) outputStream.close();
+        }
+        return file;
+    }
+
     private static ExifInterface getExifData(File imageFile) throws IOException {
         if (imageFile == null) throw new IllegalArgumentException("Null image file");
         if (!imageFile.exists()) throw new IllegalArgumentException("Image file does not exist");
@@ -158,37 +309,25 @@ public class ThreePartImageUtils {
         }
     }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private static ExifInterface getExifData(@NonNull InputStream inputStream) throws IOException {
-        try {
-            ExifInterface exifInterface = new ExifInterface(inputStream);
-            return exifInterface;
-        } catch (IOException e) {
-            if (Log.isLoggable(Log.ERROR)) {
-                Log.e(e.getMessage(), e);
-            }
-            throw e;
-        }
-    }
-
-    private static BitmapFactory.Options getBounds(InputStream inputStream) {
+    private static BitmapFactory.Options getBounds(File file) {
         BitmapFactory.Options bounds = new BitmapFactory.Options();
         bounds.inJustDecodeBounds = true;
-        BitmapFactory.decodeStream(inputStream, null, bounds);
+        BitmapFactory.decodeFile(file.getAbsolutePath(), bounds);
 
         return bounds;
     }
 
-    private static MessagePart buildInfoMessagePart(LayerClient client, BitmapFactory.Options bounds,
-                                                    ExifInterface exifData) throws IOException {
+    private static MessagePart buildInfoMessagePart(LayerClient client, int width, int height,
+                                                    ExifInterface exifData, EncodedPreview preview) throws IOException {
         int[] orientationData = getOrientationData(exifData);
         int orientation = orientationData[0];
 
         boolean isSwap = orientation == ORIENTATION_270 || orientation == ORIENTATION_90;
 
         String intoString = "{\"orientation\":" + orientation + ", \"width\":"
-                + (!isSwap ? bounds.outWidth : bounds.outHeight) + ", \"height\":"
-                + (!isSwap ? bounds.outHeight : bounds.outWidth) + "}";
+                + (!isSwap ? width : height) + ", \"height\":"
+                + (!isSwap ? height : width)
+                + (preview.mBudgeted ? ", \"preview\":" + preview.toJson() : "") + "}";
 
         if (Log.isLoggable(Log.VERBOSE)) {
             Log.v("Creating image info: " + intoString);
@@ -197,7 +336,7 @@ public class ThreePartImageUtils {
         return client.newMessagePart(MIME_TYPE_INFO, intoString.getBytes());
     }
 
-    private static Bitmap getPreviewBitmap(BitmapFactory.Options bounds, InputStream inputStream) {
+    private static Bitmap getPreviewBitmap(BitmapFactory.Options bounds, File file) {
         // Determine preview size
         int[] previewDimensions = Util.scaleDownInside(bounds.outWidth, bounds.outHeight, PREVIEW_MAX_WIDTH, PREVIEW_MAX_HEIGHT);
         if (Log.isLoggable(Log.VERBOSE)) {
@@ -215,116 +354,209 @@ public class ThreePartImageUtils {
         }
         if (sampleSize != 1) sampleSize >>= 1; // Back off 1 for scale-down instead of scale-up
 
-        BitmapFactory.Options previewOptions = new BitmapFactory.Options();
-        previewOptions.inSampleSize = sampleSize;
-
         if (Log.isLoggable(Log.VERBOSE)) {
             Log.v("Preview sampled size: " + (sampleWidth << 1) + "x" + (sampleHeight << 1));
         }
 
+        // Decode and scale through pooled Bitmaps, since previews are discarded once compressed
+        BitmapPool pool = BitmapPool.getDefault();
+        Bitmap sampledBitmap = pool.decodeFile(file.getAbsolutePath(), bounds.outWidth, bounds.outHeight, sampleSize);
+        if (sampledBitmap == null) return null;
+
         // Create previewBitmap if sample size and preview size are different
-        Bitmap sampledBitmap = BitmapFactory.decodeStream(inputStream, null, previewOptions);
-        if (previewDimensions[0] != sampleWidth && previewDimensions[1] != sampleHeight) {
-            Bitmap previewBitmap = Bitmap.createScaledBitmap(sampledBitmap, previewDimensions[0], previewDimensions[1], true);
-            sampledBitmap.recycle();
+        if (sampledBitmap.getWidth() != previewDimensions[0] || sampledBitmap.getHeight() != previewDimensions[1]) {
+            Bitmap previewBitmap = scale(sampledBitmap, previewDimensions[0], previewDimensions[1]);
+            pool.release(sampledBitmap);
             return previewBitmap;
-        }
-        else {
+        } else {
             return sampledBitmap;
         }
     }
 
-    private static MessagePart buildPreviewMessagePart(Context context, LayerClient client, InputStream inputStream,
-                                                       BitmapFactory.Options bounds, ExifInterface exifData) throws IOException {
+    /**
+     * Returns a filtered copy of the given Bitmap at the given size, drawn into a pooled Bitmap.
+     */
+    private static Bitmap scale(Bitmap source, int width, int height) {
+        Bitmap scaled = BitmapPool.getDefault().get(width, height, Bitmap.Config.ARGB_8888);
+        new Canvas(scaled).drawBitmap(source, null, new Rect(0, 0, width, height), new Paint(Paint.FILTER_BITMAP_FLAG));
+        return scaled;
+    }
 
-        Bitmap previewBitmap = getPreviewBitmap(bounds, inputStream);
-        File temp = new File(context.getCacheDir(), ThreePartImageUtils.class.getSimpleName() + "." + System.nanoTime() + ".jpg");
-        FileOutputStream previewStream = new FileOutputStream(temp);
+    /**
+     * Decodes the image scaled to the full image downscale size, or returns `null` if downscaling
+     * is disabled or the image is already small enough.
+     */
+    private static Bitmap getDownscaledBitmap(BitmapFactory.Options bounds, File file) {
+        int maxLongEdge = sFullImageMaxLongEdge;
+        int longEdge = Math.max(bounds.outWidth, bounds.outHeight);
+        if (maxLongEdge <= 0 || longEdge <= maxLongEdge) return null;
 
+        // Sample down as far as possible while staying above the target, then scale the rest of
+        // the way while decoding to avoid holding a second full-size Bitmap
+        int sampleSize = 1;
+        while (longEdge / (sampleSize * 2) >= maxLongEdge) {
+            sampleSize <<= 1;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inScaled = true;
+        options.inDensity = longEdge / sampleSize;
+        options.inTargetDensity = maxLongEdge;
         if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Compressing preview to '" + temp.getAbsolutePath() + "'");
+            Log.v("Downscaling full image from " + bounds.outWidth + "x" + bounds.outHeight + " with sample size "
+                    + sampleSize + " to long edge " + maxLongEdge);
         }
+        return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+    }
 
-        previewBitmap.compress(Bitmap.CompressFormat.JPEG, PREVIEW_COMPRESSION_QUALITY, previewStream);
-        previewBitmap.recycle();
-        previewStream.close();
-
-        // Preserve exif orientation
-        ExifInterface preserver = new ExifInterface(temp.getAbsolutePath());
-        int[] orientationData = getOrientationData(exifData);
-        int exifOrientation = orientationData[1];
-        preserver.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(exifOrientation));
-        preserver.saveAttributes();
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Exif orientation preserved in preview");
+    /**
+     * Re-encodes the downscaled full image, or returns `null` if that would not be smaller than
+     * the original file.
+     */
+    private static MessagePart buildDownscaledFullMessagePart(Context context, LayerClient client, Bitmap downscaled,
+                                                              long originalBytes, ExifInterface exifData,
+                                                              List<Closeable> streams) throws IOException {
+        File temp = new File(context.getCacheDir(), ThreePartImageUtils.class.getSimpleName() + ".full." + System.nanoTime() + ".jpg");
+        FileOutputStream fullStream = new FileOutputStream(temp);
+        try {
+            downscaled.compress(Bitmap.CompressFormat.JPEG, sFullImageQuality, fullStream);
+        } finally {
+            fullStream.close();
+        }
+        if (temp.length() >= originalBytes) {
+            if (Log.isLoggable(Log.VERBOSE)) Log.v("Downscaled full image is not smaller, sending original");
+            temp.delete();
+            return null;
+        }
+        preserveExifOrientation(temp, exifData);
+        if (Log.isPerfLoggable()) {
+            Log.perf("ThreePartImage full image downscaled to " + downscaled.getWidth() + "x" + downscaled.getHeight()
+                    + ", " + temp.length() + " bytes from " + originalBytes);
         }
 
-        return client.newMessagePart(MIME_TYPE_PREVIEW, new FileInputStream(temp), temp.length());
+        MessagePart part = newFileMessagePart(client, MIME_TYPE_IMAGE_JPEG, temp, streams);
+        temp.delete();
+        return part;
     }
 
+    private static MessagePart buildPreviewMessagePart(Context context, LayerClient client, EncodedPreview preview,
+                                                       ExifInterface exifData, List<Closeable> streams) throws IOException {
+        // EXIF can only be written to JPEG previews
+        if (preview.mFormat != Bitmap.CompressFormat.JPEG) {
+            return client.newMessagePart(MIME_TYPE_PREVIEW_WEBP, preview.mData);
+        }
 
-    @RequiresApi(api = Build.VERSION_CODES.N)
-    private static Message newThreePartImageMessageFromUri(Context context, LayerClient client, @NonNull Uri uri) throws IOException {
-        if (client == null) throw new IllegalArgumentException("Null LayerClient");
+        File temp = new File(context.getCacheDir(), ThreePartImageUtils.class.getSimpleName() + "." + System.nanoTime() + ".jpg");
+        if (Log.isLoggable(Log.VERBOSE)) {
+            Log.v("Writing preview to '" + temp.getAbsolutePath() + "'");
+        }
+        FileOutputStream previewStream = new FileOutputStream(temp);
+        try {
+            previewStream.write(preview.mData);
+        } finally {
+            previewStream.close();
+        }
 
-        InputStream inputStream = context.getContentResolver().openInputStream(uri);
-        ExifInterface exifData = getExifData(inputStream);
+        preserveExifOrientation(temp, exifData);
 
-        inputStream = context.getContentResolver().openInputStream(uri);
-        BitmapFactory.Options bounds = getBounds(inputStream);
+        MessagePart part = newFileMessagePart(client, MIME_TYPE_PREVIEW, temp, streams);
+        temp.delete();
+        return part;
+    }
 
-        // Create info message part
-        MessagePart info = buildInfoMessagePart(client, bounds, exifData);
+    /**
+     * Creates a MessagePart streaming the given file.  The part holds an open stream to the file,
+     * and an unlinked file stays readable through open streams, so temporary files can be deleted
+     * as soon as their part is created.  The stream is added to `streams`.
+     */
+    private static MessagePart newFileMessagePart(LayerClient client, String mimeType, File file,
+                                                  List<Closeable> streams) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        streams.add(stream);
+        return client.newMessagePart(mimeType, stream, file.length());
+    }
 
-        // Create Preview message part
+    private static void preserveExifOrientation(File jpeg, ExifInterface exifData) throws IOException {
+        ExifInterface preserver = new ExifInterface(jpeg.getAbsolutePath());
+        int[] orientationData = getOrientationData(exifData);
+        int exifOrientation = orientationData[1];
+        preserver.setAttribute(ExifInterface.TAG_ORIENTATION, Integer.toString(exifOrientation));
+        preserver.saveAttributes();
         if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v("Creating Preview from " + uri.toString());
+            Log.v("Exif orientation preserved in '" + jpeg.getName() + "'");
         }
-        inputStream = context.getContentResolver().openInputStream(uri);
-        MessagePart preview = buildPreviewMessagePart(context, client, inputStream, bounds, exifData);
+    }
 
-        // Create Full message part
-        inputStream = context.getContentResolver().openInputStream(uri);
-        long fileSize = getFileSizeFromUri(context, uri);
-        MessagePart full = client.newMessagePart(MIME_TYPE_IMAGE_JPEG, inputStream, fileSize);
-        if (Log.isLoggable(Log.VERBOSE)) {
-            Log.v(String.format(Locale.US, "Full image bytes: %d, preview bytes: %d, info bytes: %d", full.getSize(), preview.getSize(), info.getSize()));
+    /**
+     * Encodes the preview at the default quality, or within the preview byte budget if one is set.
+     */
+    private static EncodedPreview encodePreview(Bitmap previewBitmap) {
+        EncodedPreview baseline = encode(previewBitmap, Bitmap.CompressFormat.JPEG, PREVIEW_COMPRESSION_QUALITY);
+        int budget = sPreviewByteBudget;
+        if (budget <= 0) return baseline;
+
+        Bitmap.CompressFormat format = sPreviewWebpAllowed ? Bitmap.CompressFormat.WEBP : Bitmap.CompressFormat.JPEG;
+        EncodedPreview best;
+        if (format == Bitmap.CompressFormat.JPEG && baseline.mData.length <= budget) {
+            best = baseline;
+        } else {
+            // Search quality at the full preview size, then shrink until a quality fits
+            BitmapPool pool = BitmapPool.getDefault();
+            Bitmap scaled = previewBitmap;
+            while (true) {
+                best = encodeWithinBudget(scaled, format, budget);
+                if (best != null) break;
+                int width = scaled.getWidth() * 3 / 4;
+                int height = scaled.getHeight() * 3 / 4;
+                if (Math.max(width, height) < PREVIEW_MIN_DIMENSION || Math.min(width, height) < 1) {
+                    // Cannot fit the budget; settle for the smallest preview
+                    best = encode(scaled, format, PREVIEW_MIN_QUALITY);
+                    break;
+                }
+                Bitmap next = scale(scaled, width, height);
+                if (scaled != previewBitmap) pool.release(scaled);
+                scaled = next;
+            }
+            if (scaled != previewBitmap) pool.release(scaled);
+            if (best.mData.length >= baseline.mData.length) best = baseline;
         }
 
-        MessagePart[] parts = new MessagePart[3];
-        parts[PART_INDEX_FULL] = full;
-        parts[PART_INDEX_PREVIEW] = preview;
-        parts[PART_INDEX_INFO] = info;
-        return client.newMessage(parts);
+        best.mBudgeted = true;
+        long saved = sPreviewBytesSaved.addAndGet(baseline.mData.length - best.mData.length);
+        if (Log.isPerfLoggable()) {
+            Log.perf("ThreePartImage preview " + best.toJson() + " is " + best.mData.length + " bytes for budget "
+                    + budget + ", default " + baseline.mData.length + " bytes; " + saved + " bytes saved in total");
+        }
+        return best;
     }
 
     /**
-     * Need to copy the file into the cache since the APIs to read exifdata from
-     * {@link FileDescriptor} & {@link InputStream} are not available on Android versions < Nougat.
-     *
-     * The only option is to read that information from a file, which necessitates the use of
-     * {@link #writeStreamToFile(String, InputStream)}, after which the file handling is standard
-     * for all Android versions < Nougat
+     * Returns the highest-quality encoding of the bitmap within the budget, or `null` if even the
+     * minimum quality exceeds it.
      */
-    private static Message newThreePartImageMessageFromFileDescriptor(Context context, LayerClient client, @NonNull FileDescriptor fileDescriptor) throws IOException {
-        if (client == null) throw new IllegalArgumentException("Null LayerClient");
-
-        InputStream inputStream = new FileInputStream(fileDescriptor);
-        String filePath = context.getCacheDir() + "/img_" + Calendar.getInstance().getTimeInMillis();
-        writeStreamToFile(filePath, inputStream);
-        return newThreePartImageMessage(context, client, new File(filePath));
+    private static EncodedPreview encodeWithinBudget(Bitmap bitmap, Bitmap.CompressFormat format, int budget) {
+        EncodedPreview best = encode(bitmap, format, PREVIEW_COMPRESSION_QUALITY);
+        if (best.mData.length <= budget) return best;
+        best = null;
+        int low = PREVIEW_MIN_QUALITY;
+        int high = PREVIEW_COMPRESSION_QUALITY - 1;
+        while (low <= high) {
+            int quality = (low + high) >>> 1;
+            EncodedPreview encoded = encode(bitmap, format, quality);
+            if (encoded.mData.length <= budget) {
+                best = encoded;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+        }
+        return best;
     }
 
-    private static void writeStreamToFile(String filePath, InputStream inputStream) throws IOException {
-        OutputStream stream = new BufferedOutputStream(new FileOutputStream(filePath));
-        int bufferSize = 1024;
-        byte[] buffer = new byte[bufferSize];
-        int len = 0;
-        while ((len = inputStream.read(buffer)) != -1) {
-            stream.write(buffer, 0, len);
-        }
-        if (stream != null)
-            stream.close();
+    private static EncodedPreview encode(Bitmap bitmap, Bitmap.CompressFormat format, int quality) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        bitmap.compress(format, quality, stream);
+        return new EncodedPreview(stream.toByteArray(), format, quality, bitmap.getWidth(), bitmap.getHeight());
     }
 
     private static int[] getOrientationData(ExifInterface exifInterface) {
@@ -359,13 +591,50 @@ public class ThreePartImageUtils {
         return orientationData;
     }
 
-    private static long getFileSizeFromUri(Context context, Uri uri) {
-        Cursor cursor = context.getContentResolver().query(uri,
-                null, null, null, null);
-        cursor.moveToFirst();
-        long size = cursor.getLong(cursor.getColumnIndex(OpenableColumns.SIZE));
-        cursor.close();
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class EncodedPreview {
+        final byte[] mData;
+        final Bitmap.CompressFormat mFormat;
+        final int mQuality;
+        final int mWidth;
+        final int mHeight;
+        boolean mBudgeted;
+
+        EncodedPreview(byte[] data, Bitmap.CompressFormat format, int quality, int width, int height) {
+            mData = data;
+            mFormat = format;
+            mQuality = quality;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        String toJson() {
+            return "{\"format\":\"" + mFormat.name().toLowerCase(Locale.US) + "\", \"quality\":" + mQuality
+                    + ", \"width\":" + mWidth + ", \"height\":" + mHeight + "}";
+        }
+    }
+
+    /**
+     * Records the elapsed time of each construction stage for perf logging.
+     */
+    private static class StageTimer {
+        private final StringBuilder mStages = new StringBuilder();
+        private final long mStart = System.nanoTime();
+        private long mLast = mStart;
+
+        void mark(String stage) {
+            long now = System.nanoTime();
+            if (mStages.length() > 0) mStages.append(", ");
+            mStages.append(stage).append(' ').append((now - mLast) / 1000000).append("ms");
+            mLast = now;
+        }
 
-        return size;
+        @Override
+        public String toString() {
+            return mStages + " (total " + (mLast - mStart) / 1000000 + "ms)";
+        }
     }
 }
@@ -0,0 +1,280 @@
+package com.layer.atlas.participant;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.layer.atlas.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import io.reactivex.Single;
+import io.reactivex.SingleEmitter;
+import io.reactivex.SingleOnSubscribe;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Cancellable;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+/**
+ * BatchingChatParticipantProvider decorates a ChatParticipantProvider by gathering the Participant
+ * IDs requested within a short window into a single `getParticipants()` call, and fanning the
+ * results out to each waiting subscriber.  This turns one lookup per visible row into one lookup
+ * per frame for backends where each lookup is a database or network round trip.
+ * <p>
+ * A batch is flushed once the flush latency has passed since its first request, or as soon as it
+ * holds the maximum batch size of IDs.  Requests are only queued once subscribed to, and are
+ * dropped from the batch if disposed before it is flushed.  If a lookup fails, only the requests
+ * for IDs in that lookup fail.
+ */
+public class BatchingChatParticipantProvider implements ChatParticipantProvider {
+    private static final int DEFAULT_MAX_BATCH_SIZE = 50;
+    private static final long DEFAULT_FLUSH_LATENCY_MILLIS = 16;
+
+    private final ChatParticipantProvider mDelegate;
+    private final int mMaxBatchSize;
+    private final long mFlushLatencyMillis;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Object mLock = new Object();
+    private final LinkedHashSet<String> mPendingIds = new LinkedHashSet<String>();
+    private final List<Request> mPendingRequests = new ArrayList<Request>();
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public BatchingChatParticipantProvider(ChatParticipantProvider delegate) {
+        this(delegate, DEFAULT_MAX_BATCH_SIZE, DEFAULT_FLUSH_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param delegate           Provider to issue batched lookups to.
+     * @param maxBatchSize       Maximum number of IDs in a single `getParticipants()` call.
+     * @param flushLatencyMillis Time to wait for more requests before issuing a batch.
+     */
+    public BatchingChatParticipantProvider(ChatParticipantProvider delegate, int maxBatchSize, long flushLatencyMillis) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("Max batch size must be positive");
+        mDelegate = delegate;
+        mMaxBatchSize = maxBatchSize;
+        mFlushLatencyMillis = flushLatencyMillis;
+    }
+
+    @Override
+    public Single<List<Participant>> getParticipants(final List<String> participantsIds) {
+        if (participantsIds.isEmpty()) return Single.just(Collections.<Participant>emptyList());
+        return Single.create(new SingleOnSubscribe<List<Participant>>() {
+            @Override
+            public void subscribe(SingleEmitter<List<Participant>> emitter) throws Exception {
+                final Request request = new Request(participantsIds, emitter);
+                emitter.setCancellable(new Cancellable() {
+                    @Override
+                    public void cancel() throws Exception {
+                        dequeue(request);
+                    }
+                });
+                enqueue(request);
+            }
+        });
+    }
+
+    @Override
+    public Single<Participant> getParticipant(final String id) {
+        return getParticipants(Collections.singletonList(id)).flatMap(new Function<List<Participant>, SingleSource<Participant>>() {
+            @Override
+            public SingleSource<Participant> apply(List<Participant> participants) throws Exception {
+                if (participants.isEmpty()) {
+                    return Single.error(new NoSuchElementException("No Participant with ID " + id));
+                }
+                return Single.just(participants.get(0));
+            }
+        });
+    }
+
+    @Override
+    public Single<Map<String, Participant>> getMatchingParticipants(@NonNull String filter) {
+        return mDelegate.getMatchingParticipants(filter);
+    }
+
+    @Override
+    public Single<List<Participant>> findParticipantsFromSameCompany(List<String> participantsIds) {
+        return mDelegate.findParticipantsFromSameCompany(participantsIds);
+    }
+
+    //==============================================================================================
+    // Batching
+    //==============================================================================================
+
+    private void enqueue(Request request) {
+        boolean flushNow;
+        synchronized (mLock) {
+            // Checked under the lock, so a dispose either lands here or in dequeue() after adding
+            if (request.mEmitter.isDisposed()) return;
+            mPendingRequests.add(request);
+            mPendingIds.addAll(request.mIds);
+            flushNow = mPendingIds.size() >= mMaxBatchSize;
+            if (!flushNow && !mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushRunnable, mFlushLatencyMillis);
+            }
+        }
+        if (flushNow) flush();
+    }
+
+    /**
+     * Drops a disposed request, and any IDs only it was waiting for, from the pending batch.
+     */
+    private void dequeue(Request request) {
+        synchronized (mLock) {
+            if (!mPendingRequests.remove(request)) return;
+            mPendingIds.clear();
+            for (Request pending : mPendingRequests) {
+                mPendingIds.addAll(pending.mIds);
+            }
+        }
+    }
+
+    private void flush() {
+        final List<String> ids;
+        final List<Request> requests;
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mFlushRunnable);
+            mFlushScheduled = false;
+            if (mPendingRequests.isEmpty()) return;
+            ids = new ArrayList<String>(mPendingIds);
+            requests = new ArrayList<Request>(mPendingRequests);
+            mPendingIds.clear();
+            mPendingRequests.clear();
+        }
+
+        if (Log.isPerfLoggable()) {
+            Log.perf("BatchingChatParticipantProvider flushing " + ids.size() + " IDs for " + requests.size() + " requests");
+        }
+
+        // Split into chunks of at most mMaxBatchSize IDs, completing each request once the chunks
+        // holding its IDs are done
+        final Batch batch = new Batch(requests);
+        for (int start = 0; start < ids.size(); start += mMaxBatchSize) {
+            final List<String> chunk = new ArrayList<String>(ids.subList(start, Math.min(ids.size(), start + mMaxBatchSize)));
+            mDelegate.getParticipants(chunk).subscribe(new Consumer<List<Participant>>() {
+                @Override
+                public void accept(List<Participant> participants) throws Exception {
+                    batch.onChunkLoaded(chunk, participants);
+                }
+            }, new Consumer<Throwable>() {
+                @Override
+                public void accept(Throwable throwable) throws Exception {
+                    batch.onChunkFailed(chunk, throwable);
+                }
+            });
+        }
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Request {
+        final List<String> mIds;
+        final SingleEmitter<List<Participant>> mEmitter;
+        List<Participant> mResult;
+        Throwable mError;
+
+        Request(List<String> ids, SingleEmitter<List<Participant>> emitter) {
+            mIds = ids;
+            mEmitter = emitter;
+        }
+    }
+
+    private static class Batch {
+        // Requests not yet completed, and the outcome of each ID's chunk, guarded by this
+        private final List<Request> mRequests;
+        private final Map<String, Participant> mParticipants = new HashMap<String, Participant>();
+        private final Set<String> mLoadedIds = new HashSet<String>();
+        private final Map<String, Throwable> mFailedIds = new HashMap<String, Throwable>();
+
+        Batch(List<Request> requests) {
+            mRequests = requests;
+        }
+
+        void onChunkLoaded(List<String> chunk, List<Participant> participants) {
+            synchronized (this) {
+                for (Participant participant : participants) {
+                    mParticipants.put(participant.getId(), participant);
+                }
+                mLoadedIds.addAll(chunk);
+            }
+            completeFinished();
+        }
+
+        void onChunkFailed(List<String> chunk, Throwable throwable) {
+            synchronized (this) {
+                for (String id : chunk) {
+                    mFailedIds.put(id, throwable);
+                }
+            }
+            completeFinished();
+        }
+
+        private void completeFinished() {
+            List<Request> finished = new ArrayList<Request>();
+            synchronized (this) {
+                Iterator<Request> it = mRequests.iterator();
+                while (it.hasNext()) {
+                    Request request = it.next();
+                    if (finish(request)) {
+                        finished.add(request);
+                        it.remove();
+                    }
+                }
+            }
+            for (Request request : finished) {
+                if (request.mError != null) {
+                    request.mEmitter.tryOnError(request.mError);
+                } else {
+                    request.mEmitter.onSuccess(request.mResult);
+                }
+            }
+        }
+
+        /**
+         * Sets the request's result or error once all of its IDs are done, failing it if any of
+         * its IDs failed.  Must hold this.
+         *
+         * @return `true` if the request is done.
+         */
+        private boolean finish(Request request) {
+            List<Participant> result = new ArrayList<Participant>(request.mIds.size());
+            boolean loaded = true;
+            for (String id : request.mIds) {
+                Throwable error = mFailedIds.get(id);
+                if (error != null) {
+                    request.mError = error;
+                    return true;
+                }
+                if (!mLoadedIds.contains(id)) {
+                    loaded = false;
+                    continue;
+                }
+                Participant participant = mParticipants.get(id);
+                if (participant != null) result.add(participant);
+            }
+            if (!loaded) return false;
+            request.mResult = result;
+            return true;
+        }
+    }
+}
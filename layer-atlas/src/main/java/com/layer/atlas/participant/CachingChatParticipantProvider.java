@@ -0,0 +1,315 @@
+package com.layer.atlas.participant;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.layer.atlas.util.AtlasCacheRegistry;
+import com.layer.atlas.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+import io.reactivex.Maybe;
+import io.reactivex.MaybeSource;
+import io.reactivex.Single;
+import io.reactivex.SingleSource;
+import io.reactivex.functions.Action;
+import io.reactivex.functions.Consumer;
+import io.reactivex.functions.Function;
+
+/**
+ * CachingChatParticipantProvider decorates a ChatParticipantProvider with a size-bounded LRU cache
+ * of Participants keyed by ID.  Cached Participants are served immediately; once older than the
+ * time-to-live they are still served, but a refresh is requested from the underlying provider.
+ * Concurrent requests for the same uncached ID share a single underlying request.
+ * <p>
+ * Use {@link #peek(String)} from bind methods to avoid building an Rx chain when the Participant is
+ * already cached.  Share one instance between adapters to share its cache.
+ */
+public class CachingChatParticipantProvider implements ChatParticipantProvider, AtlasCacheRegistry.Trimmable {
+    private static final int DEFAULT_MAX_SIZE = 512;
+    private static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+    // Participants are app-defined, so each entry is estimated at a fixed size
+    private static final int ENTRY_BYTES_ESTIMATE = 256;
+
+    private final ChatParticipantProvider mDelegate;
+    private final LruCache<String, Entry> mCache;
+    private final long mTtlMillis;
+    private final Map<String, Single<Participant>> mInFlight = new HashMap<String, Single<Participant>>();
+
+    public CachingChatParticipantProvider(ChatParticipantProvider delegate) {
+        this(delegate, DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * @param delegate  Provider to load uncached and stale Participants from.
+     * @param maxSize   Maximum number of Participants to cache.
+     * @param ttlMillis Time after which a cached Participant is refreshed.
+     */
+    public CachingChatParticipantProvider(ChatParticipantProvider delegate, int maxSize, long ttlMillis) {
+        mDelegate = delegate;
+        mCache = new LruCache<String, Entry>(maxSize);
+        mTtlMillis = ttlMillis;
+        AtlasCacheRegistry.register("CachingChatParticipantProvider", AtlasCacheRegistry.PRIORITY_HIGH, this);
+    }
+
+    /**
+     * Returns the given provider if it is already a CachingChatParticipantProvider, or wraps it in
+     * a new one with default settings.  Cache misses are batched with a
+     * BatchingChatParticipantProvider unless the given provider already is one.
+     */
+    public static CachingChatParticipantProvider wrap(ChatParticipantProvider provider) {
+        if (provider instanceof CachingChatParticipantProvider) {
+            return (CachingChatParticipantProvider) provider;
+        }
+        if (!(provider instanceof BatchingChatParticipantProvider)) {
+            provider = new BatchingChatParticipantProvider(provider);
+        }
+        return new CachingChatParticipantProvider(provider);
+    }
+
+    /**
+     * Returns the cached Participant with the given ID without allocating an Rx chain, or `null`
+     * if it is not cached.  Stale Participants are returned and refreshed in the background.
+     *
+     * @param id ID of the Participant.
+     * @return The cached Participant, or `null`.
+     */
+    @Nullable
+    public Participant peek(String id) {
+        Entry entry = mCache.get(id);
+        if (entry == null) return null;
+        if (isStale(entry)) refresh(id);
+        return entry.mParticipant;
+    }
+
+    /**
+     * Returns the cached Participants with the given IDs in order, or `null` if any of them is not
+     * cached.
+     *
+     * @param ids IDs of the Participants.
+     * @return The cached Participants, or `null`.
+     */
+    @Nullable
+    public List<Participant> peek(Collection<String> ids) {
+        List<Participant> participants = new ArrayList<Participant>(ids.size());
+        for (String id : ids) {
+            Participant participant = peek(id);
+            if (participant == null) return null;
+            participants.add(participant);
+        }
+        return participants;
+    }
+
+    /**
+     * Removes the Participant with the given ID from the cache.
+     */
+    public void invalidate(String id) {
+        mCache.remove(id);
+    }
+
+    /**
+     * Removes all Participants from the cache.
+     */
+    public void evictAll() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return mCache.size() * (long) ENTRY_BYTES_ESTIMATE;
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        AtlasCacheRegistry.trim(mCache, fraction);
+    }
+
+    @Override
+    public Single<List<Participant>> getParticipants(List<String> participantsIds) {
+        List<Participant> cached = peek(participantsIds);
+        if (cached != null) return Single.just(cached);
+
+        // Load all missing IDs together, then combine with cached Participants in order
+        List<String> missingIds = new ArrayList<String>();
+        for (String id : participantsIds) {
+            if (mCache.get(id) == null) missingIds.add(id);
+        }
+        Map<String, Single<Participant>> loads = load(missingIds);
+
+        List<Maybe<Participant>> sources = new ArrayList<Maybe<Participant>>(participantsIds.size());
+        for (String id : participantsIds) {
+            Single<Participant> load = loads.get(id);
+            if (load == null) {
+                Participant participant = peek(id);
+                if (participant != null) sources.add(Maybe.just(participant));
+            } else {
+                // Skip Participants the underlying provider does not know about
+                sources.add(load.toMaybe().onErrorResumeNext(new Function<Throwable, MaybeSource<Participant>>() {
+                    @Override
+                    public MaybeSource<Participant> apply(Throwable throwable) throws Exception {
+                        if (throwable instanceof NoSuchElementException) return Maybe.empty();
+                        return Maybe.error(throwable);
+                    }
+                }));
+            }
+        }
+        return Maybe.concat(sources).toList();
+    }
+
+    @Override
+    public Single<Participant> getParticipant(String id) {
+        Participant participant = peek(id);
+        if (participant != null) return Single.just(participant);
+        return load(Collections.singletonList(id)).get(id);
+    }
+
+    @Override
+    public Single<Map<String, Participant>> getMatchingParticipants(@NonNull String filter) {
+        return mDelegate.getMatchingParticipants(filter).doOnSuccess(new Consumer<Map<String, Participant>>() {
+            @Override
+            public void accept(Map<String, Participant> participants) throws Exception {
+                putAll(participants.values());
+            }
+        });
+    }
+
+    @Override
+    public Single<List<Participant>> findParticipantsFromSameCompany(List<String> participantsIds) {
+        return mDelegate.findParticipantsFromSameCompany(participantsIds).doOnSuccess(new Consumer<List<Participant>>() {
+            @Override
+            public void accept(List<Participant> participants) throws Exception {
+                putAll(participants);
+            }
+        });
+    }
+
+    //==============================================================================================
+    // Loading
+    //==============================================================================================
+
+    /**
+     * Returns a shared Single for each of the given IDs, joining in-flight requests and issuing
+     * one underlying request for the rest.  A Single fails with NoSuchElementException if the
+     * underlying provider does not return its Participant.
+     */
+    private Map<String, Single<Participant>> load(List<String> ids) {
+        Map<String, Single<Participant>> loads = new HashMap<String, Single<Participant>>(ids.size());
+        synchronized (mInFlight) {
+            final List<String> requestIds = new ArrayList<String>(ids.size());
+            for (String id : ids) {
+                Single<Participant> inFlight = mInFlight.get(id);
+                if (inFlight != null) {
+                    loads.put(id, inFlight);
+                } else if (!requestIds.contains(id)) {
+                    requestIds.add(id);
+                }
+            }
+            if (requestIds.isEmpty()) return loads;
+
+            final Single<Map<String, Participant>> request = loadFromDelegate(requestIds)
+                    .map(new Function<List<Participant>, Map<String, Participant>>() {
+                        @Override
+                        public Map<String, Participant> apply(List<Participant> participants) throws Exception {
+                            putAll(participants);
+                            Map<String, Participant> byId = new HashMap<String, Participant>(participants.size());
+                            for (Participant participant : participants) {
+                                byId.put(participant.getId(), participant);
+                            }
+                            return byId;
+                        }
+                    })
+                    .doFinally(new Action() {
+                        @Override
+                        public void run() throws Exception {
+                            synchronized (mInFlight) {
+                                for (String id : requestIds) {
+                                    mInFlight.remove(id);
+                                }
+                            }
+                        }
+                    })
+                    .cache();
+
+            for (final String id : requestIds) {
+                Single<Participant> load = request.flatMap(new Function<Map<String, Participant>, SingleSource<Participant>>() {
+                    @Override
+                    public SingleSource<Participant> apply(Map<String, Participant> participants) throws Exception {
+                        Participant participant = participants.get(id);
+                        if (participant == null) {
+                            return Single.error(new NoSuchElementException("No Participant with ID " + id));
+                        }
+                        return Single.just(participant);
+                    }
+                });
+                mInFlight.put(id, load);
+                loads.put(id, load);
+            }
+        }
+        return loads;
+    }
+
+    private Single<List<Participant>> loadFromDelegate(List<String> ids) {
+        if (ids.size() == 1) {
+            return mDelegate.getParticipant(ids.get(0)).map(new Function<Participant, List<Participant>>() {
+                @Override
+                public List<Participant> apply(Participant participant) throws Exception {
+                    return Collections.singletonList(participant);
+                }
+            });
+        }
+        return mDelegate.getParticipants(ids);
+    }
+
+    private void refresh(String id) {
+        synchronized (mInFlight) {
+            if (mInFlight.containsKey(id)) return;
+        }
+        load(Collections.singletonList(id)).get(id).subscribe(new Consumer<Participant>() {
+            @Override
+            public void accept(Participant participant) throws Exception {
+                // Cached by load()
+            }
+        }, new Consumer<Throwable>() {
+            @Override
+            public void accept(Throwable throwable) throws Exception {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e("Failed to refresh participant", throwable);
+                }
+            }
+        });
+    }
+
+    private void putAll(Collection<Participant> participants) {
+        long now = SystemClock.elapsedRealtime();
+        for (Participant participant : participants) {
+            mCache.put(participant.getId(), new Entry(participant, now));
+        }
+    }
+
+    private boolean isStale(Entry entry) {
+        return SystemClock.elapsedRealtime() - entry.mLoadedAt > mTtlMillis;
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    private static class Entry {
+        final Participant mParticipant;
+        final long mLoadedAt;
+
+        Entry(Participant participant, long loadedAt) {
+            mParticipant = participant;
+            mLoadedAt = loadedAt;
+        }
+    }
+}
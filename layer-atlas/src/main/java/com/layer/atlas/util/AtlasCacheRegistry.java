@@ -0,0 +1,244 @@
+package com.layer.atlas.util;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.util.LruCache;
+
+import com.squareup.picasso.Cache;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * AtlasCacheRegistry tracks Atlas' in-memory caches so they can be sized for the device and shrunk
+ * together under memory pressure.  Caches register with a name and a priority; on
+ * `onTrimMemory()`, low priority caches, which are cheap to rebuild, are emptied first, while high
+ * priority caches are only shrunk once memory is critically low.
+ * <p>
+ * Call {@link #init(Context)} once, e.g. when initializing an Atlas RecyclerView, to start
+ * receiving trim events and size budgets by the device memory class.  Until then, budgets are based
+ * on the maximum heap size.  Registered caches are held weakly, so owners must keep a reference to
+ * what they register.
+ */
+public class AtlasCacheRegistry {
+    /**
+     * Caches of data that is cheap to recreate, such as decoded bitmaps.
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * Caches of data parsed or computed from local content.
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Caches of data that is expensive to recreate, such as data fetched over the network.
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    private static final CopyOnWriteArrayList<Registration> sRegistrations = new CopyOnWriteArrayList<Registration>();
+    private static final CopyOnWriteArrayList<Trimmable> sPicassoCaches = new CopyOnWriteArrayList<Trimmable>();
+    private static volatile long sMemoryClassBytes = Runtime.getRuntime().maxMemory();
+    private static volatile boolean sLowRamDevice;
+    private static boolean sInitialized;
+
+    /**
+     * Registers for trim events and sizes budgets by the device memory class.  Safe to call more
+     * than once.
+     */
+    public static synchronized void init(Context context) {
+        if (sInitialized) return;
+        sInitialized = true;
+        Context appContext = context.getApplicationContext();
+        ActivityManager activityManager = (ActivityManager) appContext.getSystemService(Context.ACTIVITY_SERVICE);
+        if (activityManager != null) {
+            sMemoryClassBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                sLowRamDevice = activityManager.isLowRamDevice();
+            }
+        }
+        appContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                trimMemory(level);
+            }
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            }
+        });
+        if (Log.isPerfLoggable()) {
+            Log.perf("AtlasCacheRegistry memory class: " + (sMemoryClassBytes / 1024 / 1024) + "MB, low RAM: " + sLowRamDevice);
+        }
+    }
+
+    /**
+     * Returns a cache budget of `1 / divisor` of the memory class, at most `maxBytes`, halved on
+     * low RAM devices.
+     */
+    public static int getBudget(int divisor, int maxBytes) {
+        long budget = Math.min(maxBytes, sMemoryClassBytes / divisor);
+        if (sLowRamDevice) budget /= 2;
+        return (int) budget;
+    }
+
+    /**
+     * Registers a cache.  The cache is held weakly and unregistered once collected.
+     *
+     * @param name     Name to report the cache size under.
+     * @param priority One of {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL}, or
+     *                 {@link #PRIORITY_HIGH}.
+     * @param cache    Cache to trim under memory pressure.
+     */
+    public static void register(String name, int priority, Trimmable cache) {
+        sRegistrations.add(new Registration(name, priority, cache));
+    }
+
+    public static void unregister(Trimmable cache) {
+        for (Registration registration : sRegistrations) {
+            if (registration.mCache.get() == cache) sRegistrations.remove(registration);
+        }
+    }
+
+    /**
+     * Returns the estimated bytes held by each registered cache, by name.  Caches registered under
+     * the same name are summed.
+     */
+    public static Map<String, Long> getSizes() {
+        Map<String, Long> sizes = new LinkedHashMap<String, Long>();
+        for (Registration registration : sRegistrations) {
+            Trimmable cache = registration.mCache.get();
+            if (cache == null) {
+                sRegistrations.remove(registration);
+                continue;
+            }
+            Long size = sizes.get(registration.mName);
+            sizes.put(registration.mName, (size == null ? 0 : size) + cache.getSizeBytes());
+        }
+        return sizes;
+    }
+
+    /**
+     * Shrinks registered caches for the given `ComponentCallbacks2` trim level.
+     */
+    public static void trimMemory(int level) {
+        float[] fractions = getFractions(level);
+        if (fractions == null) return;
+        long before = Log.isPerfLoggable() ? getTotalSize() : 0;
+        for (int priority = PRIORITY_LOW; priority <= PRIORITY_HIGH; priority++) {
+            if (fractions[priority] >= 1f) continue;
+            for (Registration registration : sRegistrations) {
+                if (registration.mPriority != priority) continue;
+                Trimmable cache = registration.mCache.get();
+                if (cache == null) {
+                    sRegistrations.remove(registration);
+                } else {
+                    cache.trimToFraction(fractions[priority]);
+                }
+            }
+        }
+        if (Log.isPerfLoggable()) {
+            Log.perf("AtlasCacheRegistry trimmed for level " + level + " from " + before + " to " + getTotalSize() + " bytes: " + getSizes());
+        }
+    }
+
+    /**
+     * Registers a Picasso memory cache, e.g. the one passed to `Picasso.Builder.memoryCache()`.
+     * Picasso caches can only be cleared, not partially trimmed, so they are cleared whenever low
+     * priority caches are trimmed.  Registered Picasso caches are held strongly.
+     */
+    public static void registerPicassoCache(final Cache cache) {
+        Trimmable trimmable = new Trimmable() {
+            @Override
+            public long getSizeBytes() {
+                return cache.size();
+            }
+
+            @Override
+            public void trimToFraction(float fraction) {
+                if (fraction < 1f) cache.clear();
+            }
+        };
+        sPicassoCaches.add(trimmable);
+        register("Picasso", PRIORITY_LOW, trimmable);
+    }
+
+    /**
+     * Trims an android.util.LruCache to the given fraction of its current size.  Partial trims need
+     * API 17, so older releases evict everything instead.
+     */
+    public static void trim(LruCache<?, ?> cache, float fraction) {
+        if (fraction >= 1f) return;
+        if (fraction <= 0f || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            cache.evictAll();
+        } else {
+            cache.trimToSize((int) (cache.size() * fraction));
+        }
+    }
+
+    private static long getTotalSize() {
+        long total = 0;
+        for (Long size : getSizes().values()) {
+            total += size;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the fraction of each priority's maximum size to keep at the given trim level, or
+     * `null` to keep everything.
+     */
+    private static float[] getFractions(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return new float[]{0f, 0f, 0f};
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return new float[]{0f, 0f, 0.5f};
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return new float[]{0f, 0.5f, 1f};
+        }
+        return null;
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * A cache that can report its size and be shrunk.
+     */
+    public interface Trimmable {
+        /**
+         * Returns the estimated heap held by this cache in bytes.
+         */
+        long getSizeBytes();
+
+        /**
+         * Shrinks this cache to at most the given fraction of its current size, where 0 empties it.
+         */
+        void trimToFraction(float fraction);
+    }
+
+    private static class Registration {
+        final String mName;
+        final int mPriority;
+        final WeakReference<Trimmable> mCache;
+
+        Registration(String name, int priority, Trimmable cache) {
+            mName = name;
+            mPriority = priority;
+            mCache = new WeakReference<Trimmable>(cache);
+        }
+    }
+}
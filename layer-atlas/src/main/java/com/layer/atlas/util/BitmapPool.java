@@ -0,0 +1,216 @@
+package com.layer.atlas.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+import android.os.Build;
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+
+/**
+ * BitmapPool keeps released mutable Bitmaps for reuse by later decodes and preview scaling,
+ * instead of leaving them to the garbage collector.  Bitmaps are bucketed by allocation size rounded up to
+ * a power of two, and the pool holds at most a fixed number of bytes, evicting from the largest
+ * buckets first.
+ * <p>
+ * On KitKat and above, any pooled Bitmap with a large enough allocation is reconfigured to the
+ * requested size and used for `BitmapFactory.Options.inBitmap`.  Below KitKat, only Bitmaps with
+ * exactly the requested size and config are reused, and decodes always allocate.
+ * <p>
+ * Only release Bitmaps that are no longer referenced anywhere else.  Bitmaps handed to Picasso,
+ * such as the results of Transformations, are owned by its cache and must not come from the pool.
+ */
+public class BitmapPool implements AtlasCacheRegistry.Trimmable {
+    private static final int DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    private static BitmapPool sDefault;
+
+    private final int mMaxBytes;
+    private final SparseArray<ArrayDeque<Bitmap>> mBuckets = new SparseArray<ArrayDeque<Bitmap>>();
+    private int mBytes;
+
+    // Metrics
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
+    /**
+     * Returns the BitmapPool shared by Atlas image handling, capped at an eighth of the memory class
+     * or 8MB, whichever is smaller.
+     */
+    public static synchronized BitmapPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new BitmapPool(AtlasCacheRegistry.getBudget(8, DEFAULT_MAX_BYTES));
+            AtlasCacheRegistry.register("BitmapPool", AtlasCacheRegistry.PRIORITY_LOW, sDefault);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param maxBytes Maximum number of Bitmap bytes to keep in this pool.
+     */
+    public BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared, mutable Bitmap of the given size and config, reusing a pooled Bitmap when
+     * possible.
+     */
+    public Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap = take(width, height, config);
+        if (bitmap == null) return Bitmap.createBitmap(width, height, config);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            bitmap.reconfigure(width, height, config);
+        }
+        bitmap.setHasAlpha(true);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+    }
+
+    /**
+     * Decodes a sampled Bitmap from the given file into a pooled Bitmap when possible.  The
+     * returned Bitmap is mutable, and may be released to this pool when no longer needed.
+     *
+     * @param path       Image file path.
+     * @param width      Full image width, as reported by a bounds decode.
+     * @param height     Full image height, as reported by a bounds decode.
+     * @param sampleSize Sample size to decode with.
+     * @return The decoded Bitmap, or `null` if the file could not be decoded.
+     */
+    public Bitmap decodeFile(String path, int width, int height, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            // Decoders round sampled dimensions differently, so size the candidate for rounding up
+            int sampledWidth = (width + sampleSize - 1) / sampleSize;
+            int sampledHeight = (height + sampleSize - 1) / sampleSize;
+            options.inBitmap = take(sampledWidth, sampledHeight, Bitmap.Config.ARGB_8888);
+        }
+        Bitmap bitmap = BitmapFactory.decodeFile(path, options);
+        if (bitmap != null || options.inBitmap == null) return bitmap;
+
+        // decodeFile() swallows the IllegalArgumentException thrown when the candidate cannot be
+        // reused for this image, so retry any failure with a new Bitmap instead
+        if (Log.isLoggable(Log.VERBOSE)) Log.v("Could not decode into pooled Bitmap, decoding without it");
+        release(options.inBitmap);
+        options.inBitmap = null;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    /**
+     * Releases the given Bitmap to this pool.  Bitmaps that cannot be reused, or do not fit, are
+     * recycled instead.
+     */
+    public void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) return;
+        int bytes = getAllocationByteCount(bitmap);
+        if (!bitmap.isMutable() || bytes > mMaxBytes / 2) {
+            bitmap.recycle();
+            return;
+        }
+        synchronized (this) {
+            int bucket = getBucket(bytes);
+            ArrayDeque<Bitmap> bitmaps = mBuckets.get(bucket);
+            if (bitmaps == null) {
+                bitmaps = new ArrayDeque<Bitmap>();
+                mBuckets.put(bucket, bitmaps);
+            }
+            bitmaps.add(bitmap);
+            mBytes += bytes;
+            trimToSize(mMaxBytes);
+        }
+    }
+
+    /**
+     * Evicts pooled Bitmaps, largest buckets first, until at most `maxBytes` remain pooled.
+     */
+    public synchronized void trimToSize(int maxBytes) {
+        for (int i = mBuckets.size() - 1; i >= 0 && mBytes > maxBytes; i--) {
+            ArrayDeque<Bitmap> bitmaps = mBuckets.valueAt(i);
+            while (!bitmaps.isEmpty() && mBytes > maxBytes) {
+                Bitmap bitmap = bitmaps.poll();
+                mBytes -= getAllocationByteCount(bitmap);
+                bitmap.recycle();
+                mEvictions++;
+            }
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(0);
+    }
+
+    @Override
+    public long getSizeBytes() {
+        return getSize();
+    }
+
+    @Override
+    public void trimToFraction(float fraction) {
+        trimToSize((int) (getSize() * fraction));
+    }
+
+    public synchronized int getSize() {
+        return mBytes;
+    }
+
+    public int getMaxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getEvictionCount() {
+        return mEvictions;
+    }
+
+    /**
+     * Removes and returns a pooled Bitmap that can hold the given size and config, or `null`.
+     */
+    private synchronized Bitmap take(int width, int height, Bitmap.Config config) {
+        int bytes = width * height * getBytesPerPixel(config);
+        int bucket = getBucket(bytes);
+        boolean reconfigurable = Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+        // Reconfigurable Bitmaps may also come from the next bucket, wasting at most 4x
+        for (int b = bucket; b <= (reconfigurable ? bucket + 1 : bucket); b++) {
+            ArrayDeque<Bitmap> bitmaps = mBuckets.get(b);
+            if (bitmaps == null) continue;
+            for (Bitmap bitmap : bitmaps) {
+                boolean fits = reconfigurable
+                        ? getAllocationByteCount(bitmap) >= bytes
+                        : bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config;
+                if (!fits) continue;
+                bitmaps.remove(bitmap);
+                mBytes -= getAllocationByteCount(bitmap);
+                mHits++;
+                return bitmap;
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    private static int getBucket(int bytes) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(0, bytes - 1));
+    }
+
+    private static int getAllocationByteCount(Bitmap bitmap) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) return bitmap.getAllocationByteCount();
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ALPHA_8) return 1;
+        if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) return 2;
+        return 4;
+    }
+}
@@ -0,0 +1,58 @@
+package com.layer.atlas.util;
+
+import android.net.Uri;
+
+/**
+ * HeapSize estimates the heap retained by common objects, for sizing caches, without allocating.
+ * Estimates follow ART's layout with compressed references: an 8 byte object header, 4 byte
+ * references, and 8 byte alignment.  Strings are counted as UTF-16, which over-estimates compressed
+ * ASCII strings on newer releases.
+ */
+public final class HeapSize {
+    public static final int OBJECT_HEADER = 8;
+    public static final int REFERENCE = 4;
+    public static final int ARRAY_HEADER = 12;
+
+    /**
+     * A boxed Integer, Long, Float, or Double.
+     */
+    public static final int BOXED = 16;
+
+    // String: header, value array reference, count, and hash
+    private static final int STRING_SHALLOW = align(OBJECT_HEADER + REFERENCE + 4 + 4);
+
+    // Uri: header, cached string reference, and lazily cached parts, estimated as three objects
+    private static final int URI_SHALLOW = align(OBJECT_HEADER + 4 * REFERENCE) + 3 * align(OBJECT_HEADER + 3 * REFERENCE);
+
+    private HeapSize() {
+    }
+
+    /**
+     * Returns the size of an object with the given bytes of primitive fields and number of
+     * reference fields, not including anything it references.
+     */
+    public static int object(int primitiveBytes, int references) {
+        return align(OBJECT_HEADER + primitiveBytes + references * REFERENCE);
+    }
+
+    /**
+     * Returns the size of the given String and its characters, or 0 for `null`.
+     */
+    public static int of(String string) {
+        if (string == null) return 0;
+        return STRING_SHALLOW + align(ARRAY_HEADER + 2 * string.length());
+    }
+
+    /**
+     * Returns the size of the given Uri and its cached String, or 0 for `null`.  Uri caches its
+     * String form, so this does not allocate after the first call.
+     */
+    public static int of(Uri uri) {
+        if (uri == null) return 0;
+        return URI_SHALLOW + of(uri.toString());
+    }
+
+    public static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+}
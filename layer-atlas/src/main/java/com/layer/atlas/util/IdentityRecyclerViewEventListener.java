@@ -21,10 +21,21 @@ import java.util.Set;
  */
 public class IdentityRecyclerViewEventListener implements LayerChangeEventListener.Weak {
     private final RecyclerView.Adapter mAdapter;
+    private final Object mPayload;
     private final Map<Uri, Set<Integer>> identityPositions = new HashMap<>();
 
     public IdentityRecyclerViewEventListener(RecyclerView.Adapter adapter) {
+        this(adapter, null);
+    }
+
+    /**
+     * @param adapter Adapter to notify of changed positions.
+     * @param payload Payload passed to `notifyItemChanged()`, allowing the adapter to only re-bind
+     *                identity-dependent views. May be `null` for a full re-bind.
+     */
+    public IdentityRecyclerViewEventListener(RecyclerView.Adapter adapter, Object payload) {
         mAdapter = adapter;
+        mPayload = payload;
     }
 
     /**
@@ -53,7 +64,7 @@ public class IdentityRecyclerViewEventListener implements LayerChangeEventListen
                 Set<Integer> positions = identityPositions.get(id);
                 if (positions != null) {
                     for (Integer position : positions) {
-                        mAdapter.notifyItemChanged(position);
+                        mAdapter.notifyItemChanged(position, mPayload);
                     }
                 }
             }
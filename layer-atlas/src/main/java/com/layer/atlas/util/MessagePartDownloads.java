@@ -0,0 +1,201 @@
+package com.layer.atlas.util;
+
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.layer.sdk.listeners.LayerProgressListener;
+import com.layer.sdk.messaging.MessagePart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * MessagePartDownloads coordinates MessagePart content downloads so that concurrent requests for
+ * the same MessagePart share a single download and a single LayerProgressListener, rather than each
+ * registering their own listener and waiting separately.
+ * <p>
+ * Downloads are tracked by MessagePart ID until they complete or fail.  A download that has not
+ * reported back within {@link #STALE_MILLIS} is considered lost and is started again by the next
+ * request.
+ * <p>
+ * Callers that cannot block, e.g. views whose image request gave up on a pending download, can
+ * register a {@link Download.Callback} to be told on the main thread when the download finishes.
+ */
+public class MessagePartDownloads {
+    private static final long STALE_MILLIS = 3 * 60 * 1000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private static final ConcurrentHashMap<Uri, Download> sDownloads = new ConcurrentHashMap<Uri, Download>();
+
+    // Metrics
+    private static final AtomicInteger sStarted = new AtomicInteger();
+    private static final AtomicInteger sJoined = new AtomicInteger();
+
+    /**
+     * Returns the Download for the given MessagePart, starting it if no download is in progress.
+     * The returned Download is already complete if the MessagePart content is ready.
+     */
+    public static Download download(MessagePart part) {
+        if (part.isContentReady()) return Download.completed(part);
+
+        Uri id = part.getId();
+        while (true) {
+            Download existing = sDownloads.get(id);
+            if (existing != null && !existing.isStale()) {
+                sJoined.incrementAndGet();
+                return existing;
+            }
+            Download download = new Download(part);
+            boolean added = existing == null
+                    ? sDownloads.putIfAbsent(id, download) == null
+                    : sDownloads.replace(id, existing, download);
+            if (!added) continue;
+
+            sStarted.incrementAndGet();
+            if (Log.isPerfLoggable()) {
+                Log.perf("MessagePartDownloads starting " + id + ". Started: " + sStarted.get() + ", joined: " + sJoined.get());
+            }
+            part.download(download.mListener);
+            // Content may have become ready before the listener was registered
+            if (part.isContentReady()) download.finish();
+            return download;
+        }
+    }
+
+    /**
+     * Returns the number of downloads started, including restarts of stale downloads.
+     */
+    public static int getStartedCount() {
+        return sStarted.get();
+    }
+
+    /**
+     * Returns the number of requests that joined a download already in progress.
+     */
+    public static int getJoinedCount() {
+        return sJoined.get();
+    }
+
+    //==============================================================================================
+    // Inner classes
+    //==============================================================================================
+
+    /**
+     * A shared download of a single MessagePart's content.
+     */
+    public static class Download {
+        private final MessagePart mPart;
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private final long mStartedAt = System.currentTimeMillis();
+
+        // Callbacks waiting for this download to finish; guarded by `this`
+        private List<Callback> mCallbacks;
+
+        // Held here so the weak listener lives as long as the download is tracked
+        private final LayerProgressListener mListener = new LayerProgressListener.BackgroundThread.Weak() {
+            @Override
+            public void onProgressStart(MessagePart messagePart, Operation operation) {
+            }
+
+            @Override
+            public void onProgressUpdate(MessagePart messagePart, Operation operation, long l) {
+            }
+
+            @Override
+            public void onProgressComplete(MessagePart messagePart, Operation operation) {
+                finish();
+            }
+
+            @Override
+            public void onProgressError(MessagePart messagePart, Operation operation, Throwable throwable) {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e("Failed to download " + messagePart.getId(), throwable);
+                }
+                finish();
+            }
+        };
+
+        private Download(MessagePart part) {
+            mPart = part;
+        }
+
+        private static Download completed(MessagePart part) {
+            Download download = new Download(part);
+            download.mLatch.countDown();
+            return download;
+        }
+
+        /**
+         * Returns `true` if this download has finished, successfully or not.
+         */
+        public boolean isDone() {
+            return mLatch.getCount() == 0;
+        }
+
+        /**
+         * Waits up to the given time for this download to finish.
+         *
+         * @return `true` if the MessagePart content is available, or `false` otherwise.
+         */
+        public boolean await(long timeLength, TimeUnit timeUnit) throws InterruptedException {
+            if (!mPart.isContentReady()) mLatch.await(timeLength, timeUnit);
+            return mPart.isContentReady();
+        }
+
+        /**
+         * Calls the given Callback on the main thread once this download finishes, successfully or
+         * not.  If it has already finished, the Callback is posted immediately.
+         */
+        public void addCallback(final Callback callback) {
+            synchronized (this) {
+                if (!isDone()) {
+                    if (mCallbacks == null) mCallbacks = new ArrayList<Callback>(1);
+                    mCallbacks.add(callback);
+                    return;
+                }
+            }
+            post(callback);
+        }
+
+        private void post(final Callback callback) {
+            sMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onDownloadFinished(mPart);
+                }
+            });
+        }
+
+        private boolean isStale() {
+            return !isDone() && System.currentTimeMillis() - mStartedAt > STALE_MILLIS;
+        }
+
+        private void finish() {
+            sDownloads.remove(mPart.getId(), this);
+            List<Callback> callbacks;
+            synchronized (this) {
+                mLatch.countDown();
+                callbacks = mCallbacks;
+                mCallbacks = null;
+            }
+            if (callbacks == null) return;
+            for (Callback callback : callbacks) {
+                post(callback);
+            }
+        }
+
+        public interface Callback {
+            /**
+             * Called on the main thread when the download finishes.  Check
+             * MessagePart.isContentReady() to tell success from failure.
+             */
+            void onDownloadFinished(MessagePart part);
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.layer.atlas.util;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import com.squareup.picasso.Transformation;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * ThumbnailDiskCache keeps final, fully transformed thumbnails on disk so that showing the same
+ * image again, including after a restart, only reads a small file instead of decoding, resizing,
+ * rotating, and transforming the original.  Thumbnails are keyed by a caller-built string that must
+ * capture everything affecting the output, e.g. part ID, target size, orientation, and transform.
+ * <p>
+ * Thumbnails are written through a Picasso Transformation appended to the producing request, and
+ * read back by loading the returned File with Picasso.  The directory is indexed once on a
+ * background thread; until then, lookups miss.  The least recently used thumbnails are deleted once
+ * the cache exceeds its maximum size.
+ */
+public class ThumbnailDiskCache {
+    private static final String DIRECTORY = "atlas_thumbnails";
+    private static final int DEFAULT_MAX_BYTES = 10 * 1024 * 1024;
+    private static final int QUALITY = 90;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static ThumbnailDiskCache sDefault;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    // File sizes by file name, in access order; guarded by `this`
+    private final LinkedHashMap<String, Long> mIndex = new LinkedHashMap<String, Long>(64, 0.75f, true);
+    private long mBytes;
+    private volatile boolean mIndexed;
+
+    // Metrics
+    private int mHits;
+    private int mMisses;
+    private int mWrites;
+
+    /**
+     * Returns the ThumbnailDiskCache shared by Atlas image cells, in the application's cache
+     * directory.
+     */
+    public static synchronized ThumbnailDiskCache getDefault(Context context) {
+        if (sDefault == null) {
+            sDefault = new ThumbnailDiskCache(new File(context.getApplicationContext().getCacheDir(), DIRECTORY), DEFAULT_MAX_BYTES);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param directory Directory to keep thumbnails in.  It is created if missing.
+     * @param maxBytes  Maximum number of bytes of thumbnails to keep.
+     */
+    public ThumbnailDiskCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        Thread indexer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                index();
+            }
+        }, "atlas-thumbnail-index");
+        indexer.setDaemon(true);
+        indexer.start();
+    }
+
+    /**
+     * Returns the cached thumbnail File for the given key, or `null` if it is not cached.  Does no
+     * disk I/O, so it is safe to call while binding views.
+     */
+    public File get(String key) {
+        if (!mIndexed) return null;
+        String name = getFileName(key);
+        synchronized (this) {
+            if (mIndex.get(name) == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+        }
+        return new File(mDirectory, name);
+    }
+
+    /**
+     * Writes the given thumbnail for the given key, replacing any existing one.  Called on a
+     * background thread.
+     */
+    public void put(String key, Bitmap bitmap) {
+        String name = getFileName(key);
+        File file = new File(mDirectory, name);
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        OutputStream out = null;
+        try {
+            if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) return;
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            boolean compressed = bitmap.compress(getFormat(bitmap), QUALITY, out);
+            out.close();
+            out = null;
+            if (!compressed) {
+                if (Log.isLoggable(Log.ERROR)) Log.e("Failed to compress thumbnail " + name);
+                temp.delete();
+                return;
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                return;
+            }
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) Log.e("Failed to write thumbnail " + name, e);
+            temp.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        synchronized (this) {
+            Long previous = mIndex.put(name, file.length());
+            if (previous != null) mBytes -= previous;
+            mBytes += file.length();
+            mWrites++;
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Removes the thumbnail for the given key, e.g. after its File failed to load.
+     */
+    public void remove(String key) {
+        String name = getFileName(key);
+        synchronized (this) {
+            Long size = mIndex.remove(name);
+            if (size != null) mBytes -= size;
+        }
+        new File(mDirectory, name).delete();
+    }
+
+    /**
+     * Returns a Transformation which writes its input to this cache under the given key and
+     * returns it unchanged.  Append it after all other Transformations of a request.
+     */
+    public Transformation writeThrough(final String key) {
+        return new Transformation() {
+            @Override
+            public Bitmap transform(Bitmap source) {
+                put(key, source);
+                return source;
+            }
+
+            @Override
+            public String key() {
+                return ThumbnailDiskCache.class.getSimpleName() + "." + key;
+            }
+        };
+    }
+
+    /**
+     * Deletes the least recently used thumbnails until at most `maxBytes` remain.
+     */
+    public void trimToSize(long maxBytes) {
+        int deleted = 0;
+        while (true) {
+            String name;
+            synchronized (this) {
+                if (mBytes <= maxBytes || mIndex.isEmpty()) break;
+                Iterator<Map.Entry<String, Long>> it = mIndex.entrySet().iterator();
+                Map.Entry<String, Long> eldest = it.next();
+                name = eldest.getKey();
+                mBytes -= eldest.getValue();
+                it.remove();
+            }
+            new File(mDirectory, name).delete();
+            deleted++;
+        }
+        if (deleted > 0 && Log.isPerfLoggable()) {
+            Log.perf("ThumbnailDiskCache deleted " + deleted + " thumbnails, " + getSize() + " bytes remain");
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(0);
+    }
+
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public long getMaxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized int getWriteCount() {
+        return mWrites;
+    }
+
+    /**
+     * Indexes existing thumbnails oldest first, deleting abandoned temp files.
+     */
+    private void index() {
+        long start = System.currentTimeMillis();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            final long[] modified = new long[files.length];
+            for (int i = 0; i < files.length; i++) {
+                modified[i] = files[i].lastModified();
+            }
+            Integer[] order = new Integer[files.length];
+            for (int i = 0; i < order.length; i++) order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer lhs, Integer rhs) {
+                    return modified[lhs] < modified[rhs] ? -1 : (modified[lhs] == modified[rhs] ? 0 : 1);
+                }
+            });
+            synchronized (this) {
+                for (Integer i : order) {
+                    File file = files[i];
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        file.delete();
+                        continue;
+                    }
+                    // Keep entries written while indexing, which are newer
+                    if (mIndex.containsKey(file.getName())) continue;
+                    mIndex.put(file.getName(), file.length());
+                    mBytes += file.length();
+                }
+            }
+        }
+        mIndexed = true;
+        trimToSize(mMaxBytes);
+        if (Log.isPerfLoggable()) {
+            Log.perf("ThumbnailDiskCache indexed " + (files == null ? 0 : files.length) + " files (" + getSize() + " bytes) in " + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    private static Bitmap.CompressFormat getFormat(Bitmap bitmap) {
+        if (!bitmap.hasAlpha()) return Bitmap.CompressFormat.JPEG;
+        // Lossy WebP keeps alpha from Jelly Bean MR2, and is far smaller than PNG for photos
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) return Bitmap.CompressFormat.WEBP;
+        return Bitmap.CompressFormat.PNG;
+    }
+
+    private static String getFileName(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
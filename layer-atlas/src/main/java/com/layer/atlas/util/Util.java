@@ -30,12 +30,13 @@ import com.layer.atlas.R;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.exceptions.LayerException;
 import com.layer.sdk.listeners.LayerAuthenticationListener;
-import com.layer.sdk.listeners.LayerProgressListener;
 import com.layer.sdk.messaging.Identity;
 import com.layer.sdk.messaging.MessagePart;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.MessageDigest;
@@ -48,7 +49,6 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -92,11 +92,14 @@ public class Util {
     }
 
     public static String formatTime(Context context, Date date, DateFormat timeFormat, DateFormat dateFormat) {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        long todayMidnight = cal.getTimeInMillis();
+        return formatTime(context, date, timeFormat, dateFormat, getTodayMidnight());
+    }
+
+    /**
+     * Same as {@link #formatTime(Context, Date, DateFormat, DateFormat)}, but relative to a
+     * precomputed midnight from {@link #getTodayMidnight()}, for formatting many dates at once.
+     */
+    public static String formatTime(Context context, Date date, DateFormat timeFormat, DateFormat dateFormat, long todayMidnight) {
         long yesterMidnight = todayMidnight - TIME_HOURS_24;
         long weekAgoMidnight = todayMidnight - TIME_HOURS_24 * 7;
 
@@ -106,6 +109,7 @@ public class Util {
         } else if (date.getTime() > yesterMidnight) {
             timeText = context.getString(R.string.atlas_time_yesterday);
         } else if (date.getTime() > weekAgoMidnight) {
+            Calendar cal = Calendar.getInstance();
             cal.setTime(date);
             timeText = context.getResources().getStringArray(R.array.atlas_time_days_of_week)[cal.get(Calendar.DAY_OF_WEEK) - 1];
         } else {
@@ -114,6 +118,17 @@ public class Util {
         return timeText;
     }
 
+    /**
+     * @return The time in milliseconds of the most recent local midnight.
+     */
+    public static long getTodayMidnight() {
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        return cal.getTimeInMillis();
+    }
+
     /**
      * Returns Today, Yesterday, the day of the week within one week, or a date if greater.
      *
@@ -176,10 +191,48 @@ public class Util {
         return new int[]{scaledWidth, scaledHeight};
     }
 
+    /**
+     * Decodes at most the first `maxBytes` bytes of the given MessagePart as UTF-8 text, without
+     * loading the rest of its data.  Useful for previews of potentially large text parts.
+     *
+     * @param part     MessagePart to decode.
+     * @param maxBytes Maximum number of bytes to decode.
+     * @return The decoded prefix, or an empty String if the content is not ready.
+     */
+    public static String getTextPrefix(MessagePart part, int maxBytes) {
+        if (!part.isContentReady()) return "";
+        InputStream in = part.getDataStream();
+        if (in == null) return "";
+        try {
+            byte[] buffer = new byte[maxBytes];
+            int length = 0;
+            int read;
+            while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) != -1) {
+                length += read;
+            }
+            boolean truncated = length == maxBytes && in.read() != -1;
+            String text = new String(buffer, 0, length, "UTF-8");
+            // Drop a multi-byte character cut off at the end
+            if (truncated && text.endsWith("\uFFFD")) text = text.substring(0, text.length() - 1);
+            return text;
+        } catch (IOException e) {
+            if (Log.isLoggable(Log.ERROR)) {
+                Log.e(e.getMessage(), e);
+            }
+            return "";
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
     /**
      * Synchronously starts downloading the given MessagePart and waits for downloading to complete.
      * Returns `true` if the MessagePart downloaded successfully within the given period of time, or
-     * `false` otherwise.
+     * `false` otherwise.  Concurrent calls for the same MessagePart share one download.
      *
      * @param layerClient LayerClient to download the MessagePart with.
      * @param part        MessagePart to download.
@@ -190,36 +243,11 @@ public class Util {
     public static boolean downloadMessagePart(LayerClient layerClient, MessagePart part, int timeLength, TimeUnit timeUnit) {
         if (part.isContentReady()) return true;
 
-        final CountDownLatch latch = new CountDownLatch(1);
-        final LayerProgressListener listener = new LayerProgressListener.BackgroundThread.Weak() {
-            @Override
-            public void onProgressStart(MessagePart messagePart, Operation operation) {
-
-            }
-
-            @Override
-            public void onProgressUpdate(MessagePart messagePart, Operation operation, long l) {
-
-            }
-
-            @Override
-            public void onProgressComplete(MessagePart messagePart, Operation operation) {
-                latch.countDown();
-            }
-
-            @Override
-            public void onProgressError(MessagePart messagePart, Operation operation, Throwable throwable) {
-                latch.countDown();
-            }
-        };
-        part.download(listener);
-        if (!part.isContentReady()) {
-            try {
-                latch.await(timeLength, timeUnit);
-            } catch (InterruptedException e) {
-                if (Log.isLoggable(Log.ERROR)) {
-                    Log.e(e.getMessage(), e);
-                }
+        try {
+            return MessagePartDownloads.download(part).await(timeLength, timeUnit);
+        } catch (InterruptedException e) {
+            if (Log.isLoggable(Log.ERROR)) {
+                Log.e(e.getMessage(), e);
             }
         }
         return part.isContentReady();
@@ -55,6 +55,7 @@ public class AtlasImagePopupActivity extends AppCompatActivity {
     private ContentLoadingProgressBar mProgressBar;
     private Toolbar toolbar;
     private Uri mMessagePartId;
+    private Uri mPreviewPartId;
     private ThreePartImageCellFactory.Info info;
     private Disposable disposable = Disposables.disposed();
     private WeakReference<AlertDialog> dialogWeakReference;
@@ -82,43 +83,72 @@ public class AtlasImagePopupActivity extends AppCompatActivity {
         mImageView.setMinimumDpi(80);
         mImageView.setBitmapDecoderClass(MessagePartDecoder.class);
         mImageView.setRegionDecoderClass(MessagePartRegionDecoder.class);
+        mImageView.setParallelLoadingEnabled(true);
 
         Intent intent = getIntent();
         if (intent == null) return;
         mMessagePartId = intent.getParcelableExtra("fullId");
+        mPreviewPartId = intent.getParcelableExtra("previewId");
         info = intent.getParcelableExtra("info");
 
+        if (info != null) {
+            mImageView.setOrientation(getImageOrientation(info));
+        }
+        mImageView.setOnImageEventListener(new SubsamplingScaleImageView.DefaultOnImageEventListener() {
+            @Override
+            public void onImageLoaded() {
+                isImageLoaded = true;
+                invalidateOptionsMenu();
+                mProgressBar.hide();
+            }
+
+            @Override
+            public void onImageLoadError(Exception e) {
+                mProgressBar.hide();
+            }
+        });
+        mProgressBar.show();
+
+        // Show the already cached preview while the full image downloads, then tile the full image
         Target target = new Target() {
             @Override
             public void onBitmapLoaded(Bitmap bitmap, Picasso.LoadedFrom from) {
-                AtlasImagePopupActivity.this.onBitmapLoaded(bitmap);
+                setImage(bitmap);
             }
 
             @Override
             public void onBitmapFailed(Exception ex, Drawable errorDrawable) {
-                mProgressBar.hide();
+                setImage(null);
             }
 
             @Override
             public void onPrepareLoad(Drawable placeHolderDrawable) {
-                mProgressBar.show();
             }
         };
 
         mImageView.setTag(target);
-        if (picasso != null)
-            picasso.load(mMessagePartId).into(target);
-
-        if (info != null) {
-            mImageView.setOrientation(getImageOrientation(info));
+        if (picasso != null && mPreviewPartId != null && info != null) {
+            picasso.load(mPreviewPartId).into(target);
+        } else {
+            setImage(null);
         }
     }
 
-    private void onBitmapLoaded(Bitmap bitmap) {
-        isImageLoaded = true;
-        mImageView.setImage(ImageSource.bitmap(bitmap));
-        invalidateOptionsMenu();
-        mProgressBar.hide();
+    /**
+     * Shows the full image, tiled and sampled to the screen by SubsamplingScaleImageView, with the
+     * given preview shown until the first tiles are decoded.
+     */
+    private void setImage(Bitmap preview) {
+        ImageSource source = ImageSource.uri(mMessagePartId);
+        if (preview == null || info == null) {
+            mImageView.setImage(source);
+            return;
+        }
+        // Info dimensions are rotated, but the view expects the dimensions of the stored image
+        boolean rotated = info.orientation == ThreePartImageUtils.ORIENTATION_90 || info.orientation == ThreePartImageUtils.ORIENTATION_270;
+        source.dimensions(rotated ? info.height : info.width, rotated ? info.width : info.height);
+        // Picasso owns the preview, so the view must not recycle it
+        mImageView.setImage(source, ImageSource.cachedBitmap(preview));
     }
 
     private int getImageOrientation(ThreePartImageCellFactory.Info info) {
@@ -164,8 +194,14 @@ public class AtlasImagePopupActivity extends AppCompatActivity {
 
     @Override
     protected void onDestroy() {
-        picasso.cancelTag(mImageView.getTag());
+        if (picasso != null && mImageView.getTag() instanceof Target) {
+            picasso.cancelRequest((Target) mImageView.getTag());
+        }
         mImageView.setTag(null);
+        if (mMessagePartId != null) {
+            MessagePartDecoder.cancel(mMessagePartId);
+        }
+        mImageView.recycle();
         disposable.dispose();
         super.onDestroy();
     }
@@ -4,24 +4,130 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.util.DisplayMetrics;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageDecoder;
 import com.layer.atlas.util.Log;
-import com.layer.atlas.util.Util;
+import com.layer.atlas.util.MessagePartDownloads;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.MessagePart;
 
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * MessagePartDecoder decodes a whole MessagePart image for SubsamplingScaleImageView, sampled down
+ * to the smallest power of two that still covers the screen.
+ * <p>
+ * Waiting for the download and decoding can be abandoned with {@link #cancel(Uri)}, e.g. when the
+ * popup finishes.  The Layer SDK has no way to stop a download once requested, so the download
+ * itself continues in the background.
+ */
 public class MessagePartDecoder implements ImageDecoder {
+    private static final long DOWNLOAD_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(3);
+    private static final long DOWNLOAD_POLL_MILLIS = 250;
+
     private static LayerClient sLayerClient;
 
+    // Cancellation times by MessagePart ID, and decodes in progress by MessagePart ID.  Cancellation
+    // times are only kept while a wait or decode of that MessagePart is in flight.
+    private static final ConcurrentHashMap<Uri, Long> sCancelledAt = new ConcurrentHashMap<Uri, Long>();
+    private static final HashMap<Uri, Integer> sInFlight = new HashMap<Uri, Integer>();
+    private static final ConcurrentHashMap<Uri, BitmapFactory.Options> sDecoding = new ConcurrentHashMap<Uri, BitmapFactory.Options>();
+
     public static void init(LayerClient layerClient) {
         sLayerClient = layerClient;
     }
 
+    /**
+     * Abandons any download wait or decode of the given MessagePart started before now.
+     */
+    public static void cancel(Uri messagePartId) {
+        synchronized (sInFlight) {
+            if (sInFlight.containsKey(messagePartId)) {
+                sCancelledAt.put(messagePartId, SystemClock.uptimeMillis());
+            }
+        }
+        BitmapFactory.Options options = sDecoding.get(messagePartId);
+        if (options != null) options.requestCancelDecode();
+    }
+
     @Override
     public Bitmap decode(Context context, Uri messagePartId) throws Exception {
+        long startedAt = begin(messagePartId);
+        try {
+            return decode(context, messagePartId, startedAt);
+        } finally {
+            end(messagePartId);
+        }
+    }
+
+    private Bitmap decode(Context context, Uri messagePartId, long startedAt) throws Exception {
+        MessagePart part = getDownloadedPart(messagePartId, startedAt);
+        if (part == null) return null;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(part, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                Math.max(metrics.widthPixels, metrics.heightPixels), Math.min(metrics.widthPixels, metrics.heightPixels));
+
+        sDecoding.put(messagePartId, options);
+        try {
+            if (isCancelled(messagePartId, startedAt)) return null;
+            Bitmap bitmap = decodeStream(part, options);
+            if (Log.isPerfLoggable()) {
+                Log.perf("MessagePartDecoder decoded " + messagePartId + " at 1/" + options.inSampleSize + " in " + (SystemClock.uptimeMillis() - startedAt) + "ms");
+            }
+            return bitmap;
+        } finally {
+            sDecoding.remove(messagePartId, options);
+        }
+    }
+
+    /**
+     * Marks a wait or decode of the given MessagePart as in flight, so cancel() applies to it.
+     * Must be paired with end().
+     *
+     * @return The start time to pass to getDownloadedPart() and isCancelled().
+     */
+    static long begin(Uri messagePartId) {
+        synchronized (sInFlight) {
+            Integer count = sInFlight.get(messagePartId);
+            sInFlight.put(messagePartId, count == null ? 1 : count + 1);
+            return SystemClock.uptimeMillis();
+        }
+    }
+
+    /**
+     * Ends a wait or decode started with begin(), forgetting any cancellation of the MessagePart
+     * once nothing else is in flight for it.
+     */
+    static void end(Uri messagePartId) {
+        synchronized (sInFlight) {
+            Integer count = sInFlight.get(messagePartId);
+            if (count == null || count <= 1) {
+                sInFlight.remove(messagePartId);
+                sCancelledAt.remove(messagePartId);
+            } else {
+                sInFlight.put(messagePartId, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Returns the MessagePart with the given ID once its content is downloaded, or `null` if it
+     * does not exist, is deleted, timed out, or was cancelled after `startedAt`.  Callers wrap it
+     * in begin() and end().  Shared with MessagePartRegionDecoder.
+     */
+    static MessagePart getDownloadedPart(Uri messagePartId, long startedAt) throws InterruptedException {
         MessagePart part = (MessagePart) sLayerClient.get(messagePartId);
         if (part == null) {
             if (Log.isLoggable(Log.ERROR)) {
@@ -35,13 +141,49 @@ public class MessagePartDecoder implements ImageDecoder {
             }
             return null;
         }
-        if (!Util.downloadMessagePart(sLayerClient, part, 3, TimeUnit.MINUTES)) {
-            if (Log.isLoggable(Log.ERROR)) {
-                Log.e("Timed out while downloading: " + messagePartId);
+
+        MessagePartDownloads.Download download = MessagePartDownloads.download(part);
+        long deadline = startedAt + DOWNLOAD_TIMEOUT_MILLIS;
+        while (!download.await(DOWNLOAD_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (isCancelled(messagePartId, startedAt)) {
+                if (Log.isLoggable(Log.VERBOSE)) Log.v("Cancelled waiting for: " + messagePartId);
+                return null;
             }
-            return null;
+            if (download.isDone() || SystemClock.uptimeMillis() > deadline) {
+                if (Log.isLoggable(Log.ERROR)) {
+                    Log.e("Failed or timed out while downloading: " + messagePartId);
+                }
+                return null;
+            }
+        }
+        return isCancelled(messagePartId, startedAt) ? null : part;
+    }
+
+    static boolean isCancelled(Uri messagePartId, long startedAt) {
+        Long cancelledAt = sCancelledAt.get(messagePartId);
+        return cancelledAt != null && cancelledAt >= startedAt;
+    }
+
+    /**
+     * Returns the largest power of two sample size that keeps the image at least as large as the
+     * given screen size, in either orientation.
+     */
+    static int getSampleSize(int width, int height, int screenLong, int screenShort) {
+        int imageLong = Math.max(width, height);
+        int imageShort = Math.min(width, height);
+        int sampleSize = 1;
+        while (imageLong / (sampleSize * 2) >= screenLong && imageShort / (sampleSize * 2) >= screenShort) {
+            sampleSize *= 2;
         }
+        return sampleSize;
+    }
 
-        return BitmapFactory.decodeStream(part.getDataStream());
+    private static Bitmap decodeStream(MessagePart part, BitmapFactory.Options options) throws Exception {
+        InputStream in = part.getDataStream();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
     }
 }
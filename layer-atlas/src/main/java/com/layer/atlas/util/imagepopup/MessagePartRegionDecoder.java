@@ -7,74 +7,228 @@ import android.graphics.BitmapRegionDecoder;
 import android.graphics.Point;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.util.LruCache;
 
 import com.davemorrissey.labs.subscaleview.decoder.ImageRegionDecoder;
+import com.layer.atlas.util.AtlasCacheRegistry;
 import com.layer.atlas.util.Log;
-import com.layer.atlas.util.Util;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.MessagePart;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * MessagePartRegionDecoder decodes tiles of a MessagePart image for SubsamplingScaleImageView.
+ * <p>
+ * Tiles decode in parallel on a pool of BitmapRegionDecoders, one per core, created as needed.
+ * Tiles sampled down by 4 or more are decoded as RGB_565 for opaque formats, since the view is
+ * zoomed out and the loss is not visible.  Recently decoded tiles are kept in a small LRU shared by
+ * all decoders, and one decoder of the last image viewed is kept after the view recycles it, until
+ * memory is trimmed, so reopening or panning back over a recent image avoids decoding again.
+ */
 public class MessagePartRegionDecoder implements ImageRegionDecoder {
-    private final Object mLock = new Object();
-    private BitmapRegionDecoder mDecoder;
-    private static LayerClient sLayerClient;
+    private static final int MAX_DECODERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int LOW_ZOOM_SAMPLE_SIZE = 4;
+    private static final int TILE_CACHE_MAX_BYTES = 16 * 1024 * 1024;
+    // How often threads waiting for a decoder check whether this decoder was recycled
+    private static final long DECODER_POLL_MILLIS = 100;
+
+    // Tiles by part, rect, and sample size.  The view recycles the tiles it is given, so the cache
+    // keeps its own copies.
+    private static final LruCache<String, Bitmap> sTileCache = new LruCache<String, Bitmap>(
+            AtlasCacheRegistry.getBudget(16, TILE_CACHE_MAX_BYTES)) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getRowBytes() * value.getHeight();
+        }
+    };
+
+    private static final AtlasCacheRegistry.Trimmable sTileCacheTrimmable = new AtlasCacheRegistry.Trimmable() {
+        @Override
+        public long getSizeBytes() {
+            return sTileCache.size();
+        }
+
+        @Override
+        public void trimToFraction(float fraction) {
+            AtlasCacheRegistry.trim(sTileCache, fraction);
+        }
+    };
+
+    // Decoder of the last recycled image, reused if it is opened again.  Holds the encoded image
+    // and native decoder state, so it is released under any memory pressure.
+    private static Uri sRetainedPartId;
+    private static BitmapRegionDecoder sRetainedDecoder;
+    private static long sRetainedBytes;
+
+    private static final AtlasCacheRegistry.Trimmable sRetainedDecoderTrimmable = new AtlasCacheRegistry.Trimmable() {
+        @Override
+        public long getSizeBytes() {
+            synchronized (MessagePartRegionDecoder.class) {
+                return sRetainedDecoder == null ? 0 : sRetainedBytes;
+            }
+        }
+
+        @Override
+        public void trimToFraction(float fraction) {
+            if (fraction < 1f) retainDecoder(null, null, 0);
+        }
+    };
+
+    static {
+        AtlasCacheRegistry.register("Image popup tiles", AtlasCacheRegistry.PRIORITY_LOW, sTileCacheTrimmable);
+        AtlasCacheRegistry.register("Image popup decoder", AtlasCacheRegistry.PRIORITY_LOW, sRetainedDecoderTrimmable);
+    }
+
+    private final LinkedBlockingDeque<BitmapRegionDecoder> mIdleDecoders = new LinkedBlockingDeque<BitmapRegionDecoder>();
+    private final List<BitmapRegionDecoder> mDecoders = new ArrayList<BitmapRegionDecoder>();
     private MessagePart mMessagePart;
+    private boolean mOpaque;
+    private int mWidth;
+    private int mHeight;
+    private volatile boolean mRecycled;
 
     public static void init(LayerClient layerClient) {
-        sLayerClient = layerClient;
+        MessagePartDecoder.init(layerClient);
     }
 
     @Override
     public Point init(Context context, Uri messagePartId) throws Exception {
-        MessagePart part = (MessagePart) sLayerClient.get(messagePartId);
-        if (part == null) {
-            if (Log.isLoggable(Log.ERROR)) {
-                Log.e("No message part with ID: " + messagePartId);
-            }
-            return null;
-        }
-        if (part.getMessage().isDeleted()) {
-            if (Log.isLoggable(Log.ERROR)) {
-                Log.e("Message part is deleted: " + messagePartId);
-            }
-            return null;
+        MessagePart part;
+        long startedAt = MessagePartDecoder.begin(messagePartId);
+        try {
+            part = MessagePartDecoder.getDownloadedPart(messagePartId, startedAt);
+        } finally {
+            MessagePartDecoder.end(messagePartId);
         }
-
+        if (part == null) return null;
         mMessagePart = part;
-        if (!Util.downloadMessagePart(sLayerClient, mMessagePart, 3, TimeUnit.MINUTES)) {
-            if (Log.isLoggable(Log.ERROR)) {
-                Log.e("Timed out while downloading: " + messagePartId);
-            }
-            return null;
-        }
+        mOpaque = "image/jpeg".equals(part.getMimeType());
 
-        synchronized (mLock) {
-            mDecoder = BitmapRegionDecoder.newInstance(mMessagePart.getDataStream(), false);
-            return new Point(mDecoder.getWidth(), mDecoder.getHeight());
+        BitmapRegionDecoder retained = takeRetainedDecoder(messagePartId);
+        synchronized (mDecoders) {
+            BitmapRegionDecoder decoder = retained != null ? retained : newDecoder();
+            mDecoders.add(decoder);
+            mIdleDecoders.add(decoder);
+            mWidth = mDecoders.get(0).getWidth();
+            mHeight = mDecoders.get(0).getHeight();
         }
+        return new Point(mWidth, mHeight);
     }
 
     @Override
     public Bitmap decodeRegion(Rect rect, int sampleSize) {
-        synchronized (mLock) {
+        String key = mMessagePart.getId() + "|" + rect.flattenToString() + "|" + sampleSize;
+        Bitmap cached = sTileCache.get(key);
+        if (cached != null) return cached.copy(cached.getConfig(), false);
+
+        BitmapRegionDecoder decoder = acquireDecoder();
+        Bitmap bitmap;
+        try {
             BitmapFactory.Options options = new BitmapFactory.Options();
             options.inSampleSize = sampleSize;
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            Bitmap bitmap = mDecoder.decodeRegion(rect, options);
-            if (bitmap == null) throw new IllegalStateException("Could not decode bitmap region");
-            return bitmap;
+            options.inPreferredConfig = mOpaque && sampleSize >= LOW_ZOOM_SAMPLE_SIZE
+                    ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+            bitmap = decoder.decodeRegion(rect, options);
+        } finally {
+            if (!mRecycled) mIdleDecoders.addFirst(decoder);
         }
+        if (bitmap == null) throw new IllegalStateException("Could not decode bitmap region");
+
+        Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+        if (copy != null) sTileCache.put(key, copy);
+        return bitmap;
     }
 
     @Override
     public boolean isReady() {
-        return mDecoder != null && !mDecoder.isRecycled() && mMessagePart.isContentReady();
+        return !mRecycled && mMessagePart != null && mMessagePart.isContentReady();
     }
 
     @Override
     public void recycle() {
-        mDecoder.recycle();
+        mRecycled = true;
+        List<BitmapRegionDecoder> decoders;
+        synchronized (mDecoders) {
+            decoders = new ArrayList<BitmapRegionDecoder>(mDecoders);
+            mDecoders.clear();
+        }
+        if (decoders.isEmpty()) return;
+        // BitmapRegionDecoder synchronizes internally, so a decode still in flight is harmless; one
+        // running on a recycled decoder fails, and the view discards its tile anyway
+        mIdleDecoders.clear();
+        for (int i = 1; i < decoders.size(); i++) {
+            decoders.get(i).recycle();
+        }
+        retainDecoder(mMessagePart.getId(), decoders.get(0), mMessagePart.getSize());
+    }
+
+    /**
+     * Returns an idle decoder, creating one if all are busy and the pool is not full, or waiting for
+     * one otherwise.  Throws once this decoder is recycled, since idle decoders are never returned
+     * to the pool after that.
+     */
+    private BitmapRegionDecoder acquireDecoder() {
+        checkNotRecycled();
+        BitmapRegionDecoder decoder = mIdleDecoders.pollFirst();
+        if (decoder != null) return decoder;
+        synchronized (mDecoders) {
+            if (!mRecycled && mDecoders.size() < MAX_DECODERS) {
+                try {
+                    decoder = newDecoder();
+                    mDecoders.add(decoder);
+                    return decoder;
+                } catch (IOException e) {
+                    if (Log.isLoggable(Log.ERROR)) Log.e("Could not create region decoder", e);
+                }
+            }
+        }
+        try {
+            while (true) {
+                checkNotRecycled();
+                decoder = mIdleDecoders.pollFirst(DECODER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (decoder != null) return decoder;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a region decoder", e);
+        }
+    }
+
+    private void checkNotRecycled() {
+        if (mRecycled) throw new IllegalStateException("Region decoder was recycled");
+    }
+
+    private BitmapRegionDecoder newDecoder() throws IOException {
+        InputStream in = mMessagePart.getDataStream();
+        try {
+            return BitmapRegionDecoder.newInstance(in, false);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static synchronized BitmapRegionDecoder takeRetainedDecoder(Uri partId) {
+        if (sRetainedDecoder == null || !partId.equals(sRetainedPartId)) return null;
+        BitmapRegionDecoder decoder = sRetainedDecoder;
+        sRetainedDecoder = null;
+        sRetainedPartId = null;
+        return decoder;
+    }
+
+    /**
+     * Retains the given decoder in place of the current one, which is recycled.  Pass `null` to
+     * only release the current one.
+     */
+    private static synchronized void retainDecoder(Uri partId, BitmapRegionDecoder decoder, long bytes) {
+        if (sRetainedDecoder != null) sRetainedDecoder.recycle();
+        sRetainedPartId = partId;
+        sRetainedDecoder = decoder;
+        sRetainedBytes = bytes;
     }
 }
@@ -3,31 +3,73 @@ package com.layer.atlas.util.picasso.requesthandlers;
 import android.net.Uri;
 
 import com.layer.atlas.util.Log;
-import com.layer.atlas.util.Util;
+import com.layer.atlas.util.MessagePartDownloads;
 import com.layer.sdk.LayerClient;
 import com.layer.sdk.messaging.MessagePart;
 import com.layer.sdk.query.Queryable;
 import com.squareup.picasso.Request;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import okio.Okio;
-import okio.Source;
 
 import static com.squareup.picasso.Picasso.LoadedFrom;
 
 /**
  * Handles Picasso load requests for Layer MessagePart content.  If the content is not ready
- * (e.g. MessagePart.isContentReady() is `false`), registers a LayerProgressListener, downloads
- * the part, and waits for completion.
+ * (e.g. MessagePart.isContentReady() is `false`), downloads the part, and waits for completion.
+ * <p>
+ * Concurrent requests for the same MessagePart share one download.  At most a fixed number of
+ * Picasso threads wait on downloads at once, so parts that are already downloaded are never stuck
+ * behind pending downloads.  When all waiting slots are taken, the request fails immediately while
+ * the download continues; callers should load the part again once it finishes, e.g. from a
+ * {@link MessagePartDownloads.Download.Callback}, as the Atlas image cells do.
+ * <p>
+ * Picasso's default executor shrinks to two threads on 3G and one on 2G, so by default only one
+ * thread waits; on 2G that is still Picasso's only thread.  Pass the executor given to Picasso to
+ * instead let waits use every thread but one at the executor's current size, never the last.
  */
 public class MessagePartRequestHandler extends com.squareup.picasso.RequestHandler {
+    private static final int DEFAULT_MAX_WAITING_THREADS = 1;
+    private static final long DOWNLOAD_TIMEOUT_MINUTES = 3;
+
     private final LayerClient mLayerClient;
+    private final int mMaxWaitingThreads;
+    private final ThreadPoolExecutor mPicassoExecutor;
+    private final AtomicInteger mWaitingThreads = new AtomicInteger();
 
     public MessagePartRequestHandler(LayerClient layerClient) {
+        this(layerClient, DEFAULT_MAX_WAITING_THREADS);
+    }
+
+    /**
+     * @param layerClient       LayerClient to resolve MessageParts with.
+     * @param maxWaitingThreads Maximum number of Picasso threads that may wait on downloads at once.
+     *                          Keep this below the size of Picasso's thread pool, including on
+     *                          slow networks.
+     */
+    public MessagePartRequestHandler(LayerClient layerClient, int maxWaitingThreads) {
+        if (maxWaitingThreads < 1) throw new IllegalArgumentException("Max waiting threads must be positive");
         mLayerClient = layerClient;
+        mMaxWaitingThreads = maxWaitingThreads;
+        mPicassoExecutor = null;
+    }
+
+    /**
+     * @param layerClient     LayerClient to resolve MessageParts with.
+     * @param picassoExecutor Executor given to Picasso.Builder.executor().  Downloads are waited on
+     *                        by at most one fewer thread than its current core pool size, so one
+     *                        thread always remains for parts that are already downloaded.
+     */
+    public MessagePartRequestHandler(LayerClient layerClient, ThreadPoolExecutor picassoExecutor) {
+        mLayerClient = layerClient;
+        mMaxWaitingThreads = Integer.MAX_VALUE;
+        mPicassoExecutor = picassoExecutor;
     }
 
     @Override
@@ -46,7 +88,37 @@ public class MessagePartRequestHandler extends com.squareup.picasso.RequestHandl
         if (!(queryable instanceof MessagePart)) return null;
         MessagePart part = (MessagePart) queryable;
         if (part.isContentReady()) return new Result(Okio.source(part.getDataStream()), LoadedFrom.DISK);
-        if (!Util.downloadMessagePart(mLayerClient, part, 3, TimeUnit.MINUTES)) return null;
+
+        MessagePartDownloads.Download download = MessagePartDownloads.download(part);
+        if (!download.isDone()) {
+            if (!tryStartWaiting()) {
+                if (Log.isLoggable(Log.VERBOSE)) {
+                    Log.v("All download waiting slots taken, not waiting for " + request.uri);
+                }
+                return null;
+            }
+            try {
+                download.await(DOWNLOAD_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for " + request.uri);
+            } finally {
+                mWaitingThreads.decrementAndGet();
+            }
+        }
+        if (!part.isContentReady()) return null;
         return new Result(Okio.source(part.getDataStream()), LoadedFrom.NETWORK);
     }
+
+    private boolean tryStartWaiting() {
+        int maxWaiting = mMaxWaitingThreads;
+        if (mPicassoExecutor != null) {
+            // Read each time, since Picasso resizes its pool as the network type changes
+            maxWaiting = mPicassoExecutor.getCorePoolSize() - 1;
+        }
+        while (true) {
+            int waiting = mWaitingThreads.get();
+            if (waiting >= maxWaiting) return false;
+            if (mWaitingThreads.compareAndSet(waiting, waiting + 1)) return true;
+        }
+    }
 }
@@ -22,14 +22,16 @@ public class CircleTransform implements Transformation {
         int srcWidth = source.getWidth();
         int srcHeight = source.getHeight();
         float srcRadius = (float) Math.min(srcWidth, srcHeight) / 2f;
-        Bitmap out = Bitmap.createBitmap(srcWidth, srcHeight, Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(out);
         final Paint paint = new Paint();
-        final Rect rect = new Rect(0, 0, out.getWidth(), out.getHeight());
-
         paint.setAntiAlias(true);
         paint.setFilterBitmap(true);
         paint.setDither(true);
+
+        // Not taken from BitmapPool: the result is owned by Picasso's cache and never released
+        Bitmap out = Bitmap.createBitmap(srcWidth, srcHeight, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(out);
+        final Rect rect = new Rect(0, 0, out.getWidth(), out.getHeight());
+
         canvas.drawARGB(0, 0, 0, 0);
         paint.setColor(Color.WHITE);
         canvas.drawCircle(srcRadius, srcRadius, srcRadius, paint);
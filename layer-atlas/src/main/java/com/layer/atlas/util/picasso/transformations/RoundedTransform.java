@@ -11,15 +11,16 @@ import com.squareup.picasso.Transformation;
 
 public class RoundedTransform implements Transformation {
     private float mCornerRadius = 0;
-    private final Paint mPaint;
-    private final PorterDuffXfermode mShapeXferMode;
-    private final PorterDuffXfermode mBitmapXferMode;
+    // Picasso may transform on several threads at once, so each xfermode gets its own Paint and
+    // the Paints are never modified after construction
+    private final Paint mShapePaint;
+    private final Paint mBitmapPaint;
 
     public RoundedTransform(float cornerRadius) {
         mCornerRadius = cornerRadius;
-        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
-        mShapeXferMode = null;
-        mBitmapXferMode = new PorterDuffXfermode((PorterDuff.Mode.SRC_IN));
+        mShapePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mBitmapPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mBitmapPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC_IN));
     }
 
     @Override
@@ -30,14 +31,13 @@ public class RoundedTransform implements Transformation {
         int width = source.getWidth();
         int height = source.getHeight();
 
+        // Not taken from BitmapPool: the result is owned by Picasso's cache and never released
         Bitmap image = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         Canvas canvas = new Canvas(image);
         RectF rect = new RectF(0, 0, width, height);
 
-        mPaint.setXfermode(mShapeXferMode);
-        canvas.drawRoundRect(rect, mCornerRadius, mCornerRadius, mPaint);
-        mPaint.setXfermode(mBitmapXferMode);
-        canvas.drawBitmap(source, 0, 0, mPaint);
+        canvas.drawRoundRect(rect, mCornerRadius, mCornerRadius, mShapePaint);
+        canvas.drawBitmap(source, 0, 0, mBitmapPaint);
         source.recycle();
         return image;
     }